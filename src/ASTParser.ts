@@ -7,11 +7,21 @@ import { ECMAScriptLexer as DelvenLexer } from "./parser/ECMAScriptLexer"
 import { RuleContext } from "antlr4/RuleContext"
 import { ExpressionStatement, Literal, BlockStatement, Statement, SequenceExpression, ThrowStatement, AssignmentExpression, Identifier, BinaryExpression, ArrayExpression, ObjectExpression, ObjectExpressionProperty, Property, PropertyKey, VariableDeclaration, VariableDeclarator, Expression, IfStatement, ComputedMemberExpression, StaticMemberExpression, ClassDeclaration, ClassBody, FunctionDeclaration, FunctionParameter, AsyncFunctionDeclaration, AssignmentPattern, BindingPattern, BindingIdentifier, ArrayExpressionElement, SpreadElement, ArrowFunctionExpression, LabeledStatement, RestElement, NewExpression, ArgumentListElement, ThisExpression, FunctionExpression, AsyncFunctionExpression, UnaryExpression, UpdateExpression, WhileStatement, DoWhileStatement, ContinueStatement, BreakStatement, ReturnStatement, ArrayPattern, ObjectPattern, CallExpression, TemplateLiteral, RegexLiteral, TemplateElement } from "./nodes";
 import * as Node from "./nodes";
-import { Interval, Recognizer, Token } from "antlr4"
+import { Recognizer, Token } from "antlr4"
 import Trace, { CallSite } from "./trace"
 import * as fs from "fs"
 import ASTNode from "./ASTNode"
 import { ErrorListener } from "antlr4/error/ErrorListener"
+import { BailErrorStrategy, DefaultErrorStrategy } from "antlr4/error/ErrorStrategy"
+import { ParseCancellationException } from "antlr4/error/Errors"
+import { PredictionMode } from "antlr4/atn/PredictionMode"
+import { ParseTreeListener } from "antlr4/tree/Tree"
+import CompactTokenStream from "./CompactTokenStream"
+import Utf8CharStream from "./Utf8CharStream"
+import DecisionProfiler from "./DecisionProfiler"
+import LineIndex from "./LineIndex"
+import SymbolTable from "./SymbolTable"
+import ParseCache from "./ParseCache"
 
 /**
  * Version that we generate the AST for. 
@@ -61,6 +71,46 @@ type ClassElement = Node.MethodDefinition | Node.EmptyStatement | Node.ClassPriv
 
 type IterableStatement = Node.DoWhileStatement | Node.WhileStatement | Node.ForStatement | Node.ForInStatement | Node.ForOfStatement
 
+/**
+ * Prediction mode the program was parsed with
+ * 
+ * SLL : fast path, used when the input parses without errors in SLL mode
+ * LL  : full context parse, used when SLL failed or two-stage parsing is disabled
+ */
+export type ParseMode = "SLL" | "LL"
+
+export type ParseStatistics = {
+    sll: number,
+    ll: number,
+}
+
+/**
+ * Replace the characters from `start` up to `end` with `text`, offsets are in the previous version of the code
+ */
+export type TextEdit = {
+    start: number,
+    end: number,
+    text: string,
+}
+
+export type IncrementalResult = {
+    code: string,
+    ast: Node.Module | ErrorNode,
+    // start and end offset of every top-level statement
+    ranges: Int32Array,
+    // 1 for every top-level statement lexed in strict mode
+    strict: Uint8Array,
+    // number of statements parsed, the other statements were reused from the previous result
+    parsed: number,
+}
+
+type ParsedStatement = {
+    statement: Node.Statement | ErrorNode,
+    start: number,
+    end: number,
+    strict: boolean,
+}
+
 export type ErrorInfo = {
     line: number,
     column: number,
@@ -92,6 +142,10 @@ export class ErrorNode extends ASTNode {
         super()
         this.errror = errror
     }
+
+    get error(): ErrorInfo {
+        return this.errror
+    }
 }
 
 /**
@@ -110,6 +164,35 @@ export default abstract class ASTParser {
 
     static _trace = true
 
+    static _twoStage = false
+
+    static _fastExpressions = false
+
+    static _compactTokens = false
+
+    static _utf8Input = false
+
+    static _profiler: DecisionProfiler | null = null
+
+    static _locations = false
+
+    static _interning = false
+
+    static _dropParseTree = false
+
+    static _lazyFunctions = false
+
+    static _symbols: SymbolTable | null = null
+
+    static _cache: ParseCache | null = null
+
+    static _statistics: ParseStatistics = { sll: 0, ll: 0 }
+
+    /**
+     * Mode used by the last call to `generate`
+     */
+    mode: ParseMode | undefined
+
     /**
      * Enable trace messages 
      * 
@@ -119,6 +202,128 @@ export default abstract class ASTParser {
         ASTParser._trace = trace
     }
 
+    /**
+     * Enable two-stage parsing, the program is first parsed in SLL mode with a bail out error strategy
+     * and only parsed again in full LL mode when SLL fails.
+     * 
+     * @param enabled 
+     */
+    static twoStage(enabled: boolean) {
+        ASTParser._twoStage = enabled
+    }
+
+    /**
+     * Enable precedence climbing for simple binary, logical, ternary and assignment expressions,
+     * these are then parsed without adaptive prediction at every operator.
+     * 
+     * @param enabled 
+     */
+    static fastExpressions(enabled: boolean) {
+        ASTParser._fastExpressions = enabled
+    }
+
+    /**
+     * Keep tokens in a `CompactTokenStream` instead of a `CommonTokenStream`,
+     * this reduces the memory used per token on large inputs.
+     * 
+     * @param enabled 
+     */
+    static compactTokens(enabled: boolean) {
+        ASTParser._compactTokens = enabled
+    }
+
+    /**
+     * Read files into a `Utf8CharStream` instead of decoding them into a string,
+     * ASCII input is then kept at one byte per character.
+     * 
+     * @param enabled 
+     */
+    static utf8Input(enabled: boolean) {
+        ASTParser._utf8Input = enabled
+    }
+
+    /**
+     * Record prediction statistics of every parser created into the profiler, `null` to disable
+     * 
+     * @param profiler 
+     */
+    static profile(profiler: DecisionProfiler | null) {
+        ASTParser._profiler = profiler
+    }
+
+    /**
+     * Add `loc` and `range` to nodes, when disabled nodes only carry `start` and `end` of 0.
+     * Can be changed between parses.
+     * 
+     * @param enabled 
+     */
+    static locations(enabled: boolean) {
+        ASTParser._locations = enabled
+    }
+
+    /**
+     * Intern identifier names and string literals, so repeated names share one string.
+     * Each parse gets its own table unless a shared table is passed, which is then used for all parses.
+     * 
+     * @param enabled 
+     * @param shared 
+     */
+    static intern(enabled: boolean, shared: SymbolTable | null = null) {
+        ASTParser._interning = enabled
+        ASTParser._symbols = shared
+    }
+
+    /**
+     * Convert top-level statements to AST as they are parsed and drop their parse tree,
+     * so only the parse tree of the statement being parsed is kept in memory.
+     * 
+     * @param enabled 
+     */
+    static dropParseTree(enabled: boolean) {
+        ASTParser._dropParseTree = enabled
+    }
+
+    /**
+     * Only brace match the bodies of function declarations, function expressions and class methods,
+     * the `body` of their `BlockStatement` is parsed the first time it is read.
+     * Syntax errors inside a body are reported when the body is read.
+     * Trees with lazy bodies are not cached, measuring or encoding them would read every body.
+     * 
+     * @param enabled 
+     */
+    static lazyFunctions(enabled: boolean) {
+        ASTParser._lazyFunctions = enabled
+    }
+
+    /**
+     * Serve `parse` from the cache, `null` to disable
+     * 
+     * @param cache 
+     */
+    static cache(cache: ParseCache | null) {
+        ASTParser._cache = cache
+    }
+
+    /**
+     * Signature of the options that change the tree produced for the same source, part of the cache key
+     * 
+     * @param type 
+     */
+    static optionsSignature(type: ParserType = ParserType.ECMAScript): string {
+        return `${type}:${ASTParser._locations ? "loc" : ""}`
+    }
+
+    /**
+     * Number of parses completed in each prediction mode, used to monitor the SLL fallback rate
+     */
+    static statistics(): ParseStatistics {
+        return { ...ASTParser._statistics }
+    }
+
+    static resetStatistics() {
+        ASTParser._statistics = { sll: 0, ll: 0 }
+    }
+
     constructor(visitor: DelvenASTVisitor) {
         this.visitor = visitor || new DelvenASTVisitor()
     }
@@ -128,33 +333,38 @@ export default abstract class ASTParser {
      * @param source 
      */
     generate(source: SourceCode): ASTNode {
-        let code;
-        switch (source.type) {
-            case "code":
-                code = source.value;
-                break;
-            case "filename":
-                code = fs.readFileSync(source.value, "utf8")
-        }
-
         const errorHandler = new DelvenErrorListener()
-        const chars = new antlr4.InputStream(code)
+        const chars = this.charStream(source)
         const lexer = new DelvenLexer(chars)
         lexer.removeErrorListeners();
         lexer.addErrorListener(errorHandler);
+        this.visitor.setLineIndex(ASTParser._locations ? new LineIndex(chars) : null)
+        this.visitor.setSymbolTable(ASTParser._interning ? ASTParser._symbols || new SymbolTable() : null)
 
-        const parser = new DelvenParser(new antlr4.CommonTokenStream(lexer))
+        const tokens = ASTParser._compactTokens ? new CompactTokenStream(lexer) : new antlr4.CommonTokenStream(lexer)
+        const parser = new DelvenParser(tokens)
         parser.setTrace(ASTParser._trace)
+        parser.setFastExpressions(ASTParser._fastExpressions)
+        parser.setLazyFunctionBodies(ASTParser._lazyFunctions)
+        if (ASTParser._profiler) {
+            ASTParser._profiler.attach(parser)
+        }
 
-        parser.removeErrorListeners();
-        parser.addErrorListener(errorHandler);
+        const listener = ASTParser._dropParseTree ? new StatementListener(this.visitor, parser) : null
+        if (listener !== null) {
+            parser.addParseListener(listener)
+        }
 
         try {
-            const tree = parser.program()
+            const tree = this.program(parser, errorHandler)
             if (ASTParser._trace) {
+                console.log(`Parsed in ${this.mode} mode`);
                 console.log(tree.toStringTree(parser.ruleNames));
             }
 
+            if (listener !== null) {
+                return this.visitor.createProgram(tree, listener.statements)
+            }
             return tree.accept(this.visitor)
         } catch (e) {
             if (errorHandler.hasErrors()) {
@@ -164,6 +374,370 @@ export default abstract class ASTParser {
         }
     }
 
+    /**
+     * Parse the source one top-level statement at a time, each statement is converted to AST as soon as it is parsed.
+     * Tokens and parse tree of a statement are released before the next one is parsed,
+     * so memory is bounded by the largest statement instead of the size of the source.
+     * 
+     * Parsing stops at the first error, which is returned as an `ErrorNode`
+     * 
+     * @param source 
+     */
+    *generateStatements(source: SourceCode): IterableIterator<Node.Statement | ErrorNode> {
+        for (const parsed of this.statementsFrom(this.charStream(source), ASTParser._lazyFunctions, false)) {
+            yield parsed.statement
+        }
+    }
+
+    /**
+     * Parse source for incremental reparsing, the result keeps the range of every top-level statement
+     * 
+     * @param code 
+     */
+    parseIncremental(code: string): IncrementalResult {
+        const ranges: number[] = []
+        const strict: number[] = []
+        const body: Node.Statement[] = []
+        for (const parsed of this.statementsFrom(new antlr4.InputStream(code), false, false)) {
+            if (parsed.statement instanceof ErrorNode) {
+                return { code, ast: parsed.statement, ranges: new Int32Array(0), strict: new Uint8Array(0), parsed: body.length }
+            }
+            body.push(parsed.statement)
+            ranges.push(parsed.start, parsed.end)
+            strict.push(parsed.strict ? 1 : 0)
+        }
+        return { code, ast: this.moduleOf(body, ranges), ranges: Int32Array.from(ranges), strict: Uint8Array.from(strict), parsed: body.length }
+    }
+
+    /**
+     * Apply the edit and parse only the top-level statements it touches
+     * 
+     * Parsing restarts at the statement before the edit, since the edit can extend it, and stops at the first statement
+     * after the edit that ends where a statement of the previous version ended. Statements before the restart point are
+     * reused as is, statements after the stop point are reused with their offsets shifted.
+     * Statements reused as is are shared with the previous result, shifted statements are copies, so the previous
+     * result stays valid.
+     * The restarted lexer begins at the line and column of the restart point, in the strict mode the restart statement
+     * was lexed in.
+     * 
+     * @param previous 
+     * @param edit 
+     */
+    reparse(previous: IncrementalResult, edit: TextEdit): IncrementalResult {
+        const code = previous.code.slice(0, edit.start) + edit.text + previous.code.slice(edit.end)
+        if (previous.ast instanceof ErrorNode) {
+            return this.parseIncremental(code)
+        }
+
+        const old = previous.ranges
+        const count = old.length / 2
+        const delta = edit.text.length - (edit.end - edit.start)
+        const editEnd = edit.start + edit.text.length
+
+        let first = 0
+        while (first < count && old[first * 2 + 1] < edit.start) {
+            ++first
+        }
+        first = Math.max(0, first - 1)
+
+        const chars = new antlr4.InputStream(code)
+        // text before the first statement can hold a hashbang line or be edited itself
+        chars.seek(first > 0 ? old[first * 2] : 0)
+
+        const body: Node.StatementListItem[] = previous.ast.body.slice(0, first)
+        const ranges: number[] = Array.from(old.subarray(0, first * 2))
+        const strict: number[] = Array.from(previous.strict.subarray(0, first))
+        let resume = count
+        let next = first
+        let parsed = 0
+        for (const statement of this.statementsFrom(chars, false, first > 0 && previous.strict[first] === 1)) {
+            if (statement.statement instanceof ErrorNode) {
+                return { code, ast: statement.statement, ranges: new Int32Array(0), strict: new Uint8Array(0), parsed }
+            }
+            body.push(statement.statement)
+            ranges.push(statement.start, statement.end)
+            strict.push(statement.strict ? 1 : 0)
+            ++parsed
+
+            const oldEnd = statement.end - delta
+            if (statement.end < editEnd || oldEnd < edit.end) {
+                continue
+            }
+
+            while (next < count && old[next * 2 + 1] < oldEnd) {
+                ++next
+            }
+
+            if (next < count && old[next * 2 + 1] === oldEnd) {
+                resume = next + 1
+                break
+            }
+        }
+
+        const shift = this.visitor.lineIndex()
+        for (let i = resume; i < count; ++i) {
+            // located statements are copied, the previous tree keeps its own locations
+            const statement = shift !== null ? this.shiftLocation(previous.ast.body[i], delta, shift) : previous.ast.body[i]
+            body.push(statement)
+            ranges.push(old[i * 2] + delta, old[i * 2 + 1] + delta)
+            strict.push(previous.strict[i])
+        }
+
+        return { code, ast: this.moduleOf(body, ranges), ranges: Int32Array.from(ranges), strict: Uint8Array.from(strict), parsed }
+    }
+
+    /**
+     * Copy of a reused node and all nodes below it with shifted offsets, line and column are taken from the new line index.
+     * Nodes keep their prototype, a node referenced twice in the subtree is copied once.
+     * 
+     * @param node 
+     * @param delta 
+     * @param lines 
+     * @param copies nodes already copied
+     */
+    private shiftLocation(node: any, delta: number, lines: LineIndex, copies: Map<any, any> = new Map()): any {
+        if (node === null || typeof node !== "object" || node instanceof RegExp) {
+            return node
+        }
+
+        const existing = copies.get(node)
+        if (existing !== undefined) {
+            return existing
+        }
+
+        if (Array.isArray(node)) {
+            const array: any[] = []
+            copies.set(node, array)
+            for (const element of node) {
+                array.push(this.shiftLocation(element, delta, lines, copies))
+            }
+            return array
+        }
+
+        const copy = Object.create(Object.getPrototypeOf(node))
+        copies.set(node, copy)
+        for (const key of Object.keys(node)) {
+            copy[key] = key === "range" || key === "loc" ? node[key] : this.shiftLocation(node[key], delta, lines, copies)
+        }
+
+        if (Array.isArray(node.range)) {
+            copy.start = node.start + delta
+            copy.end = node.end + delta
+            copy.range = [copy.start, copy.end]
+            copy.loc = { start: lines.position(copy.start), end: lines.position(copy.end) }
+        }
+        return copy
+    }
+
+    /**
+     * Program node spanning the statements, same location as the one the visitor creates for the whole parse tree
+     * 
+     * @param body 
+     * @param ranges 
+     */
+    private moduleOf(body: Node.StatementListItem[], ranges: number[]): Node.Module {
+        const program: any = new Node.Module(body)
+        const lines = this.visitor.lineIndex()
+        if (lines === null) {
+            program.start = 0
+            program.end = 0
+            return program
+        }
+
+        program.start = ranges.length > 0 ? ranges[0] : 0
+        program.end = ranges.length > 0 ? ranges[ranges.length - 1] : 0
+        program.range = [program.start, program.end]
+        program.loc = { start: lines.position(program.start), end: lines.position(program.end) }
+        return program
+    }
+
+    /**
+     * Parse top-level statements starting at the current position of the character stream,
+     * parsing stops at the first error, which is returned as an `ErrorNode`
+     * 
+     * Lazy function bodies are only used when the statements are not kept for reparsing,
+     * the deferred body would be parsed from the previous version of the code.
+     * 
+     * When starting in the middle of the stream, tokens and errors get the line and column of the document
+     * and the lexer starts in given strict mode, a new lexer would otherwise start at line 1 in non strict mode.
+     * 
+     * @param chars 
+     * @param lazy 
+     * @param strict 
+     */
+    private *statementsFrom(chars: any, lazy: boolean, strict: boolean): IterableIterator<ParsedStatement> {
+        const errorHandler = new DelvenErrorListener()
+        const atStart = chars.index === 0
+        const lines = ASTParser._locations || !atStart ? new LineIndex(chars) : null
+        const lexer = new DelvenLexer(chars)
+        if (!atStart) {
+            const position = lines.position(chars.index)
+            lexer._interp.line = position.line
+            lexer._interp.column = position.column
+            lexer.setUseStrictDefault(strict)
+        }
+        lexer.removeErrorListeners();
+        lexer.addErrorListener(errorHandler);
+        this.visitor.setLineIndex(ASTParser._locations ? lines : null)
+        this.visitor.setSymbolTable(ASTParser._interning ? ASTParser._symbols || new SymbolTable() : null)
+
+        const tokens = new CompactTokenStream(lexer)
+        const parser = new DelvenParser(tokens)
+        parser.setTrace(ASTParser._trace)
+        parser.setFastExpressions(ASTParser._fastExpressions)
+        parser.setLazyFunctionBodies(lazy)
+        if (ASTParser._profiler) {
+            ASTParser._profiler.attach(parser)
+        }
+        parser.removeErrorListeners();
+        parser.addErrorListener(errorHandler);
+
+        let parsed: ParsedStatement
+        try {
+            if (atStart && tokens.LA(1) === DelvenParser.HashBangLine) {
+                tokens.consume()
+            }
+        } catch (e) {
+            if (errorHandler.hasErrors()) {
+                yield { statement: new ErrorNode(errorHandler.getErrors()[0]), start: 0, end: 0, strict: false }
+                return
+            }
+            throw e
+        }
+
+        for (; ;) {
+            try {
+                if (tokens.LA(1) === Token.EOF) {
+                    return
+                }
+                const element = parser.sourceElement()
+                parsed = {
+                    statement: this.visitor.visitStatement(element.statement()),
+                    start: element.start.start,
+                    end: element.stop.stop + 1,
+                    strict: lexer.isStrictModeAt(element.start.tokenIndex)
+                }
+                tokens.discardConsumed()
+            } catch (e) {
+                if (errorHandler.hasErrors()) {
+                    yield { statement: new ErrorNode(errorHandler.getErrors()[0]), start: 0, end: 0, strict: false }
+                    return
+                }
+                throw e
+            }
+            yield parsed
+        }
+    }
+
+    /**
+     * Create character stream for the source, files are read as UTF-8 bytes when enabled
+     * 
+     * @param source 
+     */
+    private charStream(source: SourceCode): any {
+        switch (source.type) {
+            case "code":
+                return new antlr4.InputStream(source.value)
+            case "filename":
+                if (ASTParser._utf8Input) {
+                    return Utf8CharStream.fromPath(source.value)
+                }
+                return new antlr4.InputStream(fs.readFileSync(source.value, "utf8"))
+        }
+    }
+
+    /**
+     * Parse the program, when two-stage parsing is enabled SLL is tried first
+     * 
+     * @param parser 
+     * @param errorHandler 
+     */
+    private program(parser: DelvenParser, errorHandler: DelvenErrorListener): RuleContext {
+        if (ASTParser._twoStage) {
+            parser._interp.predictionMode = PredictionMode.SLL
+            parser._errHandler = new BailErrorStrategy()
+            parser.removeErrorListeners();
+
+            try {
+                const tree = parser.program()
+                this.mode = "SLL"
+                ASTParser._statistics.sll++
+                return tree
+            } catch (e) {
+                if (!(e instanceof ParseCancellationException)) {
+                    throw e
+                }
+            }
+
+            // rewinds the token stream
+            parser.reset()
+            parser._errHandler = new DefaultErrorStrategy()
+        }
+
+        parser._interp.predictionMode = PredictionMode.LL
+        parser.removeErrorListeners();
+        parser.addErrorListener(errorHandler);
+
+        const tree = parser.program()
+        this.mode = "LL"
+        ASTParser._statistics.ll++
+        return tree
+    }
+
+    /**
+     * Parse source one top-level statement at a time
+     * 
+     * Usage
+     * ```
+     *  for (const statement of ASTParser.statements({ type: "filename", value: "./bundle.js" })) {
+     *      console.info(statement.type)
+     *  }
+     * ```
+     * @param source 
+     */
+    static statements(source: SourceCode): IterableIterator<Node.Statement | ErrorNode> {
+        return new ASTParserDefault().generateStatements(source)
+    }
+
+    /**
+     * Parse source one top-level statement at a time and pass each statement to the callback,
+     * returns the number of statements parsed
+     * 
+     * @param source 
+     * @param callback 
+     */
+    static stream(source: SourceCode, callback: (statement: Node.Statement | ErrorNode, index: number) => void): number {
+        let index = 0
+        for (const statement of ASTParser.statements(source)) {
+            callback(statement, index++)
+        }
+        return index
+    }
+
+    /**
+     * Parse code that will be edited and reparsed with `reparse`
+     * 
+     * Usage
+     * ```
+     *  let result = ASTParser.parseIncremental("let x = 1\nlet y = 2")
+     *  result = ASTParser.reparse(result, { start: 8, end: 9, text: "42" })
+     * ```
+     * @param code 
+     */
+    static parseIncremental(code: string): IncrementalResult {
+        return new ASTParserDefault().parseIncremental(code)
+    }
+
+    /**
+     * Apply edit to the code of a previous result and reparse only the affected top-level statements
+     * 
+     * @param previous 
+     * @param edit 
+     */
+    static reparse(previous: IncrementalResult, edit: TextEdit): IncrementalResult {
+        return new ASTParserDefault().reparse(previous, edit)
+    }
+
     /**
      * Parse source and genereate AST tree, ParsetType will be used to make determination of what interla parser to use
      * 
@@ -181,6 +755,11 @@ export default abstract class ASTParser {
             default:
                 throw new Error("Unkown parser type")
         }
+
+        // bodies of a lazy tree are parsed when read, the cache would read all of them to size and write the tree
+        if (ASTParser._cache !== null && !ASTParser._lazyFunctions) {
+            return ASTParser._cache.get(source, ASTParser.optionsSignature(type), () => parser.generate(source))
+        }
         return parser.generate(source)
     }
 }
@@ -194,10 +773,146 @@ class ASTParserDefault extends ASTParser {
     }
 }
 
+/**
+ * Parse listener that converts each top-level statement to AST when the parser exits it.
+ * The parse tree is only built below a top-level statement, the program and its source elements
+ * never hold children, so the tree of a statement is garbage once it is converted.
+ * Fast expressions stay enabled, they are used whenever the parse tree is built.
+ */
+class StatementListener extends ParseTreeListener {
+    statements: Node.Statement[] = []
+
+    constructor(private visitor: DelvenASTVisitor, private parser: DelvenParser) {
+        super()
+    }
+
+    private static isTopLevel(ctx: RuleContext): boolean {
+        return ctx instanceof ECMAScriptParser.SourceElementContext && ctx.parentCtx.parentCtx instanceof ECMAScriptParser.ProgramContext
+    }
+
+    enterEveryRule(ctx: RuleContext): void {
+        // parse is restarted when two-stage parsing falls back to LL
+        if (ctx instanceof ECMAScriptParser.ProgramContext) {
+            this.statements = []
+            this.parser.buildParseTrees = false
+        } else if (StatementListener.isTopLevel(ctx)) {
+            // the element itself is not added to the program, only its children are added to it
+            this.parser.buildParseTrees = true
+        }
+    }
+
+    exitEveryRule(ctx: RuleContext): void {
+        if (StatementListener.isTopLevel(ctx)) {
+            this.statements.push(this.visitor.visitStatement(ctx.statement()))
+            this.parser.buildParseTrees = false
+        }
+    }
+}
+
+/**
+ * Converts a context to AST node, used for table dispatch in `DelvenASTVisitor`
+ */
+type Handler<T> = (visitor: DelvenASTVisitor, node: RuleContext) => T
+
 /**
  * Default AST visitor implementation
  */
 class DelvenASTVisitor extends DelvenVisitor {
+
+    /**
+     * Handlers for the children of `statement` indexed by rule index
+     */
+    private static statementHandlers: Handler<Node.Statement>[] = DelvenASTVisitor.ruleTable([
+        [ECMAScriptParser.RULE_block, (visitor, node) => visitor.visitBlock(node)],
+        [ECMAScriptParser.RULE_variableStatement, (visitor, node) => visitor.visitVariableStatement(node)],
+        [ECMAScriptParser.RULE_importStatement, (visitor, node) => visitor.visitImportStatement(node)],
+        [ECMAScriptParser.RULE_exportStatement, (visitor, node) => visitor.visitExportStatement(node)],
+        [ECMAScriptParser.RULE_emptyStatement, (visitor, node) => visitor.visitEmptyStatement(node)],
+        [ECMAScriptParser.RULE_classDeclaration, (visitor, node) => visitor.visitClassDeclaration(node)],
+        [ECMAScriptParser.RULE_expressionStatement, (visitor, node) => visitor.visitExpressionStatement(node)],
+        [ECMAScriptParser.RULE_ifStatement, (visitor, node) => visitor.visitIfStatement(node)],
+        [ECMAScriptParser.RULE_iterationStatement, (visitor, node) => visitor.visitIterationStatement(node)],
+        [ECMAScriptParser.RULE_continueStatement, (visitor, node) => visitor.visitContinueStatement(node)],
+        [ECMAScriptParser.RULE_breakStatement, (visitor, node) => visitor.visitBreakStatement(node)],
+        [ECMAScriptParser.RULE_returnStatement, (visitor, node) => visitor.visitReturnStatement(node)],
+        [ECMAScriptParser.RULE_withStatement, (visitor, node) => visitor.visitWithStatement(node)],
+        [ECMAScriptParser.RULE_labelledStatement, (visitor, node) => visitor.visitLabelledStatement(node)],
+        [ECMAScriptParser.RULE_switchStatement, (visitor, node) => visitor.visitSwitchStatement(node)],
+        [ECMAScriptParser.RULE_throwStatement, (visitor, node) => visitor.visitThrowStatement(node)],
+        [ECMAScriptParser.RULE_tryStatement, (visitor, node) => visitor.visitTryStatement(node)],
+        [ECMAScriptParser.RULE_debuggerStatement, (visitor, node) => visitor.visitDebuggerStatement(node)],
+        [ECMAScriptParser.RULE_functionDeclaration, (visitor, node) => visitor.visitFunctionDeclaration(node)],
+        [ECMAScriptParser.RULE_querySelectStatement, (visitor, node) => visitor.visitQuerySelectStatement(node)],
+    ])
+
+    /**
+     * Handlers for the labelled alternatives of `singleExpression` keyed by context type
+     */
+    private static expressionHandlers: Map<any, Handler<Node.Expression>> = new Map<any, Handler<Node.Expression>>([
+        [ECMAScriptParser.LiteralExpressionContext, (visitor, node) => visitor.visitLiteralExpression(node)],
+        [ECMAScriptParser.ObjectLiteralExpressionContext, (visitor, node) => visitor.visitObjectLiteralExpression(node)],
+        [ECMAScriptParser.AssignmentExpressionContext, (visitor, node) => visitor.visitAssignmentExpression(node)],
+        [ECMAScriptParser.AdditiveExpressionContext, (visitor, node) => visitor.visitAdditiveExpression(node)],
+        [ECMAScriptParser.MultiplicativeExpressionContext, (visitor, node) => visitor.visitMultiplicativeExpression(node)],
+        [ECMAScriptParser.ArrayLiteralExpressionContext, (visitor, node) => visitor.visitArrayLiteralExpression(node)],
+        [ECMAScriptParser.EqualityExpressionContext, (visitor, node) => visitor.visitEqualityExpression(node)],
+        [ECMAScriptParser.ParenthesizedExpressionContext, (visitor, node) => visitor.visitParenthesizedExpression(node)],
+        [ECMAScriptParser.RelationalExpressionContext, (visitor, node) => visitor.visitRelationalExpression(node)],
+        [ECMAScriptParser.IdentifierExpressionContext, (visitor, node) => visitor.visitIdentifierExpression(node)],
+        [ECMAScriptParser.MemberNewExpressionContext, (visitor, node) => visitor.visitMemberNewExpression(node)],
+        [ECMAScriptParser.MemberDotExpressionContext, (visitor, node) => visitor.visitMemberDotExpression(node)],
+        [ECMAScriptParser.MemberIndexExpressionContext, (visitor, node) => visitor.visitMemberIndexExpression(node)],
+        [ECMAScriptParser.AssignmentOperatorExpressionContext, (visitor, node) => visitor.visitAssignmentOperatorExpression(node)],
+        [ECMAScriptParser.FunctionExpressionContext, (visitor, node) => visitor.visitFunctionExpression(node)],
+        [ECMAScriptParser.NewExpressionContext, (visitor, node) => visitor.visitNewExpression(node)],
+        [ECMAScriptParser.ArgumentsExpressionContext, (visitor, node) => visitor.visitArgumentsExpression(node)],
+        [ECMAScriptParser.MetaExpressionContext, (visitor, node) => visitor.visitMetaExpression(node)],
+        [ECMAScriptParser.VoidExpressionContext, (visitor, node) => visitor.visitVoidExpression(node)],
+        [ECMAScriptParser.PostIncrementExpressionContext, (visitor, node) => visitor.visitPostIncrementExpression(node)],
+        [ECMAScriptParser.PreIncrementExpressionContext, (visitor, node) => visitor.visitPreIncrementExpression(node)],
+        [ECMAScriptParser.PreDecreaseExpressionContext, (visitor, node) => visitor.visitPreDecreaseExpression(node)],
+        [ECMAScriptParser.PostDecreaseExpressionContext, (visitor, node) => visitor.visitPostDecreaseExpression(node)],
+        [ECMAScriptParser.ThisExpressionContext, (visitor, node) => visitor.visitThisExpression(node)],
+        [ECMAScriptParser.ClassExpressionContext, (visitor, node) => visitor.visitClassExpression(node)],
+        [ECMAScriptParser.LogicalAndExpressionContext, (visitor, node) => visitor.visitLogicalAndExpression(node)],
+        [ECMAScriptParser.LogicalOrExpressionContext, (visitor, node) => visitor.visitLogicalOrExpression(node)],
+        [ECMAScriptParser.InExpressionContext, (visitor, node) => visitor.visitInExpression(node)],
+        [ECMAScriptParser.IdentifierContext, (visitor, node) => visitor.visitIdentifier(node)],
+        [ECMAScriptParser.PowerExpressionContext, (visitor, node) => visitor.visitPowerExpression(node)],
+        [ECMAScriptParser.DeleteExpressionContext, (visitor, node) => visitor.visitDeleteExpression(node)],
+        [ECMAScriptParser.UnaryPlusExpressionContext, (visitor, node) => visitor.visitUnaryPlusExpression(node)],
+        [ECMAScriptParser.UnaryMinusExpressionContext, (visitor, node) => visitor.visitUnaryMinusExpression(node)],
+        [ECMAScriptParser.BitNotExpressionContext, (visitor, node) => visitor.visitBitNotExpression(node)],
+        [ECMAScriptParser.NotExpressionContext, (visitor, node) => visitor.visitNotExpression(node)],
+        [ECMAScriptParser.CoalesceExpressionContext, (visitor, node) => visitor.visitCoalesceExpression(node)],
+        [ECMAScriptParser.BitShiftExpressionContext, (visitor, node) => visitor.visitBitShiftExpression(node)],
+        [ECMAScriptParser.BitXOrExpressionContext, (visitor, node) => visitor.visitBitXOrExpression(node)],
+        [ECMAScriptParser.BitAndExpressionContext, (visitor, node) => visitor.visitBitAndExpression(node)],
+        [ECMAScriptParser.BitOrExpressionContext, (visitor, node) => visitor.visitBitOrExpression(node)],
+        [ECMAScriptParser.AwaitExpressionContext, (visitor, node) => visitor.visitAwaitExpression(node)],
+        [ECMAScriptParser.InstanceofExpressionContext, (visitor, node) => visitor.visitInstanceofExpression(node)],
+        [ECMAScriptParser.TypeofExpressionContext, (visitor, node) => visitor.visitTypeofExpression(node)],
+        [ECMAScriptParser.TernaryExpressionContext, (visitor, node) => visitor.visitTernaryExpression(node)],
+        [ECMAScriptParser.SuperExpressionContext, (visitor, node) => visitor.visitSuperExpression(node)],
+        [ECMAScriptParser.InlinedQueryExpressionContext, (visitor, node) => visitor.visitInlinedQueryExpression(node)],
+        [ECMAScriptParser.YieldExpressionContext, (visitor, node) => visitor.visitYieldExpression(node)],
+        [ECMAScriptParser.ImportExpressionContext, (visitor, node) => visitor.visitImportExpression(node)],
+        [ECMAScriptParser.TemplateStringExpressionContext, (visitor, node) => visitor.visitTemplateStringExpression(node)],
+    ])
+
+    // line index of the source, null when source locations are disabled
+    private lines: LineIndex | null = null
+
+    // interned names, null when interning is disabled
+    private symbols: SymbolTable | null = null
+
+    private static ruleTable<T>(entries: [number, Handler<T>][]): Handler<T>[] {
+        const table: Handler<T>[] = []
+        for (const [ruleIndex, handler] of entries) {
+            table[ruleIndex] = handler
+        }
+        return table
+    }
     private ruleTypeMap: Map<number, string> = new Map()
 
     constructor() {
@@ -292,27 +1007,220 @@ class DelvenASTVisitor extends DelvenVisitor {
         return this.ruleTypeMap.get(id)
     }
 
-    private asMarker(metadata: any) {
-        return { index: 1, line: 1, column: 1 }
+    /**
+     * Set the line index of the source being visited, `null` disables source locations
+     * @param lines 
+     */
+    setLineIndex(lines: LineIndex | null): void {
+        this.lines = lines
+    }
+
+    lineIndex(): LineIndex | null {
+        return this.lines
     }
 
-    private decorate(node: any, marker: Marker): any {
-        node.start = 0;
-        node.end = 0;
+    /**
+     * Set the symbol table used to intern names, `null` disables interning
+     * @param symbols 
+     */
+    setSymbolTable(symbols: SymbolTable | null): void {
+        this.symbols = symbols
+    }
+
+    /**
+     * Text of a token, interned from the input when a symbol table is set
+     * @param token 
+     */
+    private tokenText(token: Token): string {
+        if (this.symbols === null) {
+            return token.text
+        }
+        return this.symbols.intern(token.getInputStream(), token.start, token.stop)
+    }
+
+    private intern(text: string): string {
+        return this.symbols === null ? text : this.symbols.internString(text)
+    }
+
+    /**
+     * Text of a context that spans a single token, interned when a symbol table is set
+     * @param ctx 
+     */
+    private symbolText(ctx: RuleContext): string {
+        if (this.symbols === null || ctx.start !== ctx.stop) {
+            return ctx.getText()
+        }
+        return this.tokenText(ctx.start)
+    }
+
+    /**
+     * Set the source location of the node from the context, when locations are disabled `start` and `end` are 0
+     * 
+     * @param node 
+     * @param ctx 
+     */
+    private decorate(node: any, ctx: RuleContext): any {
+        if (this.lines === null) {
+            node.start = 0;
+            node.end = 0;
+            return node;
+        }
+        return this.span(node, ctx)
+    }
+
+    /**
+     * Set source location of a node that does not have one yet, keeps the location of nodes
+     * passed through from an inner context like parenthesized expressions.
+     * Nothing is set when locations are disabled
+     * 
+     * @param node 
+     * @param ctx context or terminal node the node was created from
+     */
+    private locate<T>(node: T, ctx: RuleContext): T {
+        if (this.lines !== null && node != null && (node as any).range === undefined) {
+            this.span(node, ctx)
+        }
+        return node
+    }
+
+    /**
+     * Set source location of a node, replacing the location set from an inner context.
+     * Nothing is set when locations are disabled
+     * 
+     * @param node 
+     * @param ctx 
+     */
+    private relocate<T>(node: T, ctx: RuleContext): T {
+        if (this.lines !== null && node != null) {
+            this.span(node, ctx)
+        }
+        return node
+    }
+
+    /**
+     * Copy the source location of the node a node was converted from, like an expression reinterpreted as a pattern
+     * 
+     * @param node 
+     * @param from 
+     */
+    private locateAs<T>(node: T, from: any): T {
+        if (this.lines !== null && node != null && from != null && from.range !== undefined) {
+            const target = node as any
+            target.start = from.start
+            target.end = from.end
+            target.range = [from.start, from.end]
+            target.loc = { start: { ...from.loc.start }, end: { ...from.loc.end } }
+        }
+        return node
+    }
+
+    /**
+     * Set source location of a function body, the braces are tokens of the parent context
+     * 
+     * @param body 
+     * @param ctx function body context
+     */
+    private locateFunctionBody(body: Node.BlockStatement, ctx: RuleContext): Node.BlockStatement {
+        if (this.lines === null) {
+            return body
+        }
+        const siblings = ctx.parentCtx != null ? ctx.parentCtx.children : null
+        const at = siblings != null ? siblings.indexOf(ctx) : -1
+        if (at > 0 && at < siblings.length - 1 && siblings[at - 1].symbol !== undefined && siblings[at + 1].symbol !== undefined) {
+            return this.spanTokens(body, siblings[at - 1].symbol, siblings[at + 1].symbol)
+        }
+        return this.locate(body, ctx)
+    }
+
+    /**
+     * Set source location of the function of a method, getter or setter, which starts at the parameters
+     * 
+     * @param value 
+     * @param ctx context holding the parameters and the body
+     */
+    private locateFunctionValue<T>(value: T, ctx: RuleContext): T {
+        if (this.lines === null) {
+            return value
+        }
+        const open = ctx.getToken(ECMAScriptParser.OpenParen, 0)
+        return this.spanTokens(value, open !== null ? open.symbol : ctx.start, ctx.stop)
+    }
+
+    /**
+     * Set `start`, `end`, `range` and `loc` from the first and last token of the context, or the token of a terminal node
+     * 
+     * @param node 
+     * @param ctx 
+     */
+    private span(node: any, ctx: any): any {
+        if (ctx.symbol !== undefined) {
+            return this.spanTokens(node, ctx.symbol, ctx.symbol)
+        }
+        return this.spanTokens(node, ctx.start, ctx.stop)
+    }
+
+    /**
+     * Set source location from the first to the last token, inclusive. Nothing is set when locations are disabled
+     * 
+     * @param node 
+     * @param first 
+     * @param last 
+     */
+    private spanTokens<T>(node: T, first: Token, last: Token | null): T {
+        if (this.lines === null || node == null) {
+            return node
+        }
+        const start = first.start
+        const end = last !== null && last.stop >= start ? last.stop + 1 : start
+        return this.spanOffsets(node, start, end)
+    }
+
+    /**
+     * Set source location from character offsets into the source
+     * 
+     * @param node 
+     * @param start 
+     * @param end exclusive
+     */
+    private spanOffsets(node: any, start: number, end: number): any {
+        const lines = this.lines as LineIndex
+        node.start = start
+        node.end = end
+        node.range = [start, end]
+        node.loc = {
+            start: lines.position(start),
+            end: lines.position(end)
+        }
         return node;
     }
 
-    private asMetadata(interval: Interval): any {
-        return {
-            start: {
-                line: 1,
-                column: interval.start,
-                offset: 0
-            },
-            end: {
-                line: 1,
-                column: interval.stop,
-                offset: 3
+    /**
+     * Move a node located in a fragment of the source, and all nodes below it, to where the fragment starts
+     * 
+     * @param node 
+     * @param offset 
+     * @param moved nodes already moved, a node can be referenced twice like the key and value of a shorthand property
+     */
+    private moveLocation(node: any, offset: number, moved: Set<any> = new Set()): void {
+        if (node === null || typeof node !== "object" || moved.has(node)) {
+            return
+        }
+        moved.add(node)
+
+        if (Array.isArray(node)) {
+            for (const element of node) {
+                this.moveLocation(element, offset, moved)
+            }
+            return
+        }
+
+        if (Array.isArray(node.range)) {
+            this.spanOffsets(node, node.start + offset, node.end + offset)
+        }
+
+        for (const key of Object.keys(node)) {
+            if (key !== "range" && key !== "loc") {
+                this.moveLocation(node[key], offset, moved)
             }
         }
     }
@@ -359,9 +1267,18 @@ class DelvenASTVisitor extends DelvenVisitor {
                 this.throwInsanceError(this.dumpContext(stm))
             }
         }
-        const interval = ctx.getSourceInterval()
+        return this.createProgram(ctx, statements)
+    }
+
+    /**
+     * Create the program node from statements that were already converted
+     * 
+     * @param ctx 
+     * @param statements 
+     */
+    createProgram(ctx: RuleContext, statements: Node.Statement[]): Node.Module {
         const script = new Node.Module(statements)
-        return this.decorate(script, this.asMarker(this.asMetadata(interval)))
+        return this.decorate(script, ctx)
     }
 
     /**
@@ -398,46 +1315,9 @@ class DelvenASTVisitor extends DelvenVisitor {
         this.assertType(ctx, ECMAScriptParser.StatementContext)
         const node: RuleContext = ctx.getChild(0)
 
-        if (node instanceof ECMAScriptParser.BlockContext) {
-            return this.visitBlock(node)
-        } else if (node instanceof ECMAScriptParser.VariableStatementContext) {
-            return this.visitVariableStatement(node)
-        } else if (node instanceof ECMAScriptParser.ImportStatementContext) {
-            return this.visitImportStatement(node)
-        } else if (node instanceof ECMAScriptParser.ExportStatementContext) {
-            return this.visitExportStatement(node)
-        } else if (node instanceof ECMAScriptParser.EmptyStatementContext) {
-            return this.visitEmptyStatement(node)
-        } else if (node instanceof ECMAScriptParser.ClassDeclarationContext) {
-            return this.visitClassDeclaration(node)
-        } else if (node instanceof ECMAScriptParser.ExpressionStatementContext) {
-            return this.visitExpressionStatement(node)
-        } else if (node instanceof ECMAScriptParser.IfStatementContext) {
-            return this.visitIfStatement(node)
-        } else if (node instanceof ECMAScriptParser.IterationStatementContext) {
-            return this.visitIterationStatement(node)
-        } else if (node instanceof ECMAScriptParser.ContinueStatementContext) {
-            return this.visitContinueStatement(node)
-        } else if (node instanceof ECMAScriptParser.BreakStatementContext) {
-            return this.visitBreakStatement(node)
-        } else if (node instanceof ECMAScriptParser.ReturnStatementContext) {
-            return this.visitReturnStatement(node)
-        } else if (node instanceof ECMAScriptParser.WithStatementContext) {
-            return this.visitWithStatement(node)
-        } else if (node instanceof ECMAScriptParser.LabelledStatementContext) {
-            return this.visitLabelledStatement(node)
-        } else if (node instanceof ECMAScriptParser.SwitchStatementContext) {
-            return this.visitSwitchStatement(node)
-        } else if (node instanceof ECMAScriptParser.ThrowStatementContext) {
-            return this.visitThrowStatement(node)
-        } else if (node instanceof ECMAScriptParser.TryStatementContext) {
-            return this.visitTryStatement(node)
-        } else if (node instanceof ECMAScriptParser.DebuggerStatementContext) {
-            return this.visitDebuggerStatement(node)
-        } else if (node instanceof ECMAScriptParser.FunctionDeclarationContext) {
-            return this.visitFunctionDeclaration(node)
-        } else if (node instanceof ECMAScriptParser.QuerySelectStatementContext) {
-            return this.visitQuerySelectStatement(node)
+        const handler = DelvenASTVisitor.statementHandlers[node.ruleIndex]
+        if (handler !== undefined) {
+            return this.locate(handler(this, node), node)
         }
 
         this.throwInsanceError(this.dumpContext(node))
@@ -451,105 +1331,9 @@ class DelvenASTVisitor extends DelvenVisitor {
     * @param node 
     */
     singleExpression(node: RuleContext): Node.Expression {
-
-        if (node instanceof ECMAScriptParser.LiteralExpressionContext) {
-            return this.visitLiteralExpression(node)
-        } else if (node instanceof ECMAScriptParser.ObjectLiteralExpressionContext) {
-            return this.visitObjectLiteralExpression(node)
-        } else if (node instanceof ECMAScriptParser.AssignmentExpressionContext) {
-            return this.visitAssignmentExpression(node)
-        } else if (node instanceof ECMAScriptParser.AdditiveExpressionContext) {
-            return this.visitAdditiveExpression(node)
-        } else if (node instanceof ECMAScriptParser.MultiplicativeExpressionContext) {
-            return this.visitMultiplicativeExpression(node)
-        } else if (node instanceof ECMAScriptParser.ArrayLiteralExpressionContext) {
-            return this.visitArrayLiteralExpression(node)
-        } else if (node instanceof ECMAScriptParser.EqualityExpressionContext) {
-            return this.visitEqualityExpression(node)
-        } else if (node instanceof ECMAScriptParser.ParenthesizedExpressionContext) {
-            return this.visitParenthesizedExpression(node)
-        } else if (node instanceof ECMAScriptParser.RelationalExpressionContext) {
-            return this.visitRelationalExpression(node)
-        } else if (node instanceof ECMAScriptParser.IdentifierExpressionContext) {
-            return this.visitIdentifierExpression(node)
-        } else if (node instanceof ECMAScriptParser.MemberNewExpressionContext) {
-            return this.visitMemberNewExpression(node)
-        } else if (node instanceof ECMAScriptParser.MemberDotExpressionContext) {
-            return this.visitMemberDotExpression(node)
-        } else if (node instanceof ECMAScriptParser.MemberIndexExpressionContext) {
-            return this.visitMemberIndexExpression(node)
-        } else if (node instanceof ECMAScriptParser.AssignmentOperatorExpressionContext) {
-            return this.visitAssignmentOperatorExpression(node)
-        } else if (node instanceof ECMAScriptParser.FunctionExpressionContext) {
-            return this.visitFunctionExpression(node)
-        } else if (node instanceof ECMAScriptParser.NewExpressionContext) {
-            return this.visitNewExpression(node)
-        } else if (node instanceof ECMAScriptParser.ArgumentsExpressionContext) {
-            return this.visitArgumentsExpression(node)
-        } else if (node instanceof ECMAScriptParser.MetaExpressionContext) {
-            return this.visitMetaExpression(node)
-        } else if (node instanceof ECMAScriptParser.VoidExpressionContext) {
-            return this.visitVoidExpression(node)
-        } else if (node instanceof ECMAScriptParser.PostIncrementExpressionContext) {
-            return this.visitPostIncrementExpression(node)
-        } else if (node instanceof ECMAScriptParser.PreIncrementExpressionContext) {
-            return this.visitPreIncrementExpression(node)
-        } else if (node instanceof ECMAScriptParser.PreDecreaseExpressionContext) {
-            return this.visitPreDecreaseExpression(node)
-        } else if (node instanceof ECMAScriptParser.PostDecreaseExpressionContext) {
-            return this.visitPostDecreaseExpression(node)
-        } else if (node instanceof ECMAScriptParser.ThisExpressionContext) {
-            return this.visitThisExpression(node)
-        } else if (node instanceof ECMAScriptParser.ClassExpressionContext) {
-            return this.visitClassExpression(node)
-        } else if (node instanceof ECMAScriptParser.LogicalAndExpressionContext) {
-            return this.visitLogicalAndExpression(node)
-        } else if (node instanceof ECMAScriptParser.LogicalOrExpressionContext) {
-            return this.visitLogicalOrExpression(node)
-        } else if (node instanceof ECMAScriptParser.InExpressionContext) {
-            return this.visitInExpression(node)
-        } else if (node instanceof ECMAScriptParser.IdentifierContext) {
-            return this.visitIdentifier(node)
-        } else if (node instanceof ECMAScriptParser.PowerExpressionContext) {
-            return this.visitPowerExpression(node)
-        } else if (node instanceof ECMAScriptParser.DeleteExpressionContext) {
-            return this.visitDeleteExpression(node)
-        } else if (node instanceof ECMAScriptParser.UnaryPlusExpressionContext) {
-            return this.visitUnaryPlusExpression(node)
-        } else if (node instanceof ECMAScriptParser.UnaryMinusExpressionContext) {
-            return this.visitUnaryMinusExpression(node)
-        } else if (node instanceof ECMAScriptParser.BitNotExpressionContext) {
-            return this.visitBitNotExpression(node)
-        } else if (node instanceof ECMAScriptParser.NotExpressionContext) {
-            return this.visitNotExpression(node)
-        } else if (node instanceof ECMAScriptParser.CoalesceExpressionContext) {
-            return this.visitCoalesceExpression(node)
-        } else if (node instanceof ECMAScriptParser.BitShiftExpressionContext) {
-            return this.visitBitShiftExpression(node)
-        } else if (node instanceof ECMAScriptParser.BitXOrExpressionContext) {
-            return this.visitBitXOrExpression(node)
-        } else if (node instanceof ECMAScriptParser.BitAndExpressionContext) {
-            return this.visitBitAndExpression(node)
-        } else if (node instanceof ECMAScriptParser.BitOrExpressionContext) {
-            return this.visitBitOrExpression(node)
-        } else if (node instanceof ECMAScriptParser.AwaitExpressionContext) {
-            return this.visitAwaitExpression(node)
-        } else if (node instanceof ECMAScriptParser.InstanceofExpressionContext) {
-            return this.visitInstanceofExpression(node)
-        } else if (node instanceof ECMAScriptParser.TypeofExpressionContext) {
-            return this.visitTypeofExpression(node)
-        } else if (node instanceof ECMAScriptParser.TernaryExpressionContext) {
-            return this.visitTernaryExpression(node)
-        } else if (node instanceof ECMAScriptParser.SuperExpressionContext) {
-            return this.visitSuperExpression(node)
-        } else if (node instanceof ECMAScriptParser.InlinedQueryExpressionContext) {
-            return this.visitInlinedQueryExpression(node)
-        } else if (node instanceof ECMAScriptParser.YieldExpressionContext) {
-            return this.visitYieldExpression(node)
-        } else if (node instanceof ECMAScriptParser.ImportExpressionContext) {
-            return this.visitImportExpression(node)
-        } else if (node instanceof ECMAScriptParser.TemplateStringExpressionContext) {
-            return this.visitTemplateStringExpression(node)
+        const handler = DelvenASTVisitor.expressionHandlers.get(node.constructor)
+        if (handler !== undefined) {
+            return this.locate(handler(this, node), node)
         }
 
         this.throwInsanceError(this.dumpContext(node))
@@ -587,7 +1371,7 @@ class DelvenASTVisitor extends DelvenVisitor {
         this.assertType(ctx, ECMAScriptParser.ImportExpressionContext)
         const expression = this.singleExpression(ctx.singleExpression())
 
-        return new Node.CallExpression(new Node.Import(), [expression])
+        return new Node.CallExpression(this.locate(new Node.Import(), ctx.getChild(0)), [expression])
     }
 
     /**
@@ -630,7 +1414,7 @@ class DelvenASTVisitor extends DelvenVisitor {
         if (moduleItemsContext) {
             const modules: ModuleSpecifier[] = this.visitModuleItems(moduleItemsContext)
             for (const spec of modules) {
-                const converted = new Node.ImportSpecifier(spec.rhs, spec.lhs)
+                const converted = this.locateAs(new Node.ImportSpecifier(spec.rhs, spec.lhs), spec)
                 specifiers.push(converted)
             }
         }
@@ -657,7 +1441,7 @@ class DelvenASTVisitor extends DelvenVisitor {
             const alias = aliases[i]
             const lhs: Node.Identifier = this.visitIdentifierName(alias.getChild(0))
             const rhs: Node.Identifier = (alias.getChildCount() == 3) ? this.visitIdentifierName(alias.getChild(2)) : null
-            specifiers.push(new ModuleSpecifier(lhs, rhs))
+            specifiers.push(this.locate(new ModuleSpecifier(lhs, rhs), alias))
         }
 
         return specifiers
@@ -681,17 +1465,17 @@ class DelvenASTVisitor extends DelvenVisitor {
     visitImportNamespace(ctx: RuleContext): Node.ImportNamespaceSpecifier | Node.ImportDefaultSpecifier {
         this.log(ctx, Trace.frame())
         this.assertType(ctx, ECMAScriptParser.ImportNamespaceContext)
-        let ident: Node.Identifier = new Node.Identifier("*")
+        let ident: Node.Identifier = this.locate(new Node.Identifier("*"), ctx.getChild(0))
         const identifierNameContext = this.getTypedRuleContext(ctx, ECMAScriptParser.IdentifierNameContext)
         if (identifierNameContext) {
             ident = this.visitIdentifierName(identifierNameContext)
         }
 
         if (ctx.getChildCount() == 1) {
-            return new Node.ImportDefaultSpecifier(ident)
+            return this.locate(new Node.ImportDefaultSpecifier(ident), ctx)
         }
 
-        return new Node.ImportNamespaceSpecifier(ident)
+        return this.locate(new Node.ImportNamespaceSpecifier(ident), ctx)
     }
 
     visitImportDefault(ctx: RuleContext): Node.ImportDefaultSpecifier {
@@ -699,7 +1483,7 @@ class DelvenASTVisitor extends DelvenVisitor {
         this.assertType(ctx, ECMAScriptParser.ImportDefaultContext)
         const identifierNameContext = this.getTypedRuleContext(ctx.aliasName(), ECMAScriptParser.IdentifierNameContext)
         const ident = this.visitIdentifierName(identifierNameContext)
-        return new Node.ImportDefaultSpecifier(ident)
+        return this.locate(new Node.ImportDefaultSpecifier(ident), ctx.aliasName())
     }
 
     /**
@@ -859,7 +1643,7 @@ class DelvenASTVisitor extends DelvenVisitor {
         if (moduleItemsContext) {
             const moduleItems: ModuleSpecifier[] = this.visitModuleItems(moduleItemsContext);
             for (const spec of moduleItems) {
-                specifiers.push(new Node.ExportSpecifier(spec.lhs, spec.rhs))
+                specifiers.push(this.locateAs(new Node.ExportSpecifier(spec.lhs, spec.rhs), spec))
             }
         }
 
@@ -954,7 +1738,7 @@ class DelvenASTVisitor extends DelvenVisitor {
                 this.throwInsanceError(this.dumpContext(node))
             }
         }
-        return this.decorate(new Node.BlockStatement(body), this.asMarker(this.asMetadata(ctx.getSourceInterval())))
+        return this.decorate(new Node.BlockStatement(body), ctx)
     }
 
     /**
@@ -989,7 +1773,8 @@ class DelvenASTVisitor extends DelvenVisitor {
         this.assertType(ctx, ECMAScriptParser.VariableStatementContext)
         const node = this.getTypedRuleContext(ctx, ECMAScriptParser.VariableDeclarationListContext)
 
-        return this.visitVariableDeclarationList(node)
+        // the declaration ends with the statement, including the semicolon
+        return this.relocate(this.visitVariableDeclarationList(node), ctx)
     }
 
     /**
@@ -1036,7 +1821,7 @@ class DelvenASTVisitor extends DelvenVisitor {
                 declarations.push(this.visitVariableDeclaration(node))
             }
         }
-        return new Node.VariableDeclaration(declarations, varModifier)
+        return this.locate(new Node.VariableDeclaration(declarations, varModifier), ctx)
     }
 
     /**
@@ -1057,7 +1842,7 @@ class DelvenASTVisitor extends DelvenVisitor {
             init = this.singleExpression(ctx.getChild(2))
         }
 
-        return new Node.VariableDeclarator(assignable, init)
+        return this.locate(new Node.VariableDeclarator(assignable, init), ctx)
     }
 
     // Visit a parse tree produced by ECMAScriptParser#emptyStatement.
@@ -1381,7 +2166,7 @@ class DelvenASTVisitor extends DelvenVisitor {
         const test: Expression = this.coerceToExpressionOrSequence(this.visitExpressionSequence(sequenceCtx))
         const consequent: Statement[] = statementCtx ? this.visitStatementList(statementCtx) : []
 
-        return new Node.SwitchCase(test, consequent)
+        return this.locate(new Node.SwitchCase(test, consequent), ctx)
     }
 
     /**
@@ -1401,7 +2186,7 @@ class DelvenASTVisitor extends DelvenVisitor {
         const statementCtx = this.getTypedRuleContext(ctx, ECMAScriptParser.StatementListContext)
         const consequent: Statement[] = statementCtx ? this.visitStatementList(statementCtx) : []
 
-        return new Node.SwitchCase(null, consequent)
+        return this.locate(new Node.SwitchCase(null, consequent), ctx)
     }
 
     /**
@@ -1485,7 +2270,7 @@ class DelvenASTVisitor extends DelvenVisitor {
         const param: Node.BindingIdentifier | Node.BindingPattern | null = (assignableCtx == null) ? null : this.visitAssignable(assignableCtx)
         const body: Node.BlockStatement = this.visitBlock(this.getTypedRuleContext(ctx, ECMAScriptParser.BlockContext))
 
-        return new Node.CatchClause(param, body)
+        return this.locate(new Node.CatchClause(param, body), ctx)
     }
 
     /**
@@ -1580,9 +2365,9 @@ class DelvenASTVisitor extends DelvenVisitor {
         }
 
         if (isAsync) {
-            return new Node.AsyncFunctionDeclaration(identifier, params, body, isGenerator)
+            return this.locate(new Node.AsyncFunctionDeclaration(identifier, params, body, isGenerator), ctx)
         } else {
-            return new Node.FunctionDeclaration(identifier, params, body, isGenerator)
+            return this.locate(new Node.FunctionDeclaration(identifier, params, body, isGenerator), ctx)
         }
     }
 
@@ -1593,6 +2378,69 @@ class DelvenASTVisitor extends DelvenVisitor {
         return this.visitFunctionDeclaration(ctx.getChild(0))
     }
 
+    /**
+     * Function body that was only brace matched by the parser, `body` is parsed on first access.
+     * The body is lexed again from the original character stream so positions are the same as in an eager parse.
+     * 
+     * @param ctx 
+     */
+    private createLazyFunctionBody(ctx: RuleContext): Node.BlockStatement {
+        const tokens = ctx.parser.getTokenStream()
+        const first = tokens.get(ctx.lazy.start)
+        // the body is lexed in the strict mode of the scope it is in, a new lexer starts out non strict
+        const strict = tokens.getTokenSource().isStrictModeAt(ctx.lazy.start)
+        const lines = this.lines
+        const symbols = this.symbols
+        const parse = (): Node.Statement[] => {
+            // the stream can still be read by the parser of the program, like when statements are streamed,
+            // its position is put back once the body is parsed
+            const chars = first.getInputStream()
+            const index = chars.index
+            chars.seek(first.start)
+            const errorHandler = new DelvenErrorListener()
+            const lexer = new DelvenLexer(chars)
+            lexer._interp.line = first.line
+            lexer._interp.column = first.column
+            lexer.setUseStrictDefault(strict)
+            lexer.removeErrorListeners()
+            lexer.addErrorListener(errorHandler)
+
+            const parser = new DelvenParser(new antlr4.CommonTokenStream(lexer))
+            parser.removeErrorListeners()
+            parser.addErrorListener(errorHandler)
+            parser.setTrace(false)
+            parser.setLazyFunctionBodies(true)
+
+            const saved = [this.lines, this.symbols] as const
+            this.lines = lines
+            this.symbols = symbols
+            try {
+                const sourceElements = parser.functionBody().sourceElements()
+                return sourceElements ? this.visitSourceElements(sourceElements) : []
+            } finally {
+                [this.lines, this.symbols] = saved
+                chars.seek(index)
+            }
+        }
+
+        // once read or assigned, `body` is a plain property like on an eagerly parsed block
+        const block = new Node.BlockStatement([])
+        const settle = (body: Node.Statement[]) => {
+            Object.defineProperty(block, "body", { value: body, enumerable: true, writable: true, configurable: true })
+        }
+        Object.defineProperty(block, "body", {
+            enumerable: true,
+            configurable: true,
+            get: () => {
+                const body = parse()
+                settle(body)
+                return body
+            },
+            set: settle
+        })
+        return block
+    }
+
     /**
      * Visit a parse tree produced by ECMAScriptParser#functionBody.
      * 
@@ -1606,6 +2454,10 @@ class DelvenASTVisitor extends DelvenVisitor {
     visitFunctionBody(ctx: RuleContext): Node.BlockStatement {
         this.log(ctx, Trace.frame())
         this.assertType(ctx, ECMAScriptParser.FunctionBodyContext)
+        if (ctx.lazy !== undefined && ctx.lazy.start < ctx.lazy.stop) {
+            return this.locateFunctionBody(this.createLazyFunctionBody(ctx), ctx)
+        }
+
         const sourceElements = ctx.sourceElements()
         let body: Node.Statement[] = [];
         if (sourceElements) {
@@ -1613,7 +2465,7 @@ class DelvenASTVisitor extends DelvenVisitor {
             body = [...statements]
         }
 
-        return new Node.BlockStatement(body)
+        return this.locateFunctionBody(new Node.BlockStatement(body), ctx)
     }
 
     /**
@@ -1728,7 +2580,7 @@ class DelvenASTVisitor extends DelvenVisitor {
             return this.singleExpression(ctx.getChild(0))
         } else {
             const expression = this.singleExpression(ctx.getChild(1))
-            return new Node.SpreadElement(expression)
+            return this.locate(new Node.SpreadElement(expression), ctx)
         }
     }
 
@@ -1764,7 +2616,7 @@ class DelvenASTVisitor extends DelvenVisitor {
         this.log(ctx, Trace.frame())
         this.assertType(ctx, ECMAScriptParser.ObjectLiteralContext)
         if (ctx.getChildCount() == 2) {
-            return new Node.ObjectExpression([])
+            return this.locate(new Node.ObjectExpression([]), ctx)
         }
 
         const nodes = this.filterSymbols(ctx)
@@ -1790,7 +2642,7 @@ class DelvenASTVisitor extends DelvenVisitor {
             }
         }
 
-        return new Node.ObjectExpression(properties)
+        return this.locate(new Node.ObjectExpression(properties), ctx)
     }
 
     /**
@@ -1839,13 +2691,13 @@ class DelvenASTVisitor extends DelvenVisitor {
             const assignable: Node.AssignmentExpression = expression
             key = assignable.left as Node.PropertyKey
             if (this.isPropertyValue(assignable.right)) {
-                value = new Node.AssignmentPattern(key, assignable.right)
+                value = this.locateAs(new Node.AssignmentPattern(key, assignable.right), assignable)
             } else {
                 throw new TypeError("Unable to convert property shorthand")
             }
         } else {
             if (hasEllipsis) {
-                return new Node.SpreadElement(expression)
+                return this.locate(new Node.SpreadElement(expression), ctx)
             } else {
                 key = expression
             }
@@ -1855,7 +2707,7 @@ class DelvenASTVisitor extends DelvenVisitor {
             value = key
         }
 
-        return new Node.Property("init", key, computed, value, method, shorthand)
+        return this.locate(new Node.Property("init", key, computed, value, method, shorthand), ctx)
     }
 
     /**
@@ -1973,7 +2825,7 @@ class DelvenASTVisitor extends DelvenVisitor {
             expression = new Node.FunctionExpression(null, params, body, isGenerator)
         }
 
-        return new Node.Property("init", key, computed, expression, method, shorthand)
+        return this.locate(new Node.Property("init", key, computed, this.locateFunctionValue(expression, ctx), method, shorthand), ctx)
     }
 
     /**
@@ -2020,7 +2872,7 @@ class DelvenASTVisitor extends DelvenVisitor {
         const key: Node.PropertyKey = this.visitPropertyName(propNode)
         const value: Node.Expression = this.singleExpression(ctx.getChild(2))
 
-        return new Node.Property("init", key, computed, value, method, shorthand)
+        return this.locate(new Node.Property("init", key, computed, value, method, shorthand), ctx)
     }
 
 
@@ -2043,9 +2895,9 @@ class DelvenASTVisitor extends DelvenVisitor {
         const bodyContext = this.getTypedRuleContext(ctx, ECMAScriptParser.FunctionBodyContext);
         const { computed, key } = this.visitGetter(getterContext)
         const body = this.visitFunctionBody(bodyContext)
-        const value = new Node.FunctionExpression(null, [], body, false)
+        const value = this.locateFunctionValue(new Node.FunctionExpression(null, [], body, false), ctx)
 
-        return new Node.Property("get", key, computed, value, false, false)
+        return this.locate(new Node.Property("get", key, computed, value, false, false), ctx)
     }
 
     /**
@@ -2075,9 +2927,9 @@ class DelvenASTVisitor extends DelvenVisitor {
         }
         const { computed, key } = this.visitSetter(setterContext)
         const body = this.visitFunctionBody(bodyContext)
-        const value = new Node.FunctionExpression(null, params, body, false)
+        const value = this.locateFunctionValue(new Node.FunctionExpression(null, params, body, false), ctx)
 
-        return new Node.Property("set", key, computed, value, false, false)
+        return this.locate(new Node.Property("set", key, computed, value, false, false), ctx)
     }
 
     /**
@@ -2129,9 +2981,23 @@ class DelvenASTVisitor extends DelvenVisitor {
         throw new TypeError("Unhandled type")
     }
 
+    /**
+     * String literal, when a symbol table is set the value is interned straight from the characters between the quotes
+     * @param node 
+     */
     private createStringLiteral(node: RuleContext): Node.Literal {
-        const raw = node.getText()
-        return this.createLiteralValue(node, raw.replace(/"/g, "").replace(/'/g, ""), raw)
+        const symbol = node.symbol
+        const raw = symbol.text
+        const last = raw.length - 1
+        const quoted = (quote: string) => {
+            const index = raw.indexOf(quote, 1)
+            return index !== -1 && index !== last
+        }
+
+        if (this.symbols === null || quoted('"') || quoted("'")) {
+            return this.createLiteralValue(node, this.intern(raw.replace(/"/g, "").replace(/'/g, "")), raw)
+        }
+        return this.createLiteralValue(node, this.symbols.intern(symbol.getInputStream(), symbol.start + 1, symbol.stop - 1), raw)
     }
 
     /**
@@ -2181,7 +3047,7 @@ class DelvenASTVisitor extends DelvenVisitor {
         if (ctx.getChildCount() == 1) {
             return evalNode(ctx.getChild(0))
         } else {
-            return new Node.SpreadElement(evalNode(ctx.getChild(1)))
+            return this.locate(new Node.SpreadElement(evalNode(ctx.getChild(1))), ctx)
         }
     }
 
@@ -2202,7 +3068,7 @@ class DelvenASTVisitor extends DelvenVisitor {
         for (const node of this.filterSymbols(ctx)) {
             expressions.push(this.singleExpression(node))
         }
-        return this.decorate(new Node.SequenceExpression(expressions), this.asMarker(this.asMetadata(ctx.getSourceInterval())))
+        return this.decorate(new Node.SequenceExpression(expressions), ctx)
     }
 
     /**
@@ -2248,7 +3114,7 @@ class DelvenASTVisitor extends DelvenVisitor {
         const identifierContext = this.getTypedRuleContext(ctx, ECMAScriptParser.IdentifierContext)
         const identifier = this.visitIdentifier(identifierContext)
 
-        return new Node.MetaProperty(new Node.Identifier('new'), identifier)
+        return new Node.MetaProperty(this.locate(new Node.Identifier('new'), ctx.getChild(0)), identifier)
     }
 
     /**
@@ -2268,7 +3134,7 @@ class DelvenASTVisitor extends DelvenVisitor {
         const identifier: Node.Identifier = this.visitIdentifier(ctx.getChild(1))
         const tail: ClassTail = this.visitClassTail(ctx.getChild(2))
 
-        return new Node.ClassDeclaration(identifier, tail.superClass, tail.body)
+        return this.locate(new Node.ClassDeclaration(identifier, tail.superClass, tail.body), ctx)
     }
 
     /**
@@ -2299,7 +3165,9 @@ class DelvenASTVisitor extends DelvenVisitor {
             heritage = this.singleExpression(classHeritageContext.singleExpression())
         }
 
-        return new ClassTail(heritage, new Node.ClassBody(classElements))
+        // the body starts at the brace, after the heritage
+        const body = this.spanTokens(new Node.ClassBody(classElements), ctx.getToken(ECMAScriptParser.OpenBrace, 0).symbol, ctx.stop)
+        return new ClassTail(heritage, body)
     }
 
     /**
@@ -2325,16 +3193,16 @@ class DelvenASTVisitor extends DelvenVisitor {
         if (methodDefinitionContext) {
             return this.visitMethodDefinition(methodDefinitionContext)
         } else if (emptyStatementContext) {
-            return new Node.EmptyStatement()
+            return this.locate(new Node.EmptyStatement(), emptyStatementContext)
         } else if (propertyNameContext) {
             if (this.hasToken(ctx, ECMAScriptParser.Hashtag)) {
                 const name = this.visitPropertyName(ctx.getChild(1))
                 const expression = this.singleExpression(ctx.getChild(3))
-                return new Node.ClassPrivateProperty(name, expression)
+                return this.locate(new Node.ClassPrivateProperty(name, expression), ctx)
             } else {
                 const name = this.visitPropertyName(ctx.getChild(0))
                 const expression = this.singleExpression(ctx.getChild(2))
-                return new Node.ClassProperty(name, expression)
+                return this.locate(new Node.ClassProperty(name, expression), ctx)
             }
         }
 
@@ -2440,7 +3308,8 @@ class DelvenASTVisitor extends DelvenVisitor {
             value = this.crateFunctionExpression(null, params, body, isAsync, isGenerator)
         }
 
-        return new Node.MethodDefinition(key, computed, value, kind, isStatic)
+        // `static` and `async` are part of the class element
+        return this.locate(new Node.MethodDefinition(key, computed, this.locateFunctionValue(value, ctx), kind, isStatic), ctx.parentCtx)
     }
 
     private crateFunctionExpression(id: Node.Identifier | null, params: Node.FunctionParameter[], body: Node.BlockStatement, isAsync: boolean, isGenerator: boolean): Node.FunctionExpression | Node.AsyncFunctionExpression {
@@ -2523,7 +3392,7 @@ class DelvenASTVisitor extends DelvenVisitor {
         } else {
             const assignable = this.visitAssignable(ctx.getChild(0))
             const expression = this.singleExpression(ctx.getChild(2))
-            return new Node.AssignmentPattern(assignable, expression)
+            return this.locate(new Node.AssignmentPattern(assignable, expression), ctx)
         }
     }
 
@@ -2553,11 +3422,11 @@ class DelvenASTVisitor extends DelvenVisitor {
         if (assignable instanceof ECMAScriptParser.ArrayLiteralContext) {
             const elements = this.visitArrayLiteral(assignable)
             const converted = this.convertToArrayPatternElements(elements)
-            return new Node.ArrayPattern(converted)
+            return this.locate(new Node.ArrayPattern(converted), assignable)
         } else if (assignable instanceof ECMAScriptParser.ObjectLiteralContext) {
             const elements = this.visitObjectLiteral(assignable)
             const converted = this.convertToObjectPatternProperty(elements.properties)
-            return new Node.ObjectPattern(converted)
+            return this.locate(new Node.ObjectPattern(converted), assignable)
         } else {
             return this.visitIdentifier(assignable)
         }
@@ -2572,7 +3441,7 @@ class DelvenASTVisitor extends DelvenVisitor {
         if (!(argument instanceof Node.Identifier || argument instanceof Node.ArrayPattern || argument instanceof Node.ObjectPattern)) {
             throw new TypeError("Unable to convert to RestElement : " + argument.constructor)
         }
-        return new Node.RestElement(argument)
+        return this.locateAs(new Node.RestElement(argument), element)
     }
 
     /**
@@ -2588,7 +3457,7 @@ class DelvenASTVisitor extends DelvenVisitor {
         const expression = this.singleExpression(ctx.getChild(1))
 
         //Identifier | ArrayPattern  
-        return new Node.RestElement(expression)
+        return this.locate(new Node.RestElement(expression), ctx)
     }
 
     /**
@@ -2671,9 +3540,10 @@ class DelvenASTVisitor extends DelvenVisitor {
      * @param ctx 
      */
     _binaryExpression(ctx: RuleContext): Node.BinaryExpression {
-        const lhs = this._visitBinaryExpression(ctx.getChild(0))
+        // operands do not go through the dispatch table, which would locate them
+        const lhs = this.locate(this._visitBinaryExpression(ctx.getChild(0)), ctx.getChild(0))
         const operator = ctx.getChild(1).getText()
-        const rhs = this._visitBinaryExpression(ctx.getChild(2))
+        const rhs = this.locate(this._visitBinaryExpression(ctx.getChild(2)), ctx.getChild(2))
 
         return new Node.BinaryExpression(operator, lhs, rhs)
     }
@@ -2776,9 +3646,9 @@ class DelvenASTVisitor extends DelvenVisitor {
 
         // FunctionDeclaration | AsyncFunctionDeclaration  
         if (exp instanceof Node.AsyncFunctionDeclaration) {
-            return new Node.AsyncFunctionExpression(exp.id, exp.params, exp.body)
+            return this.locateAs(new Node.AsyncFunctionExpression(exp.id, exp.params, exp.body), exp)
         } else if (exp instanceof Node.FunctionDeclaration) {
-            return new Node.FunctionExpression(exp.id, exp.params, exp.body, exp.generator)
+            return this.locateAs(new Node.FunctionExpression(exp.id, exp.params, exp.body, exp.generator), exp)
         }
         return exp;
     }
@@ -2831,9 +3701,9 @@ class DelvenASTVisitor extends DelvenVisitor {
         const { isAsync } = this.getFunctionAttributes(ctx)
 
         if (isAsync) {
-            return new Node.AsyncArrowFunctionExpression(params, body, expression)
+            return this.locate(new Node.AsyncArrowFunctionExpression(params, body, expression), ctx)
         } else {
-            return new Node.ArrowFunctionExpression(params, body, expression)
+            return this.locate(new Node.ArrowFunctionExpression(params, body, expression), ctx)
         }
     }
 
@@ -2885,7 +3755,7 @@ class DelvenASTVisitor extends DelvenVisitor {
         if (ctx.getChildCount() == 3) {
             const bodyContext = this.getTypedRuleContext(ctx, ECMAScriptParser.FunctionBodyContext)
             if (bodyContext.getChildCount() == 0) {
-                return new BlockStatement([])
+                return this.locate(new BlockStatement([]), ctx)
             }
             return this.visitFunctionBody(bodyContext)
         } else {
@@ -2938,7 +3808,7 @@ class DelvenASTVisitor extends DelvenVisitor {
         if (!(expression instanceof Node.ArrayExpression)) {
             throw new TypeError("Expected ArrayExpression")
         }
-        return new Node.ArrayPattern(this.convertToArrayPatternElements(expression.elements))
+        return this.locateAs(new Node.ArrayPattern(this.convertToArrayPatternElements(expression.elements)), expression)
     }
 
     /**
@@ -2962,13 +3832,13 @@ class DelvenASTVisitor extends DelvenVisitor {
             } else if (node instanceof Node.SpreadElement) {
                 const arg = node.argument
                 if (this.isBindingIdentifierOrBindingPattern(arg)) {
-                    conversion.push(new RestElement(arg))
+                    conversion.push(this.locateAs(new RestElement(arg), node))
                 } else if (arg instanceof Node.ArrayExpression) {
-                    const pattern = new Node.ArrayPattern(this.convertToArrayPatternElements(arg.elements))
-                    conversion.push(new RestElement(pattern))
+                    const pattern = this.locateAs(new Node.ArrayPattern(this.convertToArrayPatternElements(arg.elements)), arg)
+                    conversion.push(this.locateAs(new RestElement(pattern), node))
                 } else if (arg instanceof Node.ObjectExpression) {
-                    const pattern = new Node.ObjectPattern(this.convertToObjectPatternProperty(arg.properties))
-                    conversion.push(new Node.RestElement(pattern))
+                    const pattern = this.locateAs(new Node.ObjectPattern(this.convertToObjectPatternProperty(arg.properties)), arg)
+                    conversion.push(this.locateAs(new Node.RestElement(pattern), node))
                 } else {
                     throw new TypeError("Invalid type received got : " + node.constructor)
                 }
@@ -2977,14 +3847,14 @@ class DelvenASTVisitor extends DelvenVisitor {
                 if (this.isBindingIdentifierOrBindingPattern(node)) {
                     conversion.push(node)
                 } else if (node instanceof Node.ArrayExpression) {
-                    const pattern = new Node.ArrayPattern(this.convertToArrayPatternElements(node.elements))
+                    const pattern = this.locateAs(new Node.ArrayPattern(this.convertToArrayPatternElements(node.elements)), node)
                     conversion.push(pattern)
                 } else if (node instanceof Node.ObjectExpression) {
-                    const pattern = new Node.ObjectPattern(this.convertToObjectPatternProperty(node.properties))
+                    const pattern = this.locateAs(new Node.ObjectPattern(this.convertToObjectPatternProperty(node.properties)), node)
                     conversion.push(pattern)
                 } else if (node instanceof Node.AssignmentExpression) {
                     if (this.isBindingIdentifierOrBindingPattern(node.left)) {
-                        const pattern = new Node.AssignmentPattern(node.left, node.right)
+                        const pattern = this.locateAs(new Node.AssignmentPattern(node.left, node.right), node)
                         conversion.push(pattern)
                     } else {
                         throw new TypeError("Invalid type received got : " + node.constructor)
@@ -3009,8 +3879,8 @@ class DelvenASTVisitor extends DelvenVisitor {
                 const value = node.value;
                 // ObjectExpression ArrayExpression
                 if (value instanceof Node.ArrayExpression) {
-                    const pattern = new Node.ArrayPattern(this.convertToArrayPatternElements(value.elements))
-                    conversion.push(new Node.Property(node.kind, node.key, node.computed, pattern, node.method, node.shorthand))
+                    const pattern = this.locateAs(new Node.ArrayPattern(this.convertToArrayPatternElements(value.elements)), value)
+                    conversion.push(this.locateAs(new Node.Property(node.kind, node.key, node.computed, pattern, node.method, node.shorthand), node))
                 } else if (value instanceof Node.ObjectExpression) {
                     const properties: Node.ObjectPatternProperty[] = []
                     for (const prop of value.properties) {
@@ -3022,12 +3892,12 @@ class DelvenASTVisitor extends DelvenVisitor {
                             throw new TypeError("Invalid Objecty Pattern Type")
                         }
                     }
-                    const pattern = new Node.ObjectPattern(properties)
-                    conversion.push(new Node.Property(node.kind, node.key, node.computed, pattern, node.method, node.shorthand))
+                    const pattern = this.locateAs(new Node.ObjectPattern(properties), value)
+                    conversion.push(this.locateAs(new Node.Property(node.kind, node.key, node.computed, pattern, node.method, node.shorthand), node))
                 } else if (value instanceof Node.AssignmentExpression) {
                     if (this.isBindingIdentifierOrBindingPattern(value.left)) {
-                        const pattern = new Node.AssignmentPattern(value.left, value.right)
-                        conversion.push(new Node.Property(node.kind, node.key, node.computed, pattern, node.method, node.shorthand))
+                        const pattern = this.locateAs(new Node.AssignmentPattern(value.left, value.right), value)
+                        conversion.push(this.locateAs(new Node.Property(node.kind, node.key, node.computed, pattern, node.method, node.shorthand), node))
                     } else {
                         throw new TypeError("Invalid type received got : " + node.constructor)
                     }
@@ -3296,8 +4166,8 @@ class DelvenASTVisitor extends DelvenVisitor {
         const left = ctx.getChild(0)
         const operator = ctx.getChild(1).getText() // No type ( +,- )
         const right = ctx.getChild(2)
-        const lhs = this._visitBinaryExpression(left)
-        const rhs = this._visitBinaryExpression(right)
+        const lhs = this.locate(this._visitBinaryExpression(left), left)
+        const rhs = this.locate(this._visitBinaryExpression(right), right)
         return new BinaryExpression(operator, lhs, rhs)
     }
 
@@ -3491,13 +4361,13 @@ class DelvenASTVisitor extends DelvenVisitor {
         const expression: Node.Expression = this.singleExpression(ctx.singleExpression())
 
         if (expression instanceof Node.CallExpression) {
-            const converted = new Node.NewExpression(expression.callee, expression.arguments)
-            const memberexp = new Node.StaticMemberExpression(converted, identifier)
+            const converted = this.spanTokens(new Node.NewExpression(expression.callee, expression.arguments), ctx.start, ctx.singleExpression().stop)
+            const memberexp = this.spanTokens(new Node.StaticMemberExpression(converted, identifier), ctx.start, identifierNameContext.stop)
 
             return new Node.CallExpression(memberexp, args)
         }
 
-        const memberexp = new Node.StaticMemberExpression(expression, identifier)
+        const memberexp = this.spanTokens(new Node.StaticMemberExpression(expression, identifier), ctx.singleExpression().start, identifierNameContext.stop)
         return new Node.NewExpression(memberexp, args)
     }
 
@@ -3532,9 +4402,9 @@ class DelvenASTVisitor extends DelvenVisitor {
         this.assertType(ctx, ECMAScriptParser.IdentifierExpressionContext)
         this.assertNodeCount(ctx, 1)
         const initialiser = ctx.getChild(0)
-        const name = initialiser.getText()
+        const name = this.symbolText(initialiser)
 
-        return new Node.Identifier(name)
+        return this.locate(new Node.Identifier(name), ctx)
     }
 
     /**
@@ -3546,7 +4416,7 @@ class DelvenASTVisitor extends DelvenVisitor {
     visitIdentifier(ctx: RuleContext): Node.Identifier {
         this.log(ctx, Trace.frame())
         this.assertType(ctx, ECMAScriptParser.IdentifierContext)
-        const txt = ctx.getChild(0).getText()
+        const txt = this.symbolText(ctx)
 
         const decodeCodePoint = (text: string) => {
             // \u{41}  : Unicode code point sequences
@@ -3564,8 +4434,8 @@ class DelvenASTVisitor extends DelvenVisitor {
             return buffer
         }
 
-        const ident = decodeCodePoint(txt)
-        return new Node.Identifier(ident)
+        const ident = txt.indexOf('\\') === -1 ? txt : decodeCodePoint(txt)
+        return this.locate(new Node.Identifier(ident), ctx)
     }
 
     /**
@@ -3630,14 +4500,13 @@ class DelvenASTVisitor extends DelvenVisitor {
         if (node.getChildCount() == 0) {
             const symbol = node.symbol
             const state = symbol.type
-            const raw = node.getText()
             switch (state) {
                 case ECMAScriptParser.NullLiteral:
                     return this.createLiteralValue(node, null, "null")
                 case ECMAScriptParser.BooleanLiteral:
-                    return this.createLiteralValue(node, raw === 'true', raw)
+                    return this.createLiteralValue(node, symbol.text === 'true', symbol.text)
                 case ECMAScriptParser.StringLiteral:
-                    return this.createLiteralValue(node, raw.replace(/"/g, "").replace(/'/g, ""), raw)
+                    return this.createStringLiteral(node)
                 case ECMAScriptParser.TemplateStringLiteral:
                     return this.createTemplateLiteral(node)
                 case ECMAScriptParser.RegularExpressionLiteral:
@@ -3665,12 +4534,12 @@ class DelvenASTVisitor extends DelvenVisitor {
         this.assertNodeCount(ctx, 1)
         const value = ctx.getText()
         const literal = new Node.Literal(Number(value), value)
-        return this.decorate(literal, this.asMarker(this.asMetadata(ctx.getSourceInterval())))
+        return this.decorate(literal, ctx)
     }
 
     private createLiteralValue(ctx: RuleContext, value: boolean | number | string | null, raw: string): Node.Literal {
         const literal = new Node.Literal(value, raw)
-        return this.decorate(literal, this.asMarker(this.asMetadata(ctx.getSourceInterval())))
+        return this.decorate(literal, ctx)
     }
 
     private createRegularExpressionLiteral(ctx: RuleContext): Node.RegexLiteral {
@@ -3680,7 +4549,7 @@ class DelvenASTVisitor extends DelvenVisitor {
         const pattern = txt.substring(txt.indexOf('/') + 1, txt.lastIndexOf('/'))
         const flags = txt.substring(txt.lastIndexOf('/') + 1)
 
-        return new RegexLiteral(new RegExp("", ""), raw, pattern, flags)
+        return this.locate(new RegexLiteral(new RegExp("", ""), raw, pattern, flags), ctx)
     }
 
     /**
@@ -3699,12 +4568,26 @@ class DelvenASTVisitor extends DelvenVisitor {
         const quasis: Node.TemplateElement[] = [];
         const txt = ctx.getText()
         const literal = txt.substring(txt.indexOf('`') + 1, txt.lastIndexOf('`'))
-        const evalTemplateLiteral = (fragment: string) => {
+        // offset of the literal text in the source
+        const base = ctx.symbol.start + txt.indexOf('`') + 1
+        const evalTemplateLiteral = (fragment: string, offset: number) => {
             const chars = new antlr4.InputStream(fragment)
             const lexer = new DelvenLexer(chars)
             const parser = new DelvenParser(new antlr4.CommonTokenStream(lexer))
             const tree = parser.singleExpression()
-            return tree.accept(this)
+            // nodes are located in the fragment and then moved to where the fragment is in the source
+            const lines = this.lines
+            this.lines = lines !== null ? new LineIndex(chars) : null
+            let expression
+            try {
+                expression = tree.accept(this)
+            } finally {
+                this.lines = lines
+            }
+            if (lines !== null) {
+                this.moveLocation(expression, offset)
+            }
+            return expression
         }
 
         const regex = /\${(.+?)\}/gi;
@@ -3718,18 +4601,27 @@ class DelvenASTVisitor extends DelvenVisitor {
             }
 
             const raw = literal.substring(pos, m.index)
+            const element = new Node.TemplateElement({ raw: raw, cooked: raw }, false)
+            if (this.lines !== null) {
+                this.spanOffsets(element, base + pos, base + m.index)
+            }
             pos = m[0].length + m.index
-            expressions.push(evalTemplateLiteral(m[1]))
-            quasis.push(new Node.TemplateElement({ raw: raw, cooked: raw }, false))
+            // the expression follows `${`
+            expressions.push(evalTemplateLiteral(m[1], base + m.index + 2))
+            quasis.push(element)
         }
 
         // check for tail
         if (pos < literal.length) {
             const raw = literal.substring(pos)
-            quasis.push(new Node.TemplateElement({ raw: raw, cooked: raw }, true))
+            const element = new Node.TemplateElement({ raw: raw, cooked: raw }, true)
+            if (this.lines !== null) {
+                this.spanOffsets(element, base + pos, base + literal.length)
+            }
+            quasis.push(element)
         }
 
-        return new Node.TemplateLiteral(quasis, expressions)
+        return this.locate(new Node.TemplateLiteral(quasis, expressions), ctx)
     }
 
     /**
@@ -3764,9 +4656,9 @@ class DelvenASTVisitor extends DelvenVisitor {
         this.log(ctx, Trace.frame())
         this.assertType(ctx, ECMAScriptParser.IdentifierNameContext)
         this.assertNodeCount(ctx, 1)
-        const value = ctx.getText()
+        const value = this.symbolText(ctx)
         const identifier = new Node.Identifier(value)
-        return this.decorate(identifier, this.asMarker(this.asMetadata(ctx.getSourceInterval())))
+        return this.decorate(identifier, ctx)
     }
 
     /**
@@ -3920,7 +4812,7 @@ class DelvenASTVisitor extends DelvenVisitor {
             argument = this.coerceToExpressionOrSequence(sequence)
         }
 
-        return new Node.YieldExpression(argument, delegate)
+        return this.locate(new Node.YieldExpression(argument, delegate), ctx)
     }
 
 
@@ -3938,7 +4830,7 @@ class DelvenASTVisitor extends DelvenVisitor {
         const bindable = this.getTypedRuleContext(ctx, ECMAScriptParser.QueryExpressionContext)
         const expression = this.visitQueryExpression(bindable)
 
-        return new Node.SelectStatement(expression)
+        return this.locate(new Node.SelectStatement(expression), ctx)
     }
 
 
@@ -3963,17 +4855,17 @@ class DelvenASTVisitor extends DelvenVisitor {
         const selectClause = this.visitQuerySelectListExpression(selectListContext)
         const whereClause = whereContext != null ? this.visitQueryWhereExpression(whereContext) : null
 
-        return new Node.QueryExpression(selectClause, fromClause, whereClause)
+        return this.locate(new Node.QueryExpression(selectClause, fromClause, whereClause), ctx)
     }
 
     visitQuerySelectListExpression(ctx: RuleContext): Node.SelectClause {
         this.log(ctx, Trace.frame())
         this.assertType(ctx, ECMAScriptParser.QuerySelectListExpressionContext)
 
-        const itema = new Node.SelectItemExpression(new Node.Identifier("a"))
-        const itemb = new Node.SelectItemExpression(new Node.Identifier("b"))
+        const itema = this.locate(new Node.SelectItemExpression(this.locate(new Node.Identifier("a"), ctx)), ctx)
+        const itemb = this.locate(new Node.SelectItemExpression(this.locate(new Node.Identifier("b"), ctx)), ctx)
 
-        const selectClause: Node.SelectClause = new Node.SelectClause([itema, itemb])
+        const selectClause: Node.SelectClause = this.locate(new Node.SelectClause([itema, itemb]), ctx)
         return selectClause
     }
 
@@ -3981,7 +4873,7 @@ class DelvenASTVisitor extends DelvenVisitor {
         this.log(ctx, Trace.frame())
         this.assertType(ctx, ECMAScriptParser.QueryFromExpressionContext)
         const elems: Node.FromClauseElement[] = this.visitQueryDataSourcesExpression(ctx.dataSources())
-        return new Node.FromClause(elems)
+        return this.locate(new Node.FromClause(elems), ctx)
     }
 
     visitQueryDataSourcesExpression(ctx: RuleContext): Node.FromClauseElement[] {
@@ -4019,8 +4911,8 @@ class DelvenASTVisitor extends DelvenVisitor {
         const callee = this.singleExpression(ctx.singleExpression())
         const args: Node.ArgumentListElement[] = arg ? this.visitArguments(arg) : [];
 
-        const call = new Node.CallExpression(callee, args)
-        return new Node.FromClauseElement(call, null)
+        const call = this.locate(new Node.CallExpression(callee, args), ctx)
+        return this.locate(new Node.FromClauseElement(call, null), ctx)
     }
 
 
@@ -4031,7 +4923,7 @@ class DelvenASTVisitor extends DelvenVisitor {
         const sequence = this.visitExpressionSequence(ctx.expressionSequence())
         const expression = this.coerceToExpressionOrSequence(sequence)
 
-        return new Node.WhereClause(expression)
+        return this.locate(new Node.WhereClause(expression), ctx)
     }
 
     /**
@@ -0,0 +1,514 @@
+/* eslint-disable @typescript-eslint/no-explicit-any */
+import * as Node from "./nodes"
+
+/**
+ * Version of the encoding, bump when the layout changes
+ */
+export const BINARY_AST_VERSION = 1
+
+const MAGIC = 0x53414244 // "DBAS"
+
+// value tags
+export const Tag = {
+    NULL: 0,
+    UNDEFINED: 1,
+    FALSE: 2,
+    TRUE: 3,
+    // zigzag varint, for 32 bit integers
+    INT: 4,
+    // IEEE 754 double
+    FLOAT: 5,
+    STRING: 6,
+    // string index of the pattern and flags
+    REGEXP: 7,
+    // string index of the class name, byte length, then key and value pairs
+    NODE: 8,
+    // byte length, then values
+    ARRAY: 9,
+    // byte length, then key and value pairs
+    OBJECT: 10,
+}
+
+// node classes by export name, the name is stored so trees decode to the same classes
+const classes: Map<string, any> = new Map(Object.entries(Node).filter(([, value]) => typeof value === "function"))
+const classNames: Map<any, string> = new Map([...classes].map(([name, value]) => [value, name]))
+
+/**
+ * Encoder of trees into the binary AST format
+ *
+ * Layout
+ * ```
+ *  magic u32 | version varint | root value | string table | string table offset u32
+ * ```
+ * Strings, property names and class names are written once to the string table at the end and referenced by index.
+ * Nodes, arrays and objects carry their byte length so a reader can skip them without decoding.
+ *
+ * Trees can be written in one call with `value`, or built up with `beginNode` / `key` / `end`,
+ * for example to write top-level statements as they are parsed without holding the whole program.
+ *
+ * Usage
+ * ```
+ *  const writer = new BinaryASTWriter()
+ *  writer.beginNode("Module")
+ *  writer.key("type").value("Program")
+ *  writer.key("body").beginArray()
+ *  for (const statement of ASTParser.statements(source)) writer.value(statement)
+ *  writer.end()
+ *  writer.key("sourceType").value("module")
+ *  writer.end()
+ *  fs.writeFileSync("./program.ast", writer.finish())
+ * ```
+ */
+export class BinaryASTWriter {
+    private buffer: Buffer
+    private position = 0
+    private strings: string[] = []
+    private stringIds: Map<string, number> = new Map()
+    // positions of the length slots of the open nodes, arrays and objects
+    private open: number[] = []
+
+    constructor(capacity = 64 * 1024) {
+        this.buffer = Buffer.allocUnsafe(capacity)
+        this.uint32(MAGIC)
+        this.varint(BINARY_AST_VERSION)
+    }
+
+    /**
+     * Write a complete value
+     * @param value
+     */
+    value(value: any): BinaryASTWriter {
+        if (value === null) {
+            this.byte(Tag.NULL)
+            return this
+        }
+
+        switch (typeof value) {
+            case "undefined":
+                this.byte(Tag.UNDEFINED)
+                return this
+            case "boolean":
+                this.byte(value ? Tag.TRUE : Tag.FALSE)
+                return this
+            case "number":
+                if ((value | 0) === value && !Object.is(value, -0)) {
+                    this.byte(Tag.INT)
+                    this.varint((value << 1) ^ (value >> 31))
+                } else {
+                    this.byte(Tag.FLOAT)
+                    this.reserve(8)
+                    this.buffer.writeDoubleLE(value, this.position)
+                    this.position += 8
+                }
+                return this
+            case "string":
+                this.byte(Tag.STRING)
+                this.varint(this.string(value))
+                return this
+            case "object":
+                break
+            default:
+                throw new TypeError("Unsupported value : " + typeof value)
+        }
+
+        if (value instanceof RegExp) {
+            this.byte(Tag.REGEXP)
+            this.varint(this.string(value.source))
+            this.varint(this.string(value.flags))
+            return this
+        }
+
+        if (Array.isArray(value)) {
+            this.beginArray()
+            for (const element of value) {
+                this.value(element)
+            }
+            return this.end()
+        }
+
+        const name = classNames.get(value.constructor)
+        if (name !== undefined) {
+            this.beginNode(name)
+        } else {
+            this.beginObject()
+        }
+
+        for (const key of Object.keys(value)) {
+            this.key(key)
+            this.value(value[key])
+        }
+        return this.end()
+    }
+
+    /**
+     * Start a node of the class exported from `nodes` under given name, followed by `key` and value pairs and `end`
+     * @param name
+     */
+    beginNode(name: string): BinaryASTWriter {
+        this.byte(Tag.NODE)
+        this.varint(this.string(name))
+        return this.begin()
+    }
+
+    beginObject(): BinaryASTWriter {
+        this.byte(Tag.OBJECT)
+        return this.begin()
+    }
+
+    beginArray(): BinaryASTWriter {
+        this.byte(Tag.ARRAY)
+        return this.begin()
+    }
+
+    key(name: string): BinaryASTWriter {
+        this.varint(this.string(name))
+        return this
+    }
+
+    /**
+     * Close the last node, array or object
+     */
+    end(): BinaryASTWriter {
+        const slot = this.open.pop()
+        if (slot === undefined) {
+            throw new Error("Nothing to end")
+        }
+        this.buffer.writeUInt32LE(this.position - slot - 4, slot)
+        return this
+    }
+
+    /**
+     * Write the string table and return the encoded bytes
+     */
+    finish(): Buffer {
+        if (this.open.length > 0) {
+            throw new Error(`${this.open.length} unclosed values`)
+        }
+
+        const offset = this.position
+        this.varint(this.strings.length)
+        for (const text of this.strings) {
+            const length = Buffer.byteLength(text, "utf8")
+            this.varint(length)
+            this.reserve(length)
+            this.buffer.write(text, this.position, length, "utf8")
+            this.position += length
+        }
+        this.uint32(offset)
+        return this.buffer.subarray(0, this.position)
+    }
+
+    private begin(): BinaryASTWriter {
+        this.reserve(4)
+        this.open.push(this.position)
+        this.position += 4
+        return this
+    }
+
+    private string(text: string): number {
+        let id = this.stringIds.get(text)
+        if (id === undefined) {
+            id = this.strings.length
+            this.strings.push(text)
+            this.stringIds.set(text, id)
+        }
+        return id
+    }
+
+    private byte(value: number): void {
+        this.reserve(1)
+        this.buffer[this.position++] = value
+    }
+
+    private uint32(value: number): void {
+        this.reserve(4)
+        this.buffer.writeUInt32LE(value, this.position)
+        this.position += 4
+    }
+
+    private varint(value: number): void {
+        this.reserve(5)
+        value >>>= 0
+        while (value >= 0x80) {
+            this.buffer[this.position++] = (value & 0x7F) | 0x80
+            value >>>= 7
+        }
+        this.buffer[this.position++] = value
+    }
+
+    private reserve(n: number): void {
+        if (this.position + n <= this.buffer.length) {
+            return
+        }
+
+        let size = this.buffer.length * 2
+        while (this.position + n > size) {
+            size *= 2
+        }
+        const resized = Buffer.allocUnsafe(size)
+        this.buffer.copy(resized, 0, 0, this.position)
+        this.buffer = resized
+    }
+}
+
+/**
+ * Pull reader over the binary AST format
+ *
+ * `value` decodes the next value completely, `skip` steps over it using the stored byte length.
+ * Nodes, arrays and objects can also be read one entry at a time with `begin` and `next`.
+ *
+ * Usage
+ * ```
+ *  const reader = new BinaryASTReader(fs.readFileSync("./program.ast"))
+ *  reader.begin()                            // Module
+ *  while (reader.next()) {
+ *      if (reader.key() !== "body") { reader.skip(); continue }
+ *      reader.begin()                        // body array
+ *      while (reader.next()) {
+ *          if (reader.className() === "FunctionDeclaration") functions.push(reader.value())
+ *          else reader.skip()
+ *      }
+ *  }
+ * ```
+ */
+export class BinaryASTReader {
+    readonly version: number
+    private buffer: Buffer
+    private position: number
+    private strings: string[]
+    // end positions and kinds of the entered nodes, arrays and objects
+    private ends: number[] = []
+    private keyed: boolean[] = []
+    private currentKey: string | null = null
+
+    constructor(buffer: Buffer) {
+        if (buffer.length < 9 || buffer.readUInt32LE(0) !== MAGIC) {
+            throw new Error("Not a binary AST")
+        }
+
+        this.buffer = buffer
+        this.position = 4
+        this.version = this.varint()
+        if (this.version !== BINARY_AST_VERSION) {
+            throw new Error(`Unsupported binary AST version : ${this.version}`)
+        }
+
+        const start = this.position
+        this.position = buffer.readUInt32LE(buffer.length - 4)
+        const count = this.varint()
+        this.strings = new Array(count)
+        for (let i = 0; i < count; ++i) {
+            const length = this.varint()
+            this.strings[i] = buffer.toString("utf8", this.position, this.position + length)
+            this.position += length
+        }
+        this.position = start
+    }
+
+    /**
+     * Byte offset of the next value
+     */
+    get offset(): number {
+        return this.position
+    }
+
+    /**
+     * Move to a value at an offset taken from `offset`, leaving all entered values
+     * @param offset
+     */
+    seek(offset: number): void {
+        this.position = offset
+        this.ends = []
+        this.keyed = []
+        this.currentKey = null
+    }
+
+    /**
+     * Tag of the next value
+     */
+    tag(): number {
+        return this.buffer[this.position]
+    }
+
+    /**
+     * Class name of the next value when it is a node, otherwise `null`
+     */
+    className(): string | null {
+        if (this.buffer[this.position] !== Tag.NODE) {
+            return null
+        }
+
+        const position = this.position
+        this.position++
+        const name = this.strings[this.varint()]
+        this.position = position
+        return name
+    }
+
+    /**
+     * Key of the entry `next` moved to, `null` inside arrays
+     */
+    key(): string | null {
+        return this.currentKey
+    }
+
+    /**
+     * Enter the next value, which has to be a node, array or object. Entries are then visited with `next`
+     */
+    begin(): void {
+        const tag = this.buffer[this.position++]
+        if (tag === Tag.NODE) {
+            this.varint()
+        } else if (tag !== Tag.ARRAY && tag !== Tag.OBJECT) {
+            throw new Error(`Value with tag ${tag} can not be entered`)
+        }
+
+        const length = this.buffer.readUInt32LE(this.position)
+        this.position += 4
+        this.ends.push(this.position + length)
+        this.keyed.push(tag !== Tag.ARRAY)
+    }
+
+    /**
+     * Move to the next entry of the entered value, reads its key.
+     * Returns false and leaves the value when there are no more entries, the value of the entry has to be
+     * consumed with `value`, `skip` or `begin` before calling `next` again.
+     */
+    next(): boolean {
+        const end = this.ends[this.ends.length - 1]
+        if (this.position >= end) {
+            this.position = end
+            this.ends.pop()
+            this.keyed.pop()
+            this.currentKey = null
+            return false
+        }
+
+        this.currentKey = this.keyed[this.keyed.length - 1] ? this.strings[this.varint()] : null
+        return true
+    }
+
+    /**
+     * Step over the next value without decoding it
+     */
+    skip(): void {
+        const tag = this.buffer[this.position++]
+        switch (tag) {
+            case Tag.INT:
+                this.varint()
+                break
+            case Tag.FLOAT:
+                this.position += 8
+                break
+            case Tag.STRING:
+                this.varint()
+                break
+            case Tag.REGEXP:
+                this.varint()
+                this.varint()
+                break
+            case Tag.NODE:
+                this.varint()
+                this.position += 4 + this.buffer.readUInt32LE(this.position)
+                break
+            case Tag.ARRAY:
+            case Tag.OBJECT:
+                this.position += 4 + this.buffer.readUInt32LE(this.position)
+                break
+        }
+    }
+
+    /**
+     * Decode the next value
+     */
+    value(): any {
+        const buffer = this.buffer
+        const tag = buffer[this.position++]
+        switch (tag) {
+            case Tag.NULL:
+                return null
+            case Tag.UNDEFINED:
+                return undefined
+            case Tag.FALSE:
+                return false
+            case Tag.TRUE:
+                return true
+            case Tag.INT: {
+                const v = this.varint()
+                return (v >>> 1) ^ -(v & 1)
+            }
+            case Tag.FLOAT: {
+                const v = buffer.readDoubleLE(this.position)
+                this.position += 8
+                return v
+            }
+            case Tag.STRING:
+                return this.strings[this.varint()]
+            case Tag.REGEXP: {
+                const pattern = this.strings[this.varint()]
+                const flags = this.strings[this.varint()]
+                return new RegExp(pattern, flags)
+            }
+            case Tag.ARRAY: {
+                const end = this.position + 4 + buffer.readUInt32LE(this.position)
+                this.position += 4
+                const elements: any[] = []
+                while (this.position < end) {
+                    elements.push(this.value())
+                }
+                return elements
+            }
+            case Tag.NODE:
+            case Tag.OBJECT: {
+                let value: any = {}
+                if (tag === Tag.NODE) {
+                    const type = classes.get(this.strings[this.varint()])
+                    if (type !== undefined) {
+                        value = Object.create(type.prototype)
+                    }
+                }
+
+                const end = this.position + 4 + buffer.readUInt32LE(this.position)
+                this.position += 4
+                while (this.position < end) {
+                    const key = this.strings[this.varint()]
+                    value[key] = this.value()
+                }
+                return value
+            }
+        }
+        throw new Error(`Unknown tag ${tag} at ${this.position - 1}`)
+    }
+
+    private varint(): number {
+        const buffer = this.buffer
+        let value = 0
+        let shift = 0
+        let b: number
+        do {
+            b = buffer[this.position++]
+            value |= (b & 0x7F) << shift
+            shift += 7
+        } while (b >= 0x80)
+        return value >>> 0
+    }
+}
+
+/**
+ * Binary AST encoding
+ *
+ * Usage
+ * ```
+ *  const bytes = BinaryAST.encode(ASTParser.parse({ type: "code", value: code }))
+ *  const ast = BinaryAST.decode(bytes)
+ * ```
+ */
+export default class BinaryAST {
+    static encode(ast: any): Buffer {
+        return new BinaryASTWriter().value(ast).finish()
+    }
+
+    static decode(buffer: Buffer): any {
+        return new BinaryASTReader(buffer).value()
+    }
+}
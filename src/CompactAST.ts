@@ -0,0 +1,453 @@
+/* eslint-disable @typescript-eslint/no-explicit-any */
+import { Syntax } from "./syntax"
+import ASTNode from "./ASTNode"
+
+// kind of the placeholder stored for `null` elements of node arrays
+export const NULL_KIND = 0
+
+/**
+ * Node kinds in `Syntax` table order, kind of a node is its index in this list
+ */
+export const Kinds: string[] = ["null", ...Object.keys(Syntax)]
+
+// property entry tags
+const TYPE = 0
+const START = 1
+const END = 2
+const SCALAR = 3
+const NODE = 4
+const ARRAY = 5
+
+const isNode = (value: any): boolean => value !== null && typeof value === "object" && typeof value.type === "string" && !Array.isArray(value)
+const isNodeArray = (value: any): boolean => Array.isArray(value) && value.every(v => v === null || isNode(v))
+
+/**
+ * Arena backed AST
+ *
+ * Nodes are indexes into parallel typed arrays holding the node kind, parent, first child, next sibling
+ * and `start` / `end` offsets. Properties of a node are kept as an ordered list of entries so that converting back
+ * with `toObject` gives objects with the same keys in the same order as the original AST.
+ * Values that are not nodes (names, operators, flags, regex values) are kept in a side table by reference.
+ * The class of each node is kept in a class table, so `toObject` returns nodes of the same classes as the original AST.
+ *
+ * Node 0 is the root.
+ *
+ * Usage
+ * ```
+ *  const compact = CompactAST.from(ASTParser.parse({ type: "code", value: code }))
+ *  compact.walk((index, depth) => { if (compact.kind(index) === Kinds.indexOf(Syntax.Identifier)) ++identifiers })
+ *  const ast = compact.toObject()
+ * ```
+ */
+export default class CompactAST {
+    private count = 0
+    private kinds: Int32Array
+    private parents: Int32Array
+    private firstChildren: Int32Array
+    private nextSiblings: Int32Array
+    private starts: Int32Array
+    private ends: Int32Array
+    // field of the parent this node is stored in
+    private fieldOf: Int32Array
+    private propStarts: Int32Array
+    private propCounts: Int32Array
+    // index into `classes` of the node class
+    private classOf: Int32Array
+
+    private propCount = 0
+    private propFields: Int32Array
+    private propTags: Uint8Array
+    private propValues: Int32Array
+
+    private scalars: any[] = []
+    private types: string[] = [...Kinds]
+    private typeIds: Map<string, number> = new Map(Kinds.map((type, i) => [type, i]))
+    private fields: string[] = []
+    private fieldIds: Map<string, number> = new Map()
+    private classes: any[] = []
+    private classIds: Map<any, number> = new Map()
+
+    constructor(capacity = 1024) {
+        this.kinds = new Int32Array(capacity)
+        this.parents = new Int32Array(capacity)
+        this.firstChildren = new Int32Array(capacity)
+        this.nextSiblings = new Int32Array(capacity)
+        this.starts = new Int32Array(capacity)
+        this.ends = new Int32Array(capacity)
+        this.fieldOf = new Int32Array(capacity)
+        this.propStarts = new Int32Array(capacity)
+        this.propCounts = new Int32Array(capacity)
+        this.classOf = new Int32Array(capacity)
+        this.propFields = new Int32Array(capacity * 4)
+        this.propTags = new Uint8Array(capacity * 4)
+        this.propValues = new Int32Array(capacity * 4)
+    }
+
+    /**
+     * Convert object AST into an arena
+     * @param root
+     */
+    static from(root: ASTNode | any): CompactAST {
+        const arena = new CompactAST()
+        arena.add(root, -1, -1)
+        return arena
+    }
+
+    /**
+     * Number of nodes
+     */
+    get size(): number {
+        return this.count
+    }
+
+    kind(index: number): number {
+        return this.kinds[index]
+    }
+
+    type(index: number): string | null {
+        return this.kinds[index] === NULL_KIND ? null : this.types[this.kinds[index]]
+    }
+
+    parent(index: number): number {
+        return this.parents[index]
+    }
+
+    firstChild(index: number): number {
+        return this.firstChildren[index]
+    }
+
+    nextSibling(index: number): number {
+        return this.nextSiblings[index]
+    }
+
+    start(index: number): number {
+        return this.starts[index]
+    }
+
+    end(index: number): number {
+        return this.ends[index]
+    }
+
+    /**
+     * Name of the parent property the node is stored in, null for the root
+     * @param index
+     */
+    field(index: number): string | null {
+        return this.fieldOf[index] < 0 ? null : this.fields[this.fieldOf[index]]
+    }
+
+    /**
+     * Flyweight view of the node
+     * @param index
+     */
+    node(index = 0): ArenaNode {
+        return new ArenaNode(this, index)
+    }
+
+    /**
+     * Visit nodes in document order without recursion, return `false` from the callback to skip the children
+     *
+     * @param callback
+     * @param root
+     */
+    walk(callback: (index: number, depth: number) => boolean | void, root = 0): void {
+        let index = root
+        let depth = 0
+        while (index !== -1) {
+            const descend = callback(index, depth) !== false
+            if (descend && this.firstChildren[index] !== -1) {
+                index = this.firstChildren[index]
+                ++depth
+                continue
+            }
+
+            while (index !== root && this.nextSiblings[index] === -1) {
+                index = this.parents[index]
+                --depth
+            }
+
+            index = index === root ? -1 : this.nextSiblings[index]
+        }
+    }
+
+    /**
+     * Value of a property, nodes are returned as indexes and node arrays as arrays of indexes
+     * unless a `wrap` function is given to convert them
+     *
+     * @param index
+     * @param name
+     * @param wrap
+     */
+    property(index: number, name: string, wrap: (child: number) => any = child => child): any {
+        const field = this.fieldIds.get(name)
+        const start = this.propStarts[index]
+        const end = start + this.propCounts[index]
+        let child = this.firstChildren[index]
+        for (let p = start; p < end; ++p) {
+            const match = this.propFields[p] === field
+            switch (this.propTags[p]) {
+                case TYPE:
+                    if (match) return this.type(index)
+                    break
+                case START:
+                    if (match) return this.starts[index]
+                    break
+                case END:
+                    if (match) return this.ends[index]
+                    break
+                case SCALAR:
+                    if (match) return this.scalars[this.propValues[p]]
+                    break
+                case NODE:
+                    if (match) return wrap(child)
+                    child = this.nextSiblings[child]
+                    break
+                case ARRAY: {
+                    const elements: any[] = []
+                    for (let i = 0; i < this.propValues[p]; ++i) {
+                        if (match) {
+                            elements.push(wrap(child))
+                        }
+                        child = this.nextSiblings[child]
+                    }
+                    if (match) return elements
+                }
+            }
+        }
+        return undefined
+    }
+
+    /**
+     * Convert node back into an object AST
+     * @param index
+     */
+    toObject(index = 0): any {
+        if (this.kinds[index] === NULL_KIND) {
+            return null
+        }
+
+        const node: any = Object.create(this.classes[this.classOf[index]].prototype)
+        const start = this.propStarts[index]
+        const end = start + this.propCounts[index]
+        let child = this.firstChildren[index]
+        for (let p = start; p < end; ++p) {
+            const name = this.fields[this.propFields[p]]
+            switch (this.propTags[p]) {
+                case TYPE:
+                    node[name] = this.types[this.kinds[index]]
+                    break
+                case START:
+                    node[name] = this.starts[index]
+                    break
+                case END:
+                    node[name] = this.ends[index]
+                    break
+                case SCALAR:
+                    node[name] = this.scalars[this.propValues[p]]
+                    break
+                case NODE:
+                    node[name] = this.toObject(child)
+                    child = this.nextSiblings[child]
+                    break
+                case ARRAY: {
+                    const elements = []
+                    for (let i = 0; i < this.propValues[p]; ++i) {
+                        elements.push(this.toObject(child))
+                        child = this.nextSiblings[child]
+                    }
+                    node[name] = elements
+                }
+            }
+        }
+        return node
+    }
+
+    private add(value: any, parent: number, field: number): number {
+        const index = this.allocate()
+        this.parents[index] = parent
+        this.firstChildren[index] = -1
+        this.nextSiblings[index] = -1
+        this.fieldOf[index] = field
+        this.starts[index] = -1
+        this.ends[index] = -1
+        this.propCounts[index] = 0
+
+        if (value === null) {
+            this.kinds[index] = NULL_KIND
+            return index
+        }
+
+        this.kinds[index] = this.typeId(value.type)
+        this.classOf[index] = this.classId(value.constructor)
+        const keys = Object.keys(value)
+        const base = this.reserve(keys.length)
+        this.propStarts[index] = base
+        this.propCounts[index] = keys.length
+
+        let last = -1
+        const append = (child: number) => {
+            if (last === -1) {
+                this.firstChildren[index] = child
+            } else {
+                this.nextSiblings[last] = child
+            }
+            last = child
+        }
+
+        for (let k = 0; k < keys.length; ++k) {
+            const key = keys[k]
+            const v = value[key]
+            const p = base + k
+            const id = this.fieldId(key)
+            this.propFields[p] = id
+
+            if (key === "type") {
+                this.propTags[p] = TYPE
+            } else if ((key === "start" || key === "end") && Number.isInteger(v) && v >= -1 && v <= 0x7FFFFFFF) {
+                this.propTags[p] = key === "start" ? START : END
+                if (key === "start") {
+                    this.starts[index] = v
+                } else {
+                    this.ends[index] = v
+                }
+            } else if (isNode(v)) {
+                this.propTags[p] = NODE
+                append(this.add(v, index, id))
+            } else if (isNodeArray(v)) {
+                this.propTags[p] = ARRAY
+                this.propValues[p] = v.length
+                for (const element of v) {
+                    append(this.add(element, index, id))
+                }
+            } else {
+                this.propTags[p] = SCALAR
+                this.propValues[p] = this.scalars.length
+                this.scalars.push(v)
+            }
+        }
+        return index
+    }
+
+    private allocate(): number {
+        if (this.count === this.kinds.length) {
+            const size = this.count * 2
+            this.kinds = grow(this.kinds, size)
+            this.parents = grow(this.parents, size)
+            this.firstChildren = grow(this.firstChildren, size)
+            this.nextSiblings = grow(this.nextSiblings, size)
+            this.starts = grow(this.starts, size)
+            this.ends = grow(this.ends, size)
+            this.fieldOf = grow(this.fieldOf, size)
+            this.propStarts = grow(this.propStarts, size)
+            this.propCounts = grow(this.propCounts, size)
+            this.classOf = grow(this.classOf, size)
+        }
+        return this.count++
+    }
+
+    private reserve(n: number): number {
+        const base = this.propCount
+        let size = this.propFields.length
+        while (base + n > size) {
+            size *= 2
+        }
+
+        if (size !== this.propFields.length) {
+            this.propFields = grow(this.propFields, size)
+            this.propValues = grow(this.propValues, size)
+            const tags = new Uint8Array(size)
+            tags.set(this.propTags)
+            this.propTags = tags
+        }
+        this.propCount += n
+        return base
+    }
+
+    private typeId(type: string): number {
+        let id = this.typeIds.get(type)
+        if (id === undefined) {
+            id = this.types.length
+            this.types.push(type)
+            this.typeIds.set(type, id)
+        }
+        return id
+    }
+
+    private classId(type: any): number {
+        let id = this.classIds.get(type)
+        if (id === undefined) {
+            id = this.classes.length
+            this.classes.push(type)
+            this.classIds.set(type, id)
+        }
+        return id
+    }
+
+    private fieldId(name: string): number {
+        let id = this.fieldIds.get(name)
+        if (id === undefined) {
+            id = this.fields.length
+            this.fields.push(name)
+            this.fieldIds.set(name, id)
+        }
+        return id
+    }
+}
+
+/**
+ * Flyweight view of a node in a `CompactAST`
+ */
+export class ArenaNode {
+    readonly arena: CompactAST
+    readonly index: number
+
+    constructor(arena: CompactAST, index: number) {
+        this.arena = arena
+        this.index = index
+    }
+
+    get kind(): number {
+        return this.arena.kind(this.index)
+    }
+
+    get type(): string | null {
+        return this.arena.type(this.index)
+    }
+
+    get start(): number {
+        return this.arena.start(this.index)
+    }
+
+    get end(): number {
+        return this.arena.end(this.index)
+    }
+
+    get parent(): ArenaNode | null {
+        const parent = this.arena.parent(this.index)
+        return parent === -1 ? null : new ArenaNode(this.arena, parent)
+    }
+
+    * children(): IterableIterator<ArenaNode> {
+        for (let child = this.arena.firstChild(this.index); child !== -1; child = this.arena.nextSibling(child)) {
+            yield new ArenaNode(this.arena, child)
+        }
+    }
+
+    /**
+     * Value of a property, nodes are returned as views
+     * @param name
+     */
+    get(name: string): any {
+        return this.arena.property(this.index, name, child => this.arena.kind(child) === NULL_KIND ? null : new ArenaNode(this.arena, child))
+    }
+
+    toObject(): any {
+        return this.arena.toObject(this.index)
+    }
+}
+
+function grow(array: Int32Array, size: number): Int32Array {
+    const resized = new Int32Array(size)
+    resized.set(array)
+    return resized
+}
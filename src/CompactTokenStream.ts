@@ -0,0 +1,335 @@
+/* eslint-disable @typescript-eslint/no-explicit-any */
+import * as antlr4 from "antlr4"
+import { Token, Interval } from "antlr4"
+
+/**
+ * Token stream that keeps token fields in parallel typed arrays instead of one `CommonToken` per token.
+ *
+ * Tokens handed out by `LT` / `get` are views created on first request and cached, so hidden tokens
+ * (whitespace, line terminators, comments) are never materialized as objects.
+ * Behaves like `CommonTokenStream` on the default channel, including token indexes,
+ * so it can be used as a drop in replacement.
+ *
+ * Consumed tokens can be dropped with `discard`, which keeps memory bounded when parsing one statement at a time.
+ *
+ * Usage
+ * ```
+ *  const parser = new DelvenParser(new CompactTokenStream(lexer))
+ * ```
+ */
+export default class CompactTokenStream {
+    tokenSource: any
+    index = -1
+    channel = Token.DEFAULT_CHANNEL
+
+    private source: any
+    private count = 0
+    // index of the first token still held, tokens before it were discarded
+    private offset = 0
+    private fetchedEOF = false
+    private types: Int32Array
+    private starts: Int32Array
+    private stops: Int32Array
+    private lines: Int32Array
+    private columns: Int32Array
+    private channels: Int32Array
+    private views: any[] = []
+
+    constructor(lexer: any, capacity = 1024) {
+        this.tokenSource = lexer
+        this.source = [lexer, lexer._input]
+        this.types = new Int32Array(capacity)
+        this.starts = new Int32Array(capacity)
+        this.stops = new Int32Array(capacity)
+        this.lines = new Int32Array(capacity)
+        this.columns = new Int32Array(capacity)
+        this.channels = new Int32Array(capacity)
+    }
+
+    get size(): number {
+        return this.count
+    }
+
+    mark(): number {
+        return 0
+    }
+
+    release(): void {
+        // no resources to release
+    }
+
+    reset(): void {
+        this.seek(0)
+    }
+
+    seek(index: number): void {
+        this.lazyInit()
+        this.index = this.adjustSeekIndex(index)
+    }
+
+    get(index: number): any {
+        this.lazyInit()
+        if (index < this.offset || index >= this.count) {
+            throw new RangeError(`token index ${index} out of range ${this.offset}..${this.count - 1}`)
+        }
+        return this.token(index)
+    }
+
+    /**
+     * Type of the token at given index without creating the token view
+     * @param index
+     */
+    typeAt(index: number): number {
+        return this.types[index - this.offset]
+    }
+
+    /**
+     * Drop all tokens before given index, tokens already handed out stay valid
+     * but discarded indexes can no longer be accessed through the stream.
+     *
+     * @param before index of the first token to keep
+     */
+    discard(before: number): void {
+        const n = Math.min(before, this.index, this.count) - this.offset
+        if (n <= 0) {
+            return
+        }
+
+        const held = this.count - this.offset
+        this.types.copyWithin(0, n, held)
+        this.starts.copyWithin(0, n, held)
+        this.stops.copyWithin(0, n, held)
+        this.lines.copyWithin(0, n, held)
+        this.columns.copyWithin(0, n, held)
+        this.channels.copyWithin(0, n, held)
+        this.views.splice(0, n)
+        this.offset += n
+    }
+
+    /**
+     * Discard consumed tokens, keeping the previous token on the channel
+     * and the hidden tokens after it so lookbehind still works
+     */
+    discardConsumed(): void {
+        const previous = this.previousTokenOnChannel(this.index - 1)
+        this.discard(previous < 0 ? this.index : previous)
+    }
+
+    consume(): void {
+        let skipEofCheck = false
+        if (this.index >= 0) {
+            skipEofCheck = this.fetchedEOF ? this.index < this.count - 1 : this.index < this.count
+        }
+
+        if (!skipEofCheck && this.LA(1) === Token.EOF) {
+            throw new Error("cannot consume EOF")
+        }
+
+        if (this.sync(this.index + 1)) {
+            this.index = this.adjustSeekIndex(this.index + 1)
+        }
+    }
+
+    LA(i: number): number {
+        const index = this.indexOfLT(i)
+        return index < 0 ? Token.INVALID_TYPE : this.types[index - this.offset]
+    }
+
+    LT(k: number): any {
+        const index = this.indexOfLT(k)
+        return index < 0 ? null : this.token(index)
+    }
+
+    LB(k: number): any {
+        const index = this.indexOfLB(k)
+        return index < 0 ? null : this.token(index)
+    }
+
+    /**
+     * Make sure token at index `i` has been fetched from the lexer
+     * @param i
+     */
+    sync(i: number): boolean {
+        const n = i - this.count + 1
+        if (n > 0) {
+            return this.fetch(n) >= n
+        }
+        return true
+    }
+
+    fill(): void {
+        this.lazyInit()
+        while (this.fetch(1000) === 1000) {
+            // keep fetching
+        }
+    }
+
+    getTokenSource(): any {
+        return this.tokenSource
+    }
+
+    getSourceName(): string {
+        return this.tokenSource.getSourceName()
+    }
+
+    /**
+     * Text of all tokens in the interval, tokens are contiguous so this is a single slice of the input
+     *
+     * @param interval
+     */
+    getText(interval?: Interval): string {
+        this.lazyInit()
+        this.fill()
+
+        let start = interval ? interval.start : 0
+        let stop = interval ? interval.stop : this.count - 1
+        if ((start as any) instanceof Token) {
+            start = (start as any).tokenIndex
+        }
+        if ((stop as any) instanceof Token) {
+            stop = (stop as any).tokenIndex
+        }
+
+        if (start === null || stop === null || start < 0 || stop < 0) {
+            return ""
+        }
+
+        if (start < this.offset) {
+            throw new RangeError(`token index ${start} was discarded`)
+        }
+
+        if (stop >= this.count) {
+            stop = this.count - 1
+        }
+
+        if (this.types[stop - this.offset] === Token.EOF) {
+            --stop
+        }
+
+        if (start > stop) {
+            return ""
+        }
+        return this.source[1].getText(this.starts[start - this.offset], this.stops[stop - this.offset])
+    }
+
+    private token(index: number): any {
+        const slot = index - this.offset
+        let view = this.views[slot]
+        if (view === undefined) {
+            view = new antlr4.CommonToken(this.source, this.types[slot], this.channels[slot], this.starts[slot], this.stops[slot])
+            view.tokenIndex = index
+            view.line = this.lines[slot]
+            view.column = this.columns[slot]
+            this.views[slot] = view
+        }
+        return view
+    }
+
+    private lazyInit(): void {
+        if (this.index === -1) {
+            this.sync(0)
+            this.index = this.adjustSeekIndex(0)
+        }
+    }
+
+    private adjustSeekIndex(i: number): number {
+        return this.nextTokenOnChannel(i)
+    }
+
+    private nextTokenOnChannel(i: number): number {
+        this.sync(i)
+        if (i >= this.count) {
+            return -1
+        }
+
+        while (this.channels[i - this.offset] !== this.channel) {
+            if (this.types[i - this.offset] === Token.EOF) {
+                return -1
+            }
+            i += 1
+            this.sync(i)
+        }
+        return i
+    }
+
+    private previousTokenOnChannel(i: number): number {
+        while (i >= this.offset && this.channels[i - this.offset] !== this.channel) {
+            i -= 1
+        }
+        return i < this.offset ? -1 : i
+    }
+
+    private indexOfLT(k: number): number {
+        this.lazyInit()
+        if (k === 0) {
+            return -1
+        }
+
+        if (k < 0) {
+            return this.indexOfLB(-k)
+        }
+
+        let i = this.index
+        for (let n = 1; n < k; ++n) {
+            if (this.sync(i + 1)) {
+                i = this.nextTokenOnChannel(i + 1)
+            }
+        }
+        return i
+    }
+
+    private indexOfLB(k: number): number {
+        if (k === 0 || this.index - k < 0) {
+            return -1
+        }
+
+        let i = this.index
+        for (let n = 1; n <= k; ++n) {
+            i = this.previousTokenOnChannel(i - 1)
+        }
+        return i
+    }
+
+    private fetch(n: number): number {
+        if (this.fetchedEOF) {
+            return 0
+        }
+
+        for (let i = 0; i < n; i++) {
+            const token = this.tokenSource.nextToken()
+            const slot = this.count++ - this.offset
+            if (slot >= this.types.length) {
+                this.grow()
+            }
+
+            this.types[slot] = token.type
+            this.starts[slot] = token.start
+            this.stops[slot] = token.stop
+            this.lines[slot] = token.line
+            this.columns[slot] = token.column
+            this.channels[slot] = token.channel
+
+            if (token.type === Token.EOF) {
+                this.fetchedEOF = true
+                return i + 1
+            }
+        }
+        return n
+    }
+
+    private grow(): void {
+        const size = this.types.length * 2
+        const resize = (array: Int32Array) => {
+            const resized = new Int32Array(size)
+            resized.set(array)
+            return resized
+        }
+
+        this.types = resize(this.types)
+        this.starts = resize(this.starts)
+        this.stops = resize(this.stops)
+        this.lines = resize(this.lines)
+        this.columns = resize(this.columns)
+        this.channels = resize(this.channels)
+    }
+}
@@ -0,0 +1,410 @@
+/* eslint-disable @typescript-eslint/no-explicit-any */
+import * as antlr4 from "antlr4"
+import { ECMAScriptParser as DelvenParser } from "./parser/ECMAScriptParser"
+import { ECMAScriptLexer as DelvenLexer } from "./parser/ECMAScriptLexer"
+import { ECMAScriptParserBase } from "./parser/ECMAScriptParserBase"
+import { DFAState, PredPrediction } from "antlr4/dfa/DFAState"
+import { ATNConfig } from "antlr4/atn/ATNConfig"
+import { ATNConfigSet } from "antlr4/atn/ATNConfigSet"
+import { PredictionContext, SingletonPredictionContext, ArrayPredictionContext } from "antlr4/PredictionContext"
+import { SemanticContext, Predicate, PrecedencePredicate } from "antlr4/atn/SemanticContext"
+import { ATNSimulator } from "antlr4/atn/ATNSimulator"
+import { BitSet } from "antlr4/Utils"
+import glob from 'glob'
+import * as fs from "fs"
+
+/**
+ * Version of the cache file layout, bump when the layout changes
+ */
+const FORMAT_VERSION = 1
+
+/**
+ * Context id used for `PredictionContext.EMPTY` and `null` parents
+ */
+const EMPTY_CONTEXT = -1
+const NULL_CONTEXT = -2
+
+/**
+ * State number used for edges to `ATNSimulator.ERROR`
+ */
+const ERROR_STATE = -1
+
+type SerializedContext = { p: number[], r: number[] }
+type SerializedSemantic = { t: "none" } | { t: "pred", r: number, i: number, d: boolean } | { t: "prec", p: number } | { t: "and" | "or", o: number[] }
+
+// state, alt, context, semanticContext, reachesIntoOuterContext, precedenceFilterSuppressed
+type SerializedConfig = [number, number, number, number, number, boolean]
+
+type SerializedState = {
+    n: number,
+    configs: SerializedConfig[],
+    fullCtx: boolean,
+    uniqueAlt: number,
+    conflictingAlts: number[] | null,
+    accept: boolean,
+    prediction: number,
+    requiresFullContext: boolean,
+    predicates: [number, number][] | null,
+    edges: [number, number][] | null,
+}
+
+type SerializedDFA = {
+    decision: number,
+    precedenceDfa: boolean,
+    s0: number | null,
+    // edges of the precedence start state, only for precedence DFA
+    precedence: [number, number][] | null,
+    states: SerializedState[],
+}
+
+export type DFACacheFile = {
+    version: number,
+    atn: string,
+    contexts: SerializedContext[],
+    semantics: SerializedSemantic[],
+    decisions: SerializedDFA[],
+}
+
+/**
+ * Prediction DFA cache for the ECMAScript parser
+ *
+ * The parser DFA is shared by all parser instances and starts empty, so the first parses of every process are slow.
+ * This allows warming the DFA up by parsing a corpus and persisting it to a file that is loaded on startup.
+ *
+ * Usage
+ * ```
+ *  DFACache.warmup('./test/fixtures')
+ *  DFACache.save('./dfa.cache.json')
+ *
+ *  // on startup, before first parse
+ *  DFACache.load('./dfa.cache.json')
+ * ```
+ */
+export default class DFACache {
+
+    /**
+     * Parse all `*.js` files in the directory to populate the DFA, syntax errors are ignored
+     *
+     * @param dir directory containing the corpus
+     * @returns number of files parsed
+     */
+    static warmup(dir: string): number {
+        const files = glob.sync(`${dir}/**/*.js`)
+        for (const file of files) {
+            DFACache.parse(fs.readFileSync(file, "utf8"))
+        }
+        return files.length
+    }
+
+    /**
+     * Parse code without building the AST
+     * @param code
+     */
+    static parse(code: string): void {
+        const lexer = new DelvenLexer(new antlr4.InputStream(code))
+        lexer.removeErrorListeners()
+        const parser = new DelvenParser(new antlr4.CommonTokenStream(lexer))
+        parser.removeErrorListeners()
+        try {
+            parser.program()
+        } catch (e) {
+            // failed parses still contribute DFA states
+        }
+    }
+
+    /**
+     * Write current DFA to a file
+     * @param path
+     */
+    static save(path: string): void {
+        fs.writeFileSync(path, JSON.stringify(DFACache.serialize()))
+    }
+
+    /**
+     * Load DFA from a file, the cache is ignored when it was created for a different grammar
+     *
+     * @param path
+     * @returns true when the cache was applied
+     */
+    static load(path: string): boolean {
+        if (!fs.existsSync(path)) {
+            return false
+        }
+        return DFACache.deserialize(JSON.parse(fs.readFileSync(path, "utf8")))
+    }
+
+    static serialize(): DFACacheFile {
+        const interp = DFACache.interpreter()
+        const contexts = new ContextWriter()
+        const semantics = new SemanticWriter()
+        const decisions: SerializedDFA[] = []
+
+        for (const dfa of interp.decisionToDFA) {
+            const states: any[] = dfa.sortedStates()
+            if (states.length == 0) {
+                continue
+            }
+
+            decisions.push({
+                decision: dfa.decision,
+                precedenceDfa: dfa.precedenceDfa,
+                s0: !dfa.precedenceDfa && dfa.s0 ? dfa.s0.stateNumber : null,
+                precedence: dfa.precedenceDfa ? DFACache.serializeEdges(dfa.s0.edges) : null,
+                states: states.map(state => DFACache.serializeState(state, contexts, semantics))
+            })
+        }
+
+        return {
+            version: FORMAT_VERSION,
+            atn: DFACache.signature(),
+            contexts: contexts.contexts,
+            semantics: semantics.semantics,
+            decisions: decisions
+        }
+    }
+
+    static deserialize(file: DFACacheFile): boolean {
+        const interp = DFACache.interpreter()
+        if (file.version !== FORMAT_VERSION || file.atn !== DFACache.signature()) {
+            return false
+        }
+
+        const atn = interp.atn
+        const contexts = DFACache.readContexts(file.contexts, interp.sharedContextCache)
+        const semantics = DFACache.readSemantics(file.semantics)
+
+        for (const serialized of file.decisions) {
+            const dfa = interp.decisionToDFA[serialized.decision]
+            // never merge into a DFA that is already in use
+            if (dfa.states.length > 0) {
+                continue
+            }
+
+            const states = new Map<number, any>()
+            for (const item of serialized.states) {
+                const configs = new ATNConfigSet(item.fullCtx)
+                for (const [state, alt, context, semantic, reachesIntoOuterContext, suppressed] of item.configs) {
+                    const config = new ATNConfig({
+                        state: atn.states[state],
+                        alt: alt,
+                        context: contexts(context),
+                        semanticContext: semantics[semantic]
+                    }, null)
+                    config.reachesIntoOuterContext = reachesIntoOuterContext
+                    config.precedenceFilterSuppressed = suppressed
+                    configs.add(config)
+                }
+                configs.uniqueAlt = item.uniqueAlt
+                if (item.conflictingAlts != null) {
+                    configs.conflictingAlts = new BitSet()
+                    item.conflictingAlts.forEach(alt => configs.conflictingAlts.add(alt))
+                }
+                configs.setReadonly(true)
+
+                const state = new DFAState(item.n, configs)
+                state.isAcceptState = item.accept
+                state.prediction = item.prediction
+                state.requiresFullContext = item.requiresFullContext
+                if (item.predicates != null) {
+                    state.predicates = item.predicates.map(([pred, alt]) => new PredPrediction(semantics[pred], alt))
+                }
+                states.set(item.n, state)
+                dfa.states.add(state)
+            }
+
+            for (const item of serialized.states) {
+                if (item.edges != null) {
+                    states.get(item.n).edges = DFACache.readEdges(item.edges, states)
+                }
+            }
+
+            if (serialized.precedenceDfa) {
+                dfa.s0.edges = DFACache.readEdges(serialized.precedence || [], states)
+            } else if (serialized.s0 != null) {
+                dfa.s0 = states.get(serialized.s0)
+            }
+        }
+
+        return true
+    }
+
+    private static interpreter(): any {
+        // DFA and context cache are shared between all parser instances
+        const parser = new DelvenParser(new antlr4.CommonTokenStream(new DelvenLexer(new antlr4.InputStream(""))))
+        return parser._interp
+    }
+
+    /**
+     * Signature of the ATN the DFA was built from, a hash of the serialized ATN of the generated parser,
+     * so any change to the grammar, including token labels and predicates, produces a different signature
+     */
+    static signature(): string {
+        const serialized: string = ECMAScriptParserBase.serializedATN
+        // FNV-1a
+        let hash = 0x811c9dc5
+        for (let i = 0; i < serialized.length; ++i) {
+            hash = Math.imul(hash ^ serialized.charCodeAt(i), 0x01000193)
+        }
+        return `${serialized.length}:${(hash >>> 0).toString(16)}`
+    }
+
+    private static serializeState(state: any, contexts: ContextWriter, semantics: SemanticWriter): SerializedState {
+        const configs: any = state.configs
+        return {
+            n: state.stateNumber,
+            configs: configs.items.map((config: any) => [
+                config.state.stateNumber,
+                config.alt,
+                contexts.write(config.context),
+                semantics.write(config.semanticContext),
+                config.reachesIntoOuterContext,
+                config.precedenceFilterSuppressed
+            ] as SerializedConfig),
+            fullCtx: configs.fullCtx,
+            uniqueAlt: configs.uniqueAlt,
+            conflictingAlts: configs.conflictingAlts ? configs.conflictingAlts.values() : null,
+            accept: state.isAcceptState,
+            prediction: state.prediction,
+            requiresFullContext: state.requiresFullContext,
+            predicates: state.predicates ? state.predicates.map((p: any) => [semantics.write(p.pred), p.alt]) : null,
+            edges: DFACache.serializeEdges(state.edges)
+        }
+    }
+
+    private static serializeEdges(edges: any[] | null): [number, number][] | null {
+        if (edges == null) {
+            return null
+        }
+        const serialized: [number, number][] = []
+        edges.forEach((target, index) => {
+            if (target != null) {
+                serialized.push([index, target === ATNSimulator.ERROR ? ERROR_STATE : target.stateNumber])
+            }
+        })
+        return serialized
+    }
+
+    private static readEdges(edges: [number, number][], states: Map<number, any>): any[] {
+        const restored: any[] = []
+        for (const [index, target] of edges) {
+            restored[index] = target === ERROR_STATE ? ATNSimulator.ERROR : states.get(target)
+        }
+        return restored
+    }
+
+    private static readContexts(serialized: SerializedContext[], cache: any): (id: number) => any {
+        const contexts: any[] = []
+        const resolve = (id: number) => {
+            if (id === EMPTY_CONTEXT) {
+                return PredictionContext.EMPTY
+            }
+            return id === NULL_CONTEXT ? null : contexts[id]
+        }
+
+        // parents are always written before their children
+        for (const item of serialized) {
+            let context
+            if (item.p.length === 1) {
+                context = SingletonPredictionContext.create(resolve(item.p[0]), item.r[0])
+            } else {
+                context = new ArrayPredictionContext(item.p.map(resolve), item.r)
+            }
+            contexts.push(cache.add(context))
+        }
+
+        return resolve
+    }
+
+    private static readSemantics(serialized: SerializedSemantic[]): any[] {
+        const semantics: any[] = []
+        for (const item of serialized) {
+            switch (item.t) {
+                case "none":
+                    semantics.push(SemanticContext.NONE)
+                    break
+                case "pred":
+                    semantics.push(new Predicate(item.r, item.i, item.d))
+                    break
+                case "prec":
+                    semantics.push(new PrecedencePredicate(item.p))
+                    break
+                case "and":
+                    semantics.push(item.o.map(i => semantics[i]).reduce((a, b) => SemanticContext.andContext(a, b)))
+                    break
+                case "or":
+                    semantics.push(item.o.map(i => semantics[i]).reduce((a, b) => SemanticContext.orContext(a, b)))
+                    break
+            }
+        }
+        return semantics
+    }
+}
+
+/**
+ * Assigns ids to prediction contexts, shared sub-graphs are written once
+ */
+class ContextWriter {
+    contexts: SerializedContext[] = []
+    private ids: Map<any, number> = new Map()
+
+    write(context: any): number {
+        if (context === null) {
+            return NULL_CONTEXT
+        }
+
+        if (context === PredictionContext.EMPTY) {
+            return EMPTY_CONTEXT
+        }
+
+        const existing = this.ids.get(context)
+        if (existing !== undefined) {
+            return existing
+        }
+
+        const parents: number[] = []
+        const returnStates: number[] = []
+        for (let i = 0; i < context.length; ++i) {
+            parents.push(this.write(context.getParent(i)))
+            returnStates.push(context.getReturnState(i))
+        }
+
+        const id = this.contexts.length
+        this.contexts.push({ p: parents, r: returnStates })
+        this.ids.set(context, id)
+        return id
+    }
+}
+
+/**
+ * Assigns ids to semantic contexts
+ */
+class SemanticWriter {
+    semantics: SerializedSemantic[] = []
+    private ids: Map<any, number> = new Map()
+
+    write(semantic: any): number {
+        const existing = this.ids.get(semantic)
+        if (existing !== undefined) {
+            return existing
+        }
+
+        let serialized: SerializedSemantic
+        if (semantic === SemanticContext.NONE) {
+            serialized = { t: "none" }
+        } else if (semantic instanceof PrecedencePredicate) {
+            serialized = { t: "prec", p: semantic.precedence }
+        } else if (semantic instanceof Predicate) {
+            serialized = { t: "pred", r: semantic.ruleIndex, i: semantic.predIndex, d: semantic.isCtxDependent }
+        } else if (semantic.opnds !== undefined) {
+            const operands = semantic.opnds.map((o: any) => this.write(o))
+            serialized = { t: semantic.constructor.name === "AND" ? "and" : "or", o: operands }
+        } else {
+            throw new TypeError("Unhandled semantic context : " + semantic)
+        }
+
+        const id = this.semantics.length
+        this.semantics.push(serialized)
+        this.ids.set(semantic, id)
+        return id
+    }
+}
@@ -0,0 +1,223 @@
+/* eslint-disable @typescript-eslint/no-explicit-any */
+import { Transition } from "antlr4/atn/Transition"
+
+export type DecisionStats = {
+    decision: number,
+    // rule the decision belongs to
+    rule: string,
+    // first rule or token of each alternative
+    alternatives: string[],
+    // calls to adaptivePredict, these start in SLL mode
+    invocations: number,
+    // predictions that had to fall back to full context LL
+    fullContext: number,
+    // DFA misses that needed ATN simulation
+    atnSteps: number,
+    ambiguities: number,
+    contextSensitivities: number,
+    // tokens looked at, summed over all invocations
+    totalLookahead: number,
+    maxLookahead: number,
+    // time spent in prediction in nanoseconds
+    time: number,
+}
+
+export type DecisionOrder = "time" | "invocations" | "fullContext" | "maxLookahead" | "ambiguities"
+
+type Frame = {
+    stats: DecisionStats,
+    start: number,
+    max: number,
+}
+
+/**
+ * Per decision prediction profiler
+ *
+ * Wraps the ATN simulator and token stream of a parser and records for each decision how often it was predicted,
+ * how far it had to look ahead, how often it fell back to full context LL, ambiguities and time spent.
+ * Statistics accumulate across all parsers the profiler is attached to.
+ *
+ * Usage
+ * ```
+ *  const profiler = new DecisionProfiler()
+ *  ASTParser.profile(profiler)
+ *  ASTParser.parse({ type: "filename", value: file })
+ *  console.info(profiler.format(20))
+ * ```
+ */
+export default class DecisionProfiler {
+    private decisions: Map<number, DecisionStats> = new Map()
+    private frames: Frame[] = []
+
+    /**
+     * Start recording predictions made by the parser
+     * @param parser
+     */
+    attach(parser: any): void {
+        const profiler = this
+        const interp = parser._interp
+        const stream = parser.getTokenStream()
+
+        const consume = stream.consume
+        stream.consume = function () {
+            consume.call(this)
+            const frame = profiler.frames[profiler.frames.length - 1]
+            if (frame !== undefined && this.index > frame.max) {
+                frame.max = this.index
+            }
+        }
+
+        const adaptivePredict = interp.adaptivePredict
+        interp.adaptivePredict = function (input: any, decision: number, outerContext: any) {
+            const stats = profiler.decision(parser, decision)
+            const frame: Frame = { stats, start: input.index, max: input.index }
+            profiler.frames.push(frame)
+            const start = process.hrtime.bigint()
+            try {
+                return adaptivePredict.call(this, input, decision, outerContext)
+            } finally {
+                const lookahead = frame.max - frame.start + 1
+                stats.time += Number(process.hrtime.bigint() - start)
+                stats.invocations++
+                stats.totalLookahead += lookahead
+                stats.maxLookahead = Math.max(stats.maxLookahead, lookahead)
+                profiler.frames.pop()
+            }
+        }
+
+        const execATNWithFullContext = interp.execATNWithFullContext
+        interp.execATNWithFullContext = function (...args: any[]) {
+            profiler.current(stats => stats.fullContext++)
+            return execATNWithFullContext.apply(this, args)
+        }
+
+        const computeTargetState = interp.computeTargetState
+        interp.computeTargetState = function (...args: any[]) {
+            profiler.current(stats => stats.atnSteps++)
+            return computeTargetState.apply(this, args)
+        }
+
+        const reportAmbiguity = interp.reportAmbiguity
+        interp.reportAmbiguity = function (dfa: any, ...args: any[]) {
+            profiler.decision(parser, dfa.decision).ambiguities++
+            return reportAmbiguity.call(this, dfa, ...args)
+        }
+
+        const reportContextSensitivity = interp.reportContextSensitivity
+        interp.reportContextSensitivity = function (dfa: any, ...args: any[]) {
+            profiler.decision(parser, dfa.decision).contextSensitivities++
+            return reportContextSensitivity.call(this, dfa, ...args)
+        }
+    }
+
+    reset(): void {
+        this.decisions.clear()
+    }
+
+    /**
+     * Decisions ranked by given statistic, highest first
+     * @param order
+     */
+    report(order: DecisionOrder = "time"): DecisionStats[] {
+        return [...this.decisions.values()]
+            .map(stats => ({ ...stats, alternatives: [...stats.alternatives] }))
+            .sort((a, b) => b[order] - a[order])
+    }
+
+    /**
+     * Ranked report as a table
+     *
+     * @param limit number of decisions to include
+     * @param order
+     */
+    format(limit = 20, order: DecisionOrder = "time"): string {
+        const report = this.report(order)
+        const total = report.reduce((sum, stats) => sum + stats.time, 0) || 1
+        const lines = ["rank\tdecision\ttime ms\t%\tcalls\tLL\tATN\tavg k\tmax k\tambig\talternatives"]
+        report.slice(0, limit).forEach((stats, i) => {
+            lines.push([
+                i + 1,
+                `${stats.rule}:${stats.decision}`,
+                (stats.time / 1e6).toFixed(2),
+                (stats.time / total * 100).toFixed(1),
+                stats.invocations,
+                stats.fullContext,
+                stats.atnSteps,
+                (stats.totalLookahead / Math.max(stats.invocations, 1)).toFixed(2),
+                stats.maxLookahead,
+                stats.ambiguities,
+                stats.alternatives.join(" vs ")
+            ].join("\t"))
+        })
+        return lines.join("\n")
+    }
+
+    private current(update: (stats: DecisionStats) => void): void {
+        const frame = this.frames[this.frames.length - 1]
+        if (frame !== undefined) {
+            update(frame.stats)
+        }
+    }
+
+    private decision(parser: any, decision: number): DecisionStats {
+        let stats = this.decisions.get(decision)
+        if (stats === undefined) {
+            const state = parser.atn.decisionToState[decision]
+            stats = {
+                decision,
+                rule: parser.ruleNames[state.ruleIndex],
+                alternatives: state.transitions.map((t: any) => this.alternative(parser, t)),
+                invocations: 0,
+                fullContext: 0,
+                atnSteps: 0,
+                ambiguities: 0,
+                contextSensitivities: 0,
+                totalLookahead: 0,
+                maxLookahead: 0,
+                time: 0,
+            }
+            this.decisions.set(decision, stats)
+        }
+        return stats
+    }
+
+    /**
+     * Name of the first rule or token matched by an alternative, following epsilon transitions
+     *
+     * @param parser
+     * @param transition first transition of the alternative
+     */
+    private alternative(parser: any, transition: any): string {
+        for (let step = 0; step < 16; ++step) {
+            switch (transition.serializationType) {
+                case Transition.RULE:
+                    return parser.ruleNames[transition.target.ruleIndex]
+                case Transition.ATOM:
+                    return this.tokenName(parser, transition.label_)
+                case Transition.RANGE:
+                case Transition.SET:
+                case Transition.NOT_SET:
+                case Transition.WILDCARD:
+                    return "{set}"
+            }
+
+            const target = transition.target
+            if (target.transitions.length === 0) {
+                return "<exit>"
+            }
+
+            if (target.transitions.length > 1) {
+                return `(${parser.ruleNames[target.ruleIndex]} block)`
+            }
+            transition = target.transitions[0]
+        }
+        return "..."
+    }
+
+    private tokenName(parser: any, type: number): string {
+        if (type === -1) {
+            return "EOF"
+        }
+        return parser.literalNames[type] || parser.symbolicNames[type] || `${type}`
+    }
+}
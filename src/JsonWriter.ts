@@ -0,0 +1,243 @@
+/* eslint-disable @typescript-eslint/no-explicit-any */
+import * as fs from "fs"
+import { once } from "events"
+
+type Frame = {
+    value: any,
+    // keys of an object, `null` for an array
+    keys: string[] | null,
+    // next element or key
+    index: number,
+    depth: number,
+    // no key of the object is written yet
+    empty: boolean,
+}
+
+/**
+ * Streaming JSON writer
+ *
+ * Walks the tree and hands the text to the sink in chunks of about `chunkSize` characters, so only one chunk is held
+ * in memory next to the tree. Output is the same as `JSON.stringify(value, null, indent)`, with the default indent of 4
+ * it matches `Utils.toJson` and the fixture files. An indent of 0 gives compact JSON.
+ *
+ * Usage
+ * ```
+ *  JsonWriter.toFile('./bundle.json', ASTParser.parse({ type: "filename", value: './bundle.js' }))
+ *
+ *  await JsonWriter.toStream(socket, ast, 0)
+ *
+ *  const writer = new JsonWriter(chunk => process.stdout.write(chunk), 0)
+ *  writer.write(ast)
+ *  writer.flush()
+ * ```
+ */
+export default class JsonWriter {
+    private sink: (chunk: string) => void
+    private chunkSize: number
+    private buffer = ""
+    // indentation by depth, computed on first use
+    private indents: string[]
+    private separator: string
+    private colon: string
+    // containers being written, innermost last
+    private stack: Frame[] = []
+
+    constructor(sink: (chunk: string) => void, indent = 4, chunkSize = 64 * 1024) {
+        this.sink = sink
+        this.chunkSize = chunkSize
+        this.indents = [""]
+        this.separator = indent > 0 ? ",\n" : ","
+        this.colon = indent > 0 ? ": " : ":"
+        this.indents[1] = " ".repeat(Math.min(indent, 10))
+    }
+
+    /**
+     * Write JSON of the value to a file
+     *
+     * @param path
+     * @param value
+     * @param indent
+     */
+    static toFile(path: string, value: any, indent = 4): void {
+        const fd = fs.openSync(path, "w")
+        try {
+            const writer = new JsonWriter(chunk => { fs.writeSync(fd, chunk, null, "utf8") }, indent)
+            writer.write(value)
+            writer.flush()
+        } finally {
+            fs.closeSync(fd)
+        }
+    }
+
+    /**
+     * Write JSON of the value to a stream, the tree is only walked as fast as the stream drains.
+     * Resolves once the last chunk is accepted by the stream without going over its high water mark.
+     *
+     * @param stream
+     * @param value
+     * @param indent
+     */
+    static async toStream(stream: NodeJS.WritableStream, value: any, indent = 4): Promise<void> {
+        let writable = true
+        const writer = new JsonWriter(chunk => { writable = stream.write(chunk) }, indent)
+        writer.begin(value)
+        for (; ;) {
+            const done = writer.run()
+            writer.flush()
+            if (!writable) {
+                await once(stream, "drain")
+                writable = true
+            }
+            if (done) {
+                return
+            }
+        }
+    }
+
+    /**
+     * Write the value, values that `JSON.stringify` leaves out at the top level write nothing
+     * @param value
+     */
+    write(value: any): void {
+        this.begin(value)
+        while (!this.run()) {
+            this.flush()
+        }
+    }
+
+    /**
+     * Pass remaining text to the sink
+     */
+    flush(): void {
+        if (this.buffer.length > 0) {
+            this.sink(this.buffer)
+            this.buffer = ""
+        }
+    }
+
+    /**
+     * Start writing the value, containers are written by `run`
+     */
+    private begin(value: any): void {
+        this.open(resolve(value, ""), 0)
+    }
+
+    /**
+     * Write the open containers until a chunk is full, returns true when the value is written.
+     * Containers are kept on a stack instead of the call stack, so writing can stop between two chunks.
+     */
+    private run(): boolean {
+        const pretty = this.indents[1].length > 0
+        const stack = this.stack
+        while (stack.length > 0) {
+            if (this.buffer.length >= this.chunkSize) {
+                return false
+            }
+
+            const frame = stack[stack.length - 1]
+            const depth = frame.depth
+            if (frame.keys === null) {
+                const array = frame.value as any[]
+                if (frame.index === array.length) {
+                    stack.pop()
+                    this.append(pretty ? "\n" : "")
+                    this.append(this.indent(depth))
+                    this.append("]")
+                    continue
+                }
+
+                const i = frame.index++
+                if (i > 0) {
+                    this.append(this.separator)
+                }
+                this.append(this.indent(depth + 1))
+                if (!this.open(resolve(array[i], String(i)), depth + 1)) {
+                    this.append("null")
+                }
+            } else {
+                if (frame.index === frame.keys.length) {
+                    stack.pop()
+                    if (frame.empty) {
+                        this.append("{}")
+                    } else {
+                        this.append(pretty ? "\n" : "")
+                        this.append(this.indent(depth))
+                        this.append("}")
+                    }
+                    continue
+                }
+
+                const key = frame.keys[frame.index++]
+                const property = resolve(frame.value[key], key)
+                // left out by JSON.stringify, checked before writing the key
+                if (property === undefined || typeof property === "function" || typeof property === "symbol") {
+                    continue
+                }
+
+                this.append(frame.empty ? (pretty ? "{\n" : "{") : this.separator)
+                frame.empty = false
+                this.append(this.indent(depth + 1))
+                this.append(JSON.stringify(key))
+                this.append(this.colon)
+                this.open(property, depth + 1)
+            }
+        }
+        return true
+    }
+
+    /**
+     * Write a primitive value or open a container, returns false when the value has no JSON representation
+     */
+    private open(value: any, depth: number): boolean {
+        switch (typeof value) {
+            case "string":
+                this.append(JSON.stringify(value))
+                return true
+            case "number":
+                this.append(isFinite(value) ? String(value) : "null")
+                return true
+            case "boolean":
+                this.append(value ? "true" : "false")
+                return true
+            case "object":
+                if (value === null) {
+                    this.append("null")
+                } else if (Array.isArray(value)) {
+                    if (value.length === 0) {
+                        this.append("[]")
+                    } else {
+                        this.append(this.indents[1].length > 0 ? "[\n" : "[")
+                        this.stack.push({ value, keys: null, index: 0, depth, empty: false })
+                    }
+                } else {
+                    // the brace is written with the first key, objects without keys are written as `{}`
+                    this.stack.push({ value, keys: Object.keys(value), index: 0, depth, empty: true })
+                }
+                return true
+        }
+        return false
+    }
+
+    private indent(depth: number): string {
+        let indent = this.indents[depth]
+        if (indent === undefined) {
+            indent = this.indent(depth - 1) + this.indents[1]
+            this.indents[depth] = indent
+        }
+        return indent
+    }
+
+    private append(text: string): void {
+        this.buffer += text
+    }
+}
+
+/**
+ * Value as seen by `JSON.stringify`, after calling `toJSON`
+ */
+function resolve(value: any, key: string): any {
+    if (value !== null && typeof value === "object" && typeof value.toJSON === "function") {
+        return value.toJSON(key)
+    }
+    return value
+}
@@ -0,0 +1,78 @@
+/* eslint-disable @typescript-eslint/no-explicit-any */
+
+export type Position = {
+    // 1 based
+    line: number,
+    // 0 based
+    column: number,
+}
+
+/**
+ * Offsets of the first character of every line in a character stream
+ *
+ * The index is built in a single pass over the input on first lookup, lookups are then a binary search.
+ * Line terminators are `\n`, `\r`, `\r\n`, U+2028 and U+2029.
+ */
+export default class LineIndex {
+    private input: any
+    private starts: Int32Array | null = null
+    private count = 0
+
+    constructor(input: any) {
+        this.input = input
+    }
+
+    get lineCount(): number {
+        this.build()
+        return this.count
+    }
+
+    /**
+     * Line and column of the character offset
+     * @param offset
+     */
+    position(offset: number): Position {
+        const starts = this.build()
+        let low = 0
+        let high = this.count - 1
+        while (low < high) {
+            const mid = (low + high + 1) >> 1
+            if (starts[mid] <= offset) {
+                low = mid
+            } else {
+                high = mid - 1
+            }
+        }
+        return { line: low + 1, column: offset - starts[low] }
+    }
+
+    private build(): Int32Array {
+        if (this.starts !== null) {
+            return this.starts
+        }
+
+        const input = this.input
+        const data = input.data
+        // Utf8CharStream has no decoded data array
+        const charAt = data !== undefined ? (i: number) => data[i] : (i: number) => input.codeUnitAt(i)
+        const size = input.size
+
+        let starts = new Int32Array(256)
+        let count = 1
+        for (let i = 0; i < size; ++i) {
+            const c = charAt(i)
+            if (c === 0x0A || c === 0x2028 || c === 0x2029 || (c === 0x0D && (i + 1 >= size || charAt(i + 1) !== 0x0A))) {
+                if (count === starts.length) {
+                    const resized = new Int32Array(count * 2)
+                    resized.set(starts)
+                    starts = resized
+                }
+                starts[count++] = i + 1
+            }
+        }
+
+        this.starts = starts
+        this.count = count
+        return starts
+    }
+}
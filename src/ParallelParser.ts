@@ -0,0 +1,240 @@
+import { Worker, isMainThread, parentPort, workerData } from "worker_threads"
+import * as os from "os"
+import ASTParser, { SourceCode, ErrorNode } from "./ASTParser"
+import ASTNode from "./ASTNode"
+import BinaryAST from "./BinaryAST"
+import DFACache from "./DFACache"
+
+export type ParallelParserOptions = {
+    // number of worker threads, defaults to the number of cpus
+    threads?: number,
+    // DFA cache file loaded by every worker on startup
+    dfaCache?: string,
+    // send the AST back to the caller, disable when only timing is needed
+    returnAst?: boolean,
+}
+
+export type ParseResult = {
+    source: SourceCode,
+    // tree decoded on the calling thread, `null` on error or when `returnAst` is disabled
+    ast: ASTNode | null,
+    error: string | null,
+    // parse time in milliseconds, measured in the worker
+    elapsed: number,
+}
+
+type ParseTask = {
+    id: number,
+    source: SourceCode,
+}
+
+// what a worker sends back, the tree as binary AST bytes as structured clone drops the node classes
+type WorkerResult = {
+    id: number,
+    bytes: Uint8Array | null,
+    error: string | null,
+    elapsed: number,
+}
+
+type Pending = {
+    task: ParseTask,
+    resolve: (result: ParseResult) => void,
+}
+
+const WORKER_TAG = "delven-parser"
+
+/**
+ * Parse sources on a pool of worker threads
+ *
+ * Each worker has its own copy of the parser and its prediction DFA, so workers never contend on the shared DFA
+ * the way parser instances do within one thread. Workers start from the same read only warm DFA when a cache file
+ * produced by `DFACache.save` is provided.
+ * Trees are sent back encoded with `BinaryAST` and decoded on the calling thread, so they have the same node classes
+ * as trees from `ASTParser.parse`.
+ *
+ * A worker that crashes is replaced, its source resolves with the error. When workers keep crashing without
+ * completing any source, or the pool is closed, the waiting sources resolve with the error as well.
+ *
+ * Workers run the compiled module, so this needs to be used from the `dist` build.
+ *
+ * Usage
+ * ```
+ *  const pool = new ParallelParser({ threads: 4, dfaCache: './dfa.cache.json' })
+ *  const results = await pool.parseAll(files.map(file => ({ type: "filename", value: file })))
+ *  await pool.close()
+ * ```
+ */
+export default class ParallelParser {
+    private workers: Worker[] = []
+    private idle: Worker[] = []
+    private queue: Pending[] = []
+    private running: Map<Worker, Pending> = new Map()
+    private nextId = 0
+    private options: ParallelParserOptions
+    private size: number
+    // workers crashed since a source was last completed
+    private crashes = 0
+    private closed = false
+
+    constructor(options: ParallelParserOptions = {}) {
+        this.options = options
+        this.size = options.threads || os.cpus().length
+        for (let i = 0; i < this.size; ++i) {
+            this.spawn()
+        }
+    }
+
+    get threads(): number {
+        return this.workers.length
+    }
+
+    /**
+     * Parse single source on the next available worker
+     * @param source
+     */
+    parse(source: SourceCode): Promise<ParseResult> {
+        if (this.workers.length === 0) {
+            return Promise.resolve(this.failure(source, "Parser is closed"))
+        }
+
+        return new Promise(resolve => {
+            this.queue.push({ task: { id: this.nextId++, source }, resolve })
+            this.schedule()
+        })
+    }
+
+    /**
+     * Parse all sources, results are in the same order as the sources
+     * @param sources
+     */
+    parseAll(sources: SourceCode[]): Promise<ParseResult[]> {
+        return Promise.all(sources.map(source => this.parse(source)))
+    }
+
+    /**
+     * Terminate all workers, sources that are still waiting or being parsed resolve with an error
+     */
+    async close(): Promise<void> {
+        this.closed = true
+        const workers = this.workers
+        this.workers = []
+        this.idle = []
+        this.settle("Parser is closed")
+        await Promise.all(workers.map(worker => worker.terminate()))
+    }
+
+    private spawn() {
+        const worker = new Worker(__filename, {
+            workerData: {
+                tag: WORKER_TAG,
+                dfaCache: this.options.dfaCache,
+                returnAst: this.options.returnAst !== false
+            }
+        })
+        worker.on("message", (result: WorkerResult) => this.complete(worker, result))
+        worker.on("error", err => this.fail(worker, err))
+        worker.on("exit", code => this.fail(worker, new Error(`Worker stopped with exit code ${code}`)))
+        this.workers.push(worker)
+        this.idle.push(worker)
+    }
+
+    private schedule() {
+        while (this.idle.length > 0 && this.queue.length > 0) {
+            const worker = this.idle.pop() as Worker
+            const pending = this.queue.shift() as Pending
+            this.running.set(worker, pending)
+            worker.postMessage(pending.task)
+        }
+    }
+
+    private complete(worker: Worker, result: WorkerResult) {
+        const pending = this.running.get(worker)
+        this.running.delete(worker)
+        this.idle.push(worker)
+        this.crashes = 0
+        if (pending) {
+            const bytes = result.bytes
+            pending.resolve({
+                source: pending.task.source,
+                ast: bytes ? BinaryAST.decode(Buffer.from(bytes.buffer, bytes.byteOffset, bytes.length)) : null,
+                error: result.error,
+                elapsed: result.elapsed
+            })
+        }
+        this.schedule()
+    }
+
+    private fail(worker: Worker, err: Error) {
+        // 'exit' follows 'error', the worker is already gone then
+        if (!this.workers.includes(worker)) {
+            return
+        }
+
+        const pending = this.running.get(worker)
+        this.running.delete(worker)
+        this.workers = this.workers.filter(w => w !== worker)
+        this.idle = this.idle.filter(w => w !== worker)
+        if (pending) {
+            pending.resolve(this.failure(pending.task.source, err.message))
+        }
+
+        // a worker that can not start would crash again, stop replacing when all of them crashed in a row
+        if (!this.closed && ++this.crashes <= this.size) {
+            this.spawn()
+        }
+        if (this.workers.length === 0) {
+            this.settle(err.message)
+        }
+        this.schedule()
+    }
+
+    /**
+     * Resolve all waiting and running sources with an error
+     * @param error
+     */
+    private settle(error: string) {
+        for (const pending of [...this.queue.splice(0), ...this.running.values()]) {
+            pending.resolve(this.failure(pending.task.source, error))
+        }
+        this.running.clear()
+    }
+
+    private failure(source: SourceCode, error: string): ParseResult {
+        return { source, ast: null, error, elapsed: 0 }
+    }
+}
+
+function work() {
+    ASTParser.trace(false)
+    if (workerData.dfaCache) {
+        DFACache.load(workerData.dfaCache)
+    }
+
+    parentPort?.on("message", (task: ParseTask) => {
+        const start = process.hrtime.bigint()
+        let ast: ASTNode | null = null
+        let error: string | null = null
+        try {
+            ast = ASTParser.parse(task.source)
+            if (ast instanceof ErrorNode) {
+                error = ast.error.msg
+                ast = null
+            }
+        } catch (e) {
+            error = e.message
+        }
+        const elapsed = Number(process.hrtime.bigint() - start) / 1e6
+
+        let bytes: Uint8Array | null = null
+        if (ast !== null && workerData.returnAst) {
+            // copied out of the writer buffer so only the encoded bytes are transferred
+            bytes = new Uint8Array(BinaryAST.encode(ast))
+        }
+        const result: WorkerResult = { id: task.id, bytes, error, elapsed }
+        parentPort?.postMessage(result, bytes ? [bytes.buffer] : [])
+    })
+}
+
+if (!isMainThread && workerData && workerData.tag === WORKER_TAG) {
+    work()
+}
@@ -0,0 +1,307 @@
+import { Worker, isMainThread, parentPort, workerData } from "worker_threads"
+import * as os from "os"
+import * as Node from "./nodes"
+import BinaryAST, { BinaryASTReader } from "./BinaryAST"
+import SourceGenerator, { SourceFragment } from "./SourceGenerator"
+import SourceMap from "./SourceMap"
+
+export type ParallelSourceGeneratorOptions = {
+    // number of worker threads, defaults to the number of cpus
+    threads?: number,
+    // same as `SourceGeneratorOptions.minify`
+    minify?: boolean,
+    // same as `SourceGeneratorOptions.mappings`
+    mappings?: "node" | "statement",
+    // smallest run of statements given to a worker, in encoded bytes
+    minChunkBytes?: number,
+}
+
+type GenerateTask = {
+    id: number,
+    // binary AST of the module, shared by all tasks of one `toSource` call
+    job: number,
+    buffer: SharedArrayBuffer,
+    // offset of the first statement and number of statements to generate
+    start: number,
+    count: number,
+    minify: boolean,
+    mappings: boolean,
+    granularity: "node" | "statement",
+}
+
+type GenerateResult = {
+    id: number,
+    fragment: SourceFragment | null,
+    error: string | null,
+}
+
+type Pending = {
+    task: GenerateTask,
+    resolve: (fragment: SourceFragment) => void,
+    reject: (err: Error) => void,
+}
+
+type Chunk = {
+    start: number,
+    count: number,
+}
+
+const WORKER_TAG = "delven-generator"
+
+// chunks per thread, more chunks than threads even out statements of different cost
+const CHUNKS_PER_THREAD = 4
+
+/**
+ * Generate source of large modules on a pool of worker threads
+ *
+ * The module is encoded once with `BinaryAST` into shared memory. Its top-level statements are split into runs of
+ * about the same encoded size, every worker decodes only the statements of its run and generates them into a
+ * `SourceFragment`, and the fragments are joined in order. The result, including the source map, is the same as
+ * `SourceGenerator.toSource` gives.
+ * Mappings of a fragment are kept as offsets into the fragment, so they are fixed up by adding the offset where the
+ * fragment is placed, lines and columns are only computed when the map is encoded.
+ *
+ * The input is the binary AST of the module, for example from the disk tier of `ParseCache`. A tree is accepted as
+ * well but it is encoded on the calling thread first, which takes longer than generating it there, so for a tree
+ * that is not encoded yet this is slower than `SourceGenerator.toSource`.
+ *
+ * A worker that crashes is replaced and the statements it was generating reject with the error. When workers keep
+ * crashing without completing any statements, or the pool is closed, the waiting calls reject as well.
+ *
+ * Workers run the compiled module, so this needs to be used from the `dist` build.
+ *
+ * Usage
+ * ```
+ *  const pool = new ParallelSourceGenerator({ threads: 4 })
+ *  const script = await pool.toSource(fs.readFileSync('./bundle.ast'))
+ *  await pool.close()
+ * ```
+ */
+export default class ParallelSourceGenerator {
+    private generator: SourceGenerator
+    private minify: boolean
+    private granularity: "node" | "statement"
+    private minChunkBytes: number
+    private workers: Worker[] = []
+    private idle: Worker[] = []
+    private queue: Pending[] = []
+    private running: Map<Worker, Pending> = new Map()
+    private nextId = 0
+    private nextJob = 0
+    private size: number
+    // workers crashed since a task was last completed
+    private crashes = 0
+    private closed = false
+
+    constructor(options: ParallelSourceGeneratorOptions = {}) {
+        this.size = options.threads || os.cpus().length
+        this.minify = options.minify === true
+        this.granularity = options.mappings || "statement"
+        this.minChunkBytes = options.minChunkBytes || 16 * 1024
+        this.generator = new SourceGenerator({ minify: this.minify })
+        for (let i = 0; i < this.size; ++i) {
+            this.spawn()
+        }
+    }
+
+    get threads(): number {
+        return this.workers.length
+    }
+
+    /**
+     * Convert the binary AST of a module back into source
+     *
+     * A module tree is encoded on the calling thread first, see the class comment.
+     *
+     * @param node
+     * @param map
+     */
+    async toSource(node: Node.Module | Buffer, map: SourceMap | null = null): Promise<string> {
+        const bytes = Buffer.isBuffer(node) ? node : BinaryAST.encode(node)
+        const buffer = new SharedArrayBuffer(bytes.length)
+        bytes.copy(Buffer.from(buffer))
+
+        const job = this.nextJob++
+        const fragments = await Promise.all(this.split(bytes).map(chunk => this.generate({
+            id: this.nextId++,
+            job,
+            buffer,
+            start: chunk.start,
+            count: chunk.count,
+            minify: this.minify,
+            mappings: map !== null,
+            granularity: this.granularity
+        })))
+        return this.generator.join(fragments, map)
+    }
+
+    /**
+     * Terminate all workers, `toSource` calls that are still waiting or being generated reject
+     */
+    async close(): Promise<void> {
+        this.closed = true
+        const workers = this.workers
+        this.workers = []
+        this.idle = []
+        this.settle(new Error("Generator is closed"))
+        await Promise.all(workers.map(worker => worker.terminate()))
+    }
+
+    /**
+     * Split the top-level statements into runs of about the same encoded size
+     * @param bytes
+     */
+    private split(bytes: Buffer): Chunk[] {
+        const reader = new BinaryASTReader(bytes)
+        const offsets: number[] = []
+        reader.begin()
+        while (reader.next()) {
+            if (reader.key() !== "body") {
+                reader.skip()
+                continue
+            }
+
+            reader.begin()
+            while (reader.next()) {
+                offsets.push(reader.offset)
+                reader.skip()
+            }
+            offsets.push(reader.offset)
+            break
+        }
+
+        if (offsets.length < 2) {
+            return []
+        }
+
+        const total = offsets[offsets.length - 1] - offsets[0]
+        const size = Math.max(this.minChunkBytes, Math.ceil(total / (this.size * CHUNKS_PER_THREAD)))
+        const chunks: Chunk[] = []
+        let first = 0
+        for (let i = 1; i < offsets.length; ++i) {
+            if (offsets[i] - offsets[first] >= size || i === offsets.length - 1) {
+                chunks.push({ start: offsets[first], count: i - first })
+                first = i
+            }
+        }
+        return chunks
+    }
+
+    private generate(task: GenerateTask): Promise<SourceFragment> {
+        if (this.workers.length === 0) {
+            return Promise.reject(new Error("Generator is closed"))
+        }
+
+        return new Promise((resolve, reject) => {
+            this.queue.push({ task, resolve, reject })
+            this.schedule()
+        })
+    }
+
+    private spawn() {
+        const worker = new Worker(__filename, { workerData: { tag: WORKER_TAG } })
+        worker.on("message", (result: GenerateResult) => this.complete(worker, result))
+        worker.on("error", err => this.fail(worker, err))
+        worker.on("exit", code => this.fail(worker, new Error(`Worker stopped with exit code ${code}`)))
+        this.workers.push(worker)
+        this.idle.push(worker)
+    }
+
+    private schedule() {
+        while (this.idle.length > 0 && this.queue.length > 0) {
+            const worker = this.idle.pop() as Worker
+            const pending = this.queue.shift() as Pending
+            this.running.set(worker, pending)
+            worker.postMessage(pending.task)
+        }
+    }
+
+    private complete(worker: Worker, result: GenerateResult) {
+        if (!this.workers.includes(worker)) {
+            // result of a task that was rejected when the pool was closed
+            return
+        }
+
+        const pending = this.running.get(worker)
+        this.running.delete(worker)
+        this.idle.push(worker)
+        this.crashes = 0
+        if (pending) {
+            if (result.fragment !== null) {
+                pending.resolve(result.fragment)
+            } else {
+                pending.reject(new Error(result.error || "Generation failed"))
+            }
+        }
+        this.schedule()
+    }
+
+    private fail(worker: Worker, err: Error) {
+        // 'exit' follows 'error', the worker is already gone then
+        if (!this.workers.includes(worker)) {
+            return
+        }
+
+        const pending = this.running.get(worker)
+        this.running.delete(worker)
+        this.workers = this.workers.filter(w => w !== worker)
+        this.idle = this.idle.filter(w => w !== worker)
+        if (pending) {
+            pending.reject(err)
+        }
+
+        // a worker that can not start would crash again, stop replacing when all of them crashed in a row
+        if (!this.closed && ++this.crashes <= this.size) {
+            this.spawn()
+        }
+        if (this.workers.length === 0) {
+            this.settle(err)
+        }
+        this.schedule()
+    }
+
+    private settle(err: Error) {
+        for (const pending of [...this.queue.splice(0), ...this.running.values()]) {
+            pending.reject(err)
+        }
+        this.running.clear()
+    }
+}
+
+function work() {
+    // reader of the current job, the string table is decoded once per job
+    let job = -1
+    let reader: BinaryASTReader | null = null
+
+    function* statements(reader: BinaryASTReader, task: GenerateTask): Generator<Node.Statement> {
+        reader.seek(task.start)
+        for (let i = 0; i < task.count; ++i) {
+            yield reader.value()
+        }
+    }
+
+    parentPort?.on("message", (task: GenerateTask) => {
+        let fragment: SourceFragment | null = null
+        let error: string | null = null
+        try {
+            if (reader === null || job !== task.job) {
+                reader = new BinaryASTReader(Buffer.from(task.buffer))
+                job = task.job
+            }
+            fragment = new SourceGenerator({ minify: task.minify, mappings: task.granularity })
+                .fragment(statements(reader, task), task.mappings)
+        } catch (e) {
+            error = e.message
+        }
+
+        const result: GenerateResult = { id: task.id, fragment, error }
+        const mappings = fragment?.mappings
+        const transfer = mappings ? [mappings.generatedOffsets.buffer, mappings.originalLines.buffer,
+            mappings.originalColumns.buffer, mappings.nameIndexes.buffer, mappings.breaks.buffer] : []
+        parentPort?.postMessage(result, transfer)
+    })
+}
+
+if (!isMainThread && workerData && workerData.tag === WORKER_TAG) {
+    work()
+}
@@ -0,0 +1,206 @@
+/* eslint-disable @typescript-eslint/no-explicit-any */
+import * as crypto from "crypto"
+import * as fs from "fs"
+import * as path from "path"
+import ASTNode from "./ASTNode"
+import { SourceCode, ErrorNode } from "./ASTParser"
+import BinaryAST from "./BinaryAST"
+
+export type ParseCacheStats = {
+    hits: number,
+    misses: number,
+    evictions: number,
+    // hits served from disk, also counted in `hits`
+    diskHits: number,
+    diskWrites: number,
+    // entries and estimated bytes held in memory
+    entries: number,
+    bytes: number,
+}
+
+type Entry = {
+    ast: ASTNode,
+    size: number,
+}
+
+/**
+ * Cache of parse results keyed by a hash of the source text and the parser options
+ *
+ * The memory tier holds trees up to a budget of estimated retained bytes, least recently used trees are evicted first
+ * and a single tree larger than the budget is not kept in memory at all.
+ * When a directory is given, trees are also written to disk in the `BinaryAST` format and read back on a memory miss.
+ *
+ * Cached trees are shared between callers and must not be modified. Parse errors are not cached.
+ *
+ * Usage
+ * ```
+ *  const cache = new ParseCache(256 * 1024 * 1024, './.ast-cache')
+ *  ASTParser.cache(cache)
+ *  ASTParser.parse({ type: "filename", value: file })
+ *  console.info(cache.stats())
+ * ```
+ */
+export default class ParseCache {
+    private entries: Map<string, Entry> = new Map()
+    private bytes = 0
+    private counters = { hits: 0, misses: 0, evictions: 0, diskHits: 0, diskWrites: 0 }
+
+    /**
+     * @param maxBytes budget of the memory tier in estimated retained bytes
+     * @param directory directory of the disk tier, `null` for memory only
+     */
+    constructor(readonly maxBytes = 64 * 1024 * 1024, readonly directory: string | null = null) {
+        if (directory !== null) {
+            fs.mkdirSync(directory, { recursive: true })
+        }
+    }
+
+    /**
+     * Cached tree for the source, the source is parsed with `parse` on a miss
+     *
+     * @param source
+     * @param options signature of the parser options that change the produced tree
+     * @param parse
+     */
+    get(source: SourceCode, options: string, parse: () => ASTNode): ASTNode {
+        const key = this.key(source, options)
+        const entry = this.entries.get(key)
+        if (entry !== undefined) {
+            // move to the most recently used end
+            this.entries.delete(key)
+            this.entries.set(key, entry)
+            this.counters.hits++
+            return entry.ast
+        }
+
+        const stored = this.read(key)
+        if (stored !== null) {
+            this.counters.hits++
+            this.counters.diskHits++
+            this.add(key, stored)
+            return stored
+        }
+
+        this.counters.misses++
+        const ast = parse()
+        if (!(ast instanceof ErrorNode)) {
+            this.add(key, ast)
+            this.write(key, ast)
+        }
+        return ast
+    }
+
+    stats(): ParseCacheStats {
+        return { ...this.counters, entries: this.entries.size, bytes: this.bytes }
+    }
+
+    resetStats(): void {
+        this.counters = { hits: 0, misses: 0, evictions: 0, diskHits: 0, diskWrites: 0 }
+    }
+
+    /**
+     * Drop the memory tier, entries on disk are kept
+     */
+    clear(): void {
+        this.entries.clear()
+        this.bytes = 0
+    }
+
+    private key(source: SourceCode, options: string): string {
+        const hash = crypto.createHash("sha1")
+        hash.update(source.type === "code" ? source.value : fs.readFileSync(source.value))
+        hash.update("\0")
+        hash.update(options)
+        return hash.digest("hex")
+    }
+
+    private add(key: string, ast: ASTNode): void {
+        const size = retainedSize(ast)
+        if (size > this.maxBytes) {
+            return
+        }
+
+        this.entries.set(key, { ast, size })
+        this.bytes += size
+        for (const [oldest, entry] of this.entries) {
+            if (this.bytes <= this.maxBytes) {
+                break
+            }
+            this.entries.delete(oldest)
+            this.bytes -= entry.size
+            this.counters.evictions++
+        }
+    }
+
+    private file(key: string): string {
+        return path.join(this.directory as string, `${key}.ast`)
+    }
+
+    private read(key: string): ASTNode | null {
+        if (this.directory === null) {
+            return null
+        }
+
+        let data: Buffer
+        try {
+            data = fs.readFileSync(this.file(key))
+        } catch (e) {
+            return null
+        }
+
+        try {
+            return BinaryAST.decode(data)
+        } catch (e) {
+            // written by another version
+            return null
+        }
+    }
+
+    private write(key: string, ast: ASTNode): void {
+        if (this.directory === null) {
+            return
+        }
+
+        // write to a temporary file first so readers never see a partial entry
+        const file = this.file(key)
+        const temporary = `${file}.${process.pid}.tmp`
+        fs.writeFileSync(temporary, BinaryAST.encode(ast))
+        fs.renameSync(temporary, file)
+        this.counters.diskWrites++
+    }
+}
+
+/**
+ * Estimated bytes retained by a tree, objects and arrays are counted with their headers and slots
+ * @param value
+ */
+function retainedSize(value: any): number {
+    if (value === null || value === undefined) {
+        return 0
+    }
+
+    switch (typeof value) {
+        case "string":
+            return 16 + value.length * 2
+        case "object":
+            break
+        default:
+            return 8
+    }
+
+    let size = 0
+    if (Array.isArray(value)) {
+        size += 16 + value.length * 8
+        for (const element of value) {
+            size += retainedSize(element)
+        }
+        return size
+    }
+
+    const keys = Object.keys(value)
+    size += 24 + keys.length * 8
+    for (const key of keys) {
+        size += retainedSize(value[key])
+    }
+    return size
+}
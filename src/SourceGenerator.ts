@@ -2,6 +2,55 @@ import ASTVisitor, { Binding } from "./ASTVisitor";
 import * as Node from "./nodes";
 import { Syntax } from "./syntax";
 import { isNullOrUndefined } from "util";
+import * as fs from "fs"
+import SourceMap, { SourceMapSegments } from "./SourceMap"
+import { Position } from "./LineIndex"
+
+// characters collected before a chunk is passed on
+const CHUNK_SIZE = 64 * 1024
+
+const HEADER = "// Generated code"
+
+// binding strength of expressions, an operand with a lower level than its position requires is parenthesized
+const Precedence = {
+    Sequence: 0,
+    Assignment: 1,
+    Conditional: 2,
+    Coalesce: 3,
+    Unary: 14,
+    Postfix: 15,
+    Call: 16,
+    Primary: 17,
+}
+
+const BINARY_PRECEDENCE: { [operator: string]: number } = {
+    "??": 3, "||": 3, "&&": 4, "|": 5, "^": 6, "&": 7,
+    "==": 8, "!=": 8, "===": 8, "!==": 8,
+    "<": 9, ">": 9, "<=": 9, ">=": 9, "instanceof": 9, "in": 9,
+    "<<": 10, ">>": 10, ">>>": 10,
+    "+": 11, "-": 11,
+    "*": 12, "/": 12, "%": 12,
+    "**": 13,
+}
+
+export type SourceGeneratorOptions = {
+    // leave out optional whitespace, semicolons and parentheses, and write shorter numbers and strings
+    minify?: boolean,
+    // what gets mapped when a source map is given, "statement" (default) only maps the start of statements,
+    // "node" also maps expressions and identifiers with their names, over twice the mappings and slower to collect
+    mappings?: "node" | "statement",
+}
+
+/**
+ * Source of a run of top-level statements, generated on its own
+ */
+export type SourceFragment = {
+    text: string,
+    // minify only, a semicolon is owed to the last statement when code follows
+    terminate: boolean,
+    // mappings with offsets relative to the start of the fragment, `null` without a source map
+    mappings: SourceMapSegments | null,
+}
 
 /**
  * Source generator to transform valid AST back into ECMAScript
@@ -14,51 +63,350 @@ import { isNullOrUndefined } from "util";
  *  const script = generator.toSource(ast);
  *  console.info('-------')
  *  console.info(script)
+ *
+ *  const minified = new SourceGenerator({ minify: true }).toSource(ast)
  * ```
  */
 export default class SourceGenerator {
+    private options: SourceGeneratorOptions
+
+    constructor(options: SourceGeneratorOptions = {}) {
+        this.options = options
+    }
 
     /**
      * Convert ASTNode back into sourcecode representation
      * 
+     * When a source map is given, the start of statements is mapped to their `loc`, and the start of expressions and
+     * identifiers as well with `mappings: "node"`, so the tree has to be parsed with `ASTParser.locations(true)`.
+     * 
      * @param node 
+     * @param map 
      */
-    toSource(node: Node.Module): string {
-        const visitor = new ExplicitASTNodeVisitor()
+    toSource(node: Node.Module, map: SourceMap | null = null): string {
+        const visitor = new ExplicitASTNodeVisitor(null, map, this.options.minify === true,
+            this.options.mappings === "node")
         visitor.visitModule(node)
         return visitor.buffer
     }
+
+    /**
+     * Generate source into the sink in chunks, the complete source is never held in memory
+     * 
+     * @param node 
+     * @param sink 
+     * @param map 
+     */
+    write(node: Node.Module, sink: (chunk: string) => void, map: SourceMap | null = null): void {
+        const visitor = new ExplicitASTNodeVisitor(sink, map, this.options.minify === true,
+            this.options.mappings === "node")
+        visitor.visitModule(node)
+        visitor.flush()
+    }
+
+    /**
+     * Generate a run of top-level statements without the module header
+     * 
+     * Every top-level statement starts from the same generator state, so fragments of consecutive statements can be
+     * generated independently, for example on different threads, and put together with `join`.
+     * Mappings are generated when `mappings` is true, the tree has to have `loc` then.
+     * 
+     * @param statements 
+     * @param mappings 
+     */
+    fragment(statements: Iterable<Node.Statement | Node.Declaration>, mappings = false): SourceFragment {
+        const map = mappings ? new SourceMap("") : null
+        const visitor = new ExplicitASTNodeVisitor(null, map, this.options.minify === true,
+            this.options.mappings === "node")
+        for (const statement of statements) {
+            visitor.visitStatement(statement)
+        }
+
+        return {
+            text: visitor.buffer,
+            terminate: visitor.terminated,
+            mappings: map !== null ? map.segments() : null
+        }
+    }
+
+    /**
+     * Join the fragments of all top-level statements of a module, in order, into the source `toSource` generates.
+     * Mappings of the fragments are moved by the offset of their fragment and added to the map.
+     * 
+     * @param fragments 
+     * @param map 
+     */
+    join(fragments: SourceFragment[], map: SourceMap | null = null): string {
+        const minify = this.options.minify === true
+        const parts: string[] = []
+        let length = 0
+        // minify only, the state at the end of the previous fragment
+        let last = 0
+        let terminate = false
+
+        if (!minify) {
+            parts.push(HEADER + '\n')
+            length = HEADER.length + 1
+            map?.text(parts[0], 0)
+        }
+
+        for (const fragment of fragments) {
+            if (fragment.text.length === 0) {
+                continue
+            }
+
+            if (minify) {
+                const separator = terminate ? ';' : needsSpace(last, fragment.text.charCodeAt(0)) ? ' ' : ''
+                if (separator.length > 0) {
+                    parts.push(separator)
+                    length += separator.length
+                }
+                last = fragment.text.charCodeAt(fragment.text.length - 1)
+                terminate = fragment.terminate
+            }
+
+            if (map !== null && fragment.mappings !== null) {
+                map.append(fragment.mappings, length)
+            }
+            parts.push(fragment.text)
+            length += fragment.text.length
+        }
+        return parts.join("")
+    }
+
+    /**
+     * Generate source into a file
+     * 
+     * @param node 
+     * @param path 
+     */
+    toFile(node: Node.Module, path: string): void {
+        const fd = fs.openSync(path, "w")
+        try {
+            this.write(node, chunk => { fs.writeSync(fd, chunk, null, "utf8") })
+        } finally {
+            fs.closeSync(fd)
+        }
+    }
+}
+
+/**
+ * Output of the generator, text is collected in chunks that are either kept or passed to a sink when full
+ */
+class SourceBuffer {
+    private chunks: string[] = []
+    private current = ""
+    private sink: ((chunk: string) => void) | null
+    private map: SourceMap | null
+    // length of the text in completed chunks
+    private flushed = 0
+
+    constructor(sink: ((chunk: string) => void) | null = null, map: SourceMap | null = null) {
+        this.sink = sink
+        this.map = map
+    }
+
+    /**
+     * Number of characters written so far
+     */
+    get length(): number {
+        return this.flushed + this.current.length
+    }
+
+    append(text: string): void {
+        this.current += text
+        if (this.current.length >= CHUNK_SIZE) {
+            this.flush()
+        }
+    }
+
+    flush(): void {
+        if (this.current.length === 0) {
+            return
+        }
+
+        if (this.map !== null) {
+            this.map.text(this.current, this.flushed)
+        }
+
+        if (this.sink !== null) {
+            this.sink(this.current)
+        } else {
+            this.chunks.push(this.current)
+        }
+        this.flushed += this.current.length
+        this.current = ""
+    }
+
+    toString(): string {
+        this.flush()
+        if (this.chunks.length > 1) {
+            this.chunks = [this.chunks.join("")]
+        }
+        return this.chunks.length > 0 ? this.chunks[0] : ""
+    }
 }
 
 class ExplicitASTNodeVisitor extends ASTVisitor {
 
-    private _buffer: string
+    private _buffer: SourceBuffer
     private indentation: number
     private indent_with: string;
     private line: number;
     private indent: string;
-
-    constructor() {
+    // indentation by depth, computed on first use
+    private indents: string[]
+    private map: SourceMap | null
+    // original position and name to map at the next text written
+    private pending: Position | null = null
+    private pendingName: string | null = null
+    // expressions and identifiers are mapped, not only statements
+    private mapNodes: boolean
+    private minify: boolean
+    // minify only, character code of the last character written
+    private last = 0
+    // minify only, a semicolon has to be written before the next token
+    private terminate = false
+
+    constructor(sink: ((chunk: string) => void) | null = null, map: SourceMap | null = null, minify = false,
+        mapNodes = true) {
         super()
-        this._buffer = ""
+        this._buffer = new SourceBuffer(sink, map)
+        this.map = map
+        this.mapNodes = map !== null && mapNodes
+        this.minify = minify
         this.indentation = 0
         this.indent_with = "    "
         this.indent = ""
+        this.indents = [""]
         this.line = 1
     }
 
     get buffer(): string {
-        return this._buffer;
+        return this._buffer.toString();
+    }
+
+    /**
+     * Whether the last statement written still needs a semicolon before more code
+     */
+    get terminated(): boolean {
+        return this.terminate
+    }
+
+    flush(): void {
+        this._buffer.flush()
     }
 
     private write(txt: string, useIndent: boolean, newline = false): void {
-        this._buffer += (useIndent ? this.indent : "") + txt;
+        if (this.minify) {
+            this.writeCompact(txt)
+            return
+        }
+
+        if (useIndent) {
+            this._buffer.append(this.indent)
+        }
+        if (this.pending !== null) {
+            this.flushMapping()
+        }
+        this._buffer.append(txt)
         if (newline) {
-            this._buffer += '\n';
+            this._buffer.append('\n');
             this.line++;
         }
     }
 
+    /**
+     * Write the tokens of the text without the whitespace between them
+     * @param txt 
+     */
+    private writeCompact(txt: string): void {
+        let start = 0
+        for (let i = 0; i < txt.length; ++i) {
+            const c = txt.charCodeAt(i)
+            if (c === 0x20 || c === 0x0A) {
+                if (i > start) {
+                    this.token(txt.substring(start, i))
+                }
+                start = i + 1
+            }
+        }
+
+        if (start < txt.length) {
+            this.token(start === 0 ? txt : txt.substring(start))
+        }
+    }
+
+    /**
+     * Write text as is, with a pending semicolon before it and a space when it would otherwise run into the last token
+     * @param txt 
+     */
+    private token(txt: string): void {
+        if (txt.length === 0) {
+            return
+        }
+
+        if (this.terminate) {
+            this.terminate = false
+            this._buffer.append(';')
+            this.last = SEMICOLON
+        }
+        if (needsSpace(this.last, txt.charCodeAt(0))) {
+            this._buffer.append(' ')
+        }
+        if (this.pending !== null) {
+            this.flushMapping()
+        }
+        this._buffer.append(txt)
+        this.last = txt.charCodeAt(txt.length - 1)
+    }
+
+    /**
+     * Write a closing brace, no semicolon is needed before it
+     */
+    private writeCloseBrace(useIndent: boolean, newline = false): void {
+        this.terminate = false
+        this.write('}', useIndent, newline)
+    }
+
+    /**
+     * Visit an operand, when minifying it is parenthesized only if it binds weaker than its position requires
+     * 
+     * @param expression 
+     * @param level lowest precedence that can stand at the position without parentheses
+     * @param operator binary operator the expression is an operand of
+     */
+    private visitOperand(expression: Node.Expression, level: number, operator: string | null = null): void {
+        if (!this.minify) {
+            this.visitExpression(expression)
+            return
+        }
+
+        const wrap = precedence(expression) < level || (operator !== null && mixesCoalesce(operator, expression))
+        this.writeConditional(wrap, '(', false, false)
+        this.visitExpression(expression)
+        this.writeConditional(wrap, ')', false, false)
+    }
+
+    /**
+     * Map the next text written to the start of the node
+     * @param node 
+     * @param name original name, for identifiers
+     */
+    private mark(node: any, name: string | null = null): void {
+        const loc = node.loc
+        if (this.map !== null && loc !== undefined) {
+            this.pending = loc.start
+            this.pendingName = name
+        }
+    }
+
+    private flushMapping(): void {
+        const start = this.pending as Position
+        this.pending = null
+        this.map?.add(this._buffer.length, start.line - 1, start.column, this.pendingName)
+    }
+
     private writeNewLine() {
         this.write('\n', false, false)
     }
@@ -80,15 +428,23 @@ class ExplicitASTNodeVisitor extends ASTVisitor {
     }
 
     private updateIndent() {
-        let pad = "";
-        for (let i = 0; i < this.indentation; ++i) {
-            pad += this.indent_with;
+        if (this.indentation <= 0) {
+            this.indent = "";
+            return
+        }
+
+        let indent = this.indents[this.indentation]
+        if (indent === undefined) {
+            indent = this.indent_with.repeat(this.indentation)
+            this.indents[this.indentation] = indent
         }
-        this.indent = pad;
+        this.indent = indent;
     }
 
     visitModule(node: Node.Module): void {
-        this.write("// Generated code", false, true)
+        if (!this.minify) {
+            this.write(HEADER, false, true)
+        }
 
         for (const stm of node.body) {
             this.visitStatement(stm)
@@ -96,6 +452,7 @@ class ExplicitASTNodeVisitor extends ASTVisitor {
     }
 
     visitStatement(statement: Node.Declaration | Node.Statement) {
+        this.mark(statement)
 
         switch (statement.type) {
             case Syntax.BlockStatement: {
@@ -178,12 +535,51 @@ class ExplicitASTNodeVisitor extends ASTVisitor {
                 throw new TypeError("Type not handled : " + statement.type)
         }
 
-        this.write('\n', false, false)
+        if (this.minify) {
+            this.terminateStatement(statement)
+        } else {
+            this.write('\n', false, false)
+        }
+    }
+
+    /**
+     * Statements that do not end with a block or a nested statement are followed by a semicolon,
+     * which is only written when another token follows, so it is left out at the end of blocks and the module
+     * @param statement 
+     */
+    private terminateStatement(statement: Node.Declaration | Node.Statement): void {
+        switch (statement.type) {
+            case Syntax.BlockStatement:
+            case Syntax.FunctionDeclaration:
+            case Syntax.ClassDeclaration:
+            case Syntax.SwitchStatement:
+            case Syntax.TryStatement:
+            case Syntax.EmptyStatement:
+            case Syntax.IfStatement:
+            case Syntax.ForStatement:
+            case Syntax.ForInStatement:
+            case Syntax.ForOfStatement:
+            case Syntax.WhileStatement:
+            case Syntax.LabeledStatement:
+                // ended by a brace or by the nested statement, which already decided
+                break
+            case Syntax.ExportNamedDeclaration:
+                this.terminate = this.terminate || (statement as Node.ExportNamedDeclaration).declaration == null
+                break
+            case Syntax.ExportDefaultDeclaration:
+                this.terminate = (statement as Node.ExportDefaultDeclaration).declaration.type !== Syntax.FunctionDeclaration
+                break
+            default:
+                this.terminate = true
+        }
     }
 
 
 
     visitExpression(expression: Node.Expression): void {
+        if (this.mapNodes) {
+            this.mark(expression)
+        }
         switch (expression.type) {
             case Syntax.SequenceExpression: {
                 this.visitSequenceExpression(expression as Node.SequenceExpression)
@@ -292,7 +688,7 @@ class ExplicitASTNodeVisitor extends ASTVisitor {
 
     visitTaggedTemplateExpression(expression: Node.TaggedTemplateExpression): void {
         this.assertNotNull(expression)
-        this.visitExpression(expression.tag)
+        this.visitOperand(expression.tag, Precedence.Call)
         this.visitTemplateLiteral(expression.quasi)
     }
 
@@ -375,7 +771,7 @@ class ExplicitASTNodeVisitor extends ASTVisitor {
                 this.visitFunctionDeclaration(statement.declaration as Node.FunctionDeclaration)
                 break;
             default:
-                this.visitExpression(statement.declaration)
+                this.visitOperand(statement.declaration, Precedence.Assignment)
         }
     }
 
@@ -439,7 +835,7 @@ class ExplicitASTNodeVisitor extends ASTVisitor {
         this.write('(', false, false)
         this.visitExpression(statement.left)
         this.write(' of ', false, false)
-        this.visitExpression(statement.right)
+        this.visitOperand(statement.right, Precedence.Assignment)
         this.write(')', false, false)
         this.visitStatement(statement.body)
     }
@@ -535,7 +931,7 @@ class ExplicitASTNodeVisitor extends ASTVisitor {
             }
         }
 
-        this.write('}', false, true)
+        this.writeCloseBrace(false, true)
     }
 
     visitSwitchCase(_case: Node.SwitchCase) {
@@ -573,7 +969,7 @@ class ExplicitASTNodeVisitor extends ASTVisitor {
 
     visitUpdateExpression(expression: Node.UpdateExpression): void {
         this.writeConditional(expression.prefix, expression.operator, false, false)
-        this.visitExpression(expression.argument)
+        this.visitOperand(expression.argument, Precedence.Postfix)
         this.writeConditional(!expression.prefix, expression.operator, false, false)
     }
 
@@ -601,6 +997,7 @@ class ExplicitASTNodeVisitor extends ASTVisitor {
         this.write('(', false, true)
         this.indentIncease()
         this.classDefinition(expression)
+        this.indentDecrease()
         this.write(')', false, true)
     }
 
@@ -615,7 +1012,7 @@ class ExplicitASTNodeVisitor extends ASTVisitor {
 
         if (expression.superClass) {
             this.write(' extends ', false, false)
-            this.visitExpression(expression.superClass)
+            this.visitOperand(expression.superClass, Precedence.Call)
         }
 
         this.write('{ ', false, true)
@@ -644,9 +1041,13 @@ class ExplicitASTNodeVisitor extends ASTVisitor {
                 default: throw new TypeError("Type not handled  : " + property.type)
             }
 
-            this.write('\n', false, false)
+            if (this.minify) {
+                this.terminate = property.type === Syntax.ClassProperty || property.type === Syntax.ClassPrivateProperty
+            } else {
+                this.write('\n', false, false)
+            }
         }
-        this.write('}', false, false)
+        this.writeCloseBrace(false, false)
     }
 
     visitClassPrivateProperty(property: Node.ClassPrivateProperty) {
@@ -657,7 +1058,7 @@ class ExplicitASTNodeVisitor extends ASTVisitor {
     visitClassProperty(property: Node.ClassProperty) {
         this.visitPropertyKey(property.id)
         this.write(' = ', false, false)
-        this.visitExpression(property.expression)
+        this.visitOperand(property.expression, Precedence.Assignment)
     }
 
     visitMethodDefinition(expression: Node.MethodDefinition) {
@@ -722,11 +1123,22 @@ class ExplicitASTNodeVisitor extends ASTVisitor {
                     this.indentDecrease()
                 }
             }
-            this.write("}", true, false)
+            this.writeCloseBrace(true, false)
         }
     }
 
     visitExpressionStatement(statement: Node.ExpressionStatement): void {
+        if (this.minify) {
+            // a statement cannot start with a brace or a function or class keyword
+            const first = leftmost(statement.expression).type
+            const wrap = first === Syntax.ObjectExpression || first === Syntax.ObjectPattern
+                || first === Syntax.FunctionExpression || first === Syntax.ClassExpression
+            this.writeConditional(wrap, '(', false, false)
+            this.visitExpression(statement.expression)
+            this.writeConditional(wrap, ')', false, false)
+            return
+        }
+
         switch (statement.expression.type) {
             // case Syntax.AssignmentExpression:
             case Syntax.ObjectExpression:
@@ -744,12 +1156,12 @@ class ExplicitASTNodeVisitor extends ASTVisitor {
     visitAssignmentExpression(expression: Node.AssignmentExpression): void {
         this.visitExpression(expression.left)
         this.write(" " + expression.operator + " ", false, false)
-        this.visitExpression(expression.right)
+        this.visitOperand(expression.right, Precedence.Assignment)
     }
 
     visitSequenceExpression(sequence: Node.SequenceExpression): void {
         for (let i = 0; i < sequence.expressions.length; ++i) {
-            this.visitExpression(sequence.expressions[i] as Node.Expression)
+            this.visitOperand(sequence.expressions[i] as Node.Expression, Precedence.Assignment)
             if (i < sequence.expressions.length - 1) {
                 this.write(", ", false, false)
             }
@@ -758,6 +1170,20 @@ class ExplicitASTNodeVisitor extends ASTVisitor {
 
 
     visitTemplateLiteral(template: Node.TemplateLiteral): void {
+        if (this.minify) {
+            // quasis are written with their delimiters as single tokens, no space may be put into them
+            for (let i = 0; i < template.quasis.length; ++i) {
+                const open = i === 0 ? '`' : '}'
+                const close = i < template.expressions.length ? '${' : '`'
+                this.token(open + template.quasis[i].value.raw + close)
+                if (i < template.expressions.length) {
+                    this.visitExpression(template.expressions[i])
+                }
+            }
+            this.writeConditional(template.quasis.length === 0, '``', false, false)
+            return
+        }
+
         if (template.quasis.length === 0) {
             this.write('``', false, false)
         } else {
@@ -790,7 +1216,7 @@ class ExplicitASTNodeVisitor extends ASTVisitor {
 
         if (expression.argument) {
             this.write(' ', false, false)
-            this.visitExpression(expression.argument)
+            this.visitOperand(expression.argument, Precedence.Assignment)
         }
     }
 
@@ -799,18 +1225,18 @@ class ExplicitASTNodeVisitor extends ASTVisitor {
     }
 
     visitConditionalExpression(expression: Node.ConditionalExpression): void {
-        this.visitExpression(expression.test)
+        this.visitOperand(expression.test, Precedence.Coalesce)
         this.write(' ? ', false, false)
-        this.visitExpression(expression.consequent)
+        this.visitOperand(expression.consequent, Precedence.Assignment)
         this.write(' : ', false, false)
-        this.visitExpression(expression.alternate)
+        this.visitOperand(expression.alternate, Precedence.Assignment)
     }
 
 
     visitAwaitExpression(expression: Node.AwaitExpression) {
         this.write('await', false, false)
         this.write(' ', false, false)
-        this.visitExpression(expression.argument)
+        this.visitOperand(expression.argument, Precedence.Unary)
     }
 
     visitProperty(expression: Node.Property): void {
@@ -839,7 +1265,7 @@ class ExplicitASTNodeVisitor extends ASTVisitor {
     visitUnaryExpression(expression: Node.UnaryExpression): void {
         this.write(expression.operator, false, false)
         this.writeConditional((expression.operator === 'typeof' || expression.operator === 'void'), ' ', false, false)
-        this.visitExpression(expression.argument)
+        this.visitOperand(expression.argument, Precedence.Unary)
     }
 
     visitNewExpression(expression: Node.NewExpression): void {
@@ -847,7 +1273,14 @@ class ExplicitASTNodeVisitor extends ASTVisitor {
         const args = expression.arguments;
 
         this.write('new ', false, false)
-        this.visitExpression(callee)
+        if (this.minify && hasCall(callee)) {
+            // a call in the callee would take the arguments of new
+            this.write('(', false, false)
+            this.visitExpression(callee)
+            this.write(')', false, false)
+        } else {
+            this.visitOperand(callee, Precedence.Call)
+        }
         this.visitParams(args)
     }
 
@@ -866,7 +1299,7 @@ class ExplicitASTNodeVisitor extends ASTVisitor {
 
     private _visitCallExpression(expression: Node.CallExpression | Node.OptionalCallExpression) {
         const args = expression.arguments;
-        if (expression.callee.type == Syntax.FunctionExpression) {
+        if (expression.callee.type == Syntax.FunctionExpression && !this.minify) {
             this.write('(', false, false)
             this.visitFunctionExpression(expression.callee as Node.FunctionExpression)
             this.write(')', false, false)
@@ -875,7 +1308,7 @@ class ExplicitASTNodeVisitor extends ASTVisitor {
             this.write('import', false, false)
             this.visitParams(args)
         } else {
-            this.visitExpression(expression.callee)
+            this.visitOperand(expression.callee, Precedence.Call)
             this.visitParams(args)
         }
     }
@@ -883,11 +1316,18 @@ class ExplicitASTNodeVisitor extends ASTVisitor {
     visitMemberExpression(expression: Node.StaticMemberExpression | Node.ComputedMemberExpression | Node.OptionalMemberExpression) {
         if (expression instanceof Node.StaticMemberExpression || expression instanceof Node.OptionalMemberExpression) {
             const isOptional = expression instanceof Node.OptionalMemberExpression
-            this.visitExpression(expression.object)
+            if (this.minify && !isOptional && isInteger(expression.object)) {
+                // the dot would be read as the decimal point
+                this.write('(', false, false)
+                this.visitExpression(expression.object)
+                this.write(')', false, false)
+            } else {
+                this.visitOperand(expression.object, Precedence.Call)
+            }
             this.write(isOptional ? '?.' : '.', false, false)
             this.visitExpression(expression.property)
         } else if (expression instanceof Node.ComputedMemberExpression) {
-            this.visitExpression(expression.object)
+            this.visitOperand(expression.object, Precedence.Call)
             this.write('[', false, false)
             this.visitExpression(expression.property)
             this.write(']', false, false)
@@ -907,7 +1347,7 @@ class ExplicitASTNodeVisitor extends ASTVisitor {
             if (arg instanceof Node.RestElement) {
                 this.vistiRestElement(arg as Node.RestElement)
             } else {
-                this.visitExpression(arg as Node.Expression)
+                this.visitOperand(arg as Node.Expression, Precedence.Assignment)
             }
             this.write(i < args.length - 1 ? ', ' : '', false, false)
         }
@@ -945,6 +1385,17 @@ class ExplicitASTNodeVisitor extends ASTVisitor {
     }
 
     binaryExpression(expression: Node.BinaryExpression): void {
+        if (this.minify) {
+            const operator = expression.operator
+            const level = BINARY_PRECEDENCE[operator]
+            // ** groups to the right and its left side cannot be a unary expression
+            const exponent = operator === '**'
+            this.visitOperand(expression.left, exponent ? Precedence.Postfix : level, operator)
+            this.write(operator, false, false)
+            this.visitOperand(expression.right, exponent ? level : level + 1, operator)
+            return
+        }
+
         const leftParen = (expression.left.type == Syntax.LogicalExpression || expression.left.type == Syntax.BinaryExpression)
         const rightParen = (expression.right.type == Syntax.LogicalExpression || expression.right.type == Syntax.BinaryExpression)
 
@@ -968,7 +1419,7 @@ class ExplicitASTNodeVisitor extends ASTVisitor {
             } else if (element instanceof Node.RestElement) {
                 this.vistiRestElement(element as Node.RestElement)
             } else {
-                this.visitExpression(element as Node.Expression)
+                this.visitOperand(element as Node.Expression, Precedence.Assignment)
             }
             this.write(i < elements.length - 1 ? ', ' : '', false, false)
         }
@@ -976,6 +1427,12 @@ class ExplicitASTNodeVisitor extends ASTVisitor {
     }
 
     vistSpreadElement(expression: Node.SpreadElement): void {
+        if (this.minify) {
+            this.write('...', false, false)
+            this.visitOperand(expression.argument, Precedence.Assignment)
+            return
+        }
+
         const wrap = !(expression.argument instanceof Node.Identifier)
         this.write('...', false, false)
         this.write(wrap ? '(' : '', false, false)
@@ -1112,6 +1569,14 @@ class ExplicitASTNodeVisitor extends ASTVisitor {
 
         if (expression.body instanceof Node.BlockStatement) {
             this.visitBlockStatement(expression.body as Node.BlockStatement)
+        } else if (this.minify) {
+            // a body starting with a brace would be read as a block
+            const body = expression.body as Node.Expression
+            const first = leftmost(body).type
+            const wrap = precedence(body) < Precedence.Assignment || first === Syntax.ObjectExpression || first === Syntax.ObjectPattern
+            this.writeConditional(wrap, '(', false, false)
+            this.visitExpression(body)
+            this.writeConditional(wrap, ')', false, false)
         } else {
             this.write('(', false, false)
             this.visitExpression(expression.body)
@@ -1145,7 +1610,7 @@ class ExplicitASTNodeVisitor extends ASTVisitor {
     visitAssignmentPattern(expression: Node.AssignmentPattern): void {
         this.visitBinding(expression.left as Binding)
         this.write(' = ', false, false)
-        this.visitExpression(expression.right)
+        this.visitOperand(expression.right, Precedence.Assignment)
     }
 
     visitBinding(binding: Binding) {
@@ -1208,10 +1673,17 @@ class ExplicitASTNodeVisitor extends ASTVisitor {
     }
 
     visitLiteral(literal: Node.Literal): void {
+        if (this.minify) {
+            this.token(compactLiteral(literal))
+            return
+        }
         this.write(literal.raw, false, false)
     }
 
     visitIdentifier(identifier: Node.Identifier): void {
+        if (this.mapNodes) {
+            this.mark(identifier, identifier.name)
+        }
         this.write(identifier.name, false, false)
     }
 
@@ -1234,7 +1706,7 @@ class ExplicitASTNodeVisitor extends ASTVisitor {
 
         if (init != null) {
             this.write(' = ', false, false)
-            this.visitExpression(init)
+            this.visitOperand(init, Precedence.Assignment)
         }
     }
 
@@ -1249,4 +1721,201 @@ class ExplicitASTNodeVisitor extends ASTVisitor {
             throw new TypeError(message)
         }
     }
-}
\ No newline at end of file
+}
+const SEMICOLON = 0x3B
+
+/**
+ * Whether a space is needed between the last character written and the first character of the next token,
+ * so that they are not read as one token or as a comment
+ * 
+ * @param last 
+ * @param next 
+ */
+function needsSpace(last: number, next: number): boolean {
+    if (isWordPart(last) && isWordPart(next)) {
+        return true
+    }
+    // a + +b, a - -b, a / /b/, a < !--b
+    return (last === next && (next === 0x2B || next === 0x2D || next === 0x2F)) || (last === 0x3C && next === 0x21)
+}
+
+function isWordPart(c: number): boolean {
+    return (c >= 0x61 && c <= 0x7A) || (c >= 0x41 && c <= 0x5A) || (c >= 0x30 && c <= 0x39)
+        || c === 0x24 || c === 0x5F || c === 0x5C || c > 0x7F
+}
+
+function precedence(expression: any): number {
+    switch (expression.type) {
+        case Syntax.SequenceExpression:
+            return Precedence.Sequence
+        case Syntax.AssignmentExpression:
+        case Syntax.ArrowFunctionExpression:
+        case Syntax.YieldExpression:
+            return Precedence.Assignment
+        case Syntax.ConditionalExpression:
+            return Precedence.Conditional
+        case Syntax.BinaryExpression:
+        case Syntax.LogicalExpression:
+            return BINARY_PRECEDENCE[expression.operator]
+        case Syntax.UnaryExpression:
+        case Syntax.AwaitExpression:
+            return Precedence.Unary
+        case Syntax.UpdateExpression:
+            return expression.prefix ? Precedence.Unary : Precedence.Postfix
+        case Syntax.CallExpression:
+        case Syntax.OptionalCallExpression:
+        case Syntax.MemberExpression:
+        case Syntax.OptionalMemberExpression:
+        case Syntax.TaggedTemplateExpression:
+        case Syntax.NewExpression:
+            return Precedence.Call
+        default:
+            return Precedence.Primary
+    }
+}
+
+/**
+ * ?? cannot be mixed with || or && without parentheses
+ * 
+ * @param operator 
+ * @param operand 
+ */
+function mixesCoalesce(operator: string, operand: any): boolean {
+    if (operand.type !== Syntax.LogicalExpression && operand.type !== Syntax.BinaryExpression) {
+        return false
+    }
+    const other = operand.operator
+    return (operator === '??' && (other === '||' || other === '&&')) || (other === '??' && (operator === '||' || operator === '&&'))
+}
+
+/**
+ * Expression that is written first, it decides how the text of the whole expression starts
+ * @param expression 
+ */
+function leftmost(expression: any): any {
+    for (;;) {
+        switch (expression.type) {
+            case Syntax.CallExpression:
+            case Syntax.OptionalCallExpression:
+                expression = expression.callee
+                break
+            case Syntax.MemberExpression:
+            case Syntax.OptionalMemberExpression:
+                expression = expression.object
+                break
+            case Syntax.TaggedTemplateExpression:
+                expression = expression.tag
+                break
+            case Syntax.BinaryExpression:
+            case Syntax.LogicalExpression:
+            case Syntax.AssignmentExpression:
+                expression = expression.left
+                break
+            case Syntax.ConditionalExpression:
+                expression = expression.test
+                break
+            case Syntax.SequenceExpression:
+                expression = expression.expressions[0]
+                break
+            case Syntax.UpdateExpression:
+                if (expression.prefix) {
+                    return expression
+                }
+                expression = expression.argument
+                break
+            default:
+                return expression
+        }
+    }
+}
+
+/**
+ * Whether the callee of a new expression contains a call or an optional chain outside of parentheses
+ * @param callee 
+ */
+function hasCall(callee: any): boolean {
+    for (;;) {
+        switch (callee.type) {
+            case Syntax.CallExpression:
+            case Syntax.OptionalCallExpression:
+            case Syntax.OptionalMemberExpression:
+                return true
+            case Syntax.MemberExpression:
+                callee = callee.object
+                break
+            case Syntax.TaggedTemplateExpression:
+                callee = callee.tag
+                break
+            default:
+                return false
+        }
+    }
+}
+
+function isInteger(expression: any): boolean {
+    return expression.type === Syntax.Literal && /^\d+$/.test(compactLiteral(expression))
+}
+
+/**
+ * Shortest text of a number or string literal, other literals are written as they were read
+ * @param literal 
+ */
+function compactLiteral(literal: Node.Literal): string {
+    const raw = literal.raw
+    // legacy octal literals are kept, their digits do not read as decimal
+    if (typeof literal.value === 'number' && isFinite(literal.value) && !raw.endsWith('n') && !/^0\d/.test(raw)) {
+        return shortest(raw, compactNumbers(literal.value))
+    }
+    if (typeof literal.value === 'string' && (raw[0] === '"' || raw[0] === "'")) {
+        return shortest(raw, compactStrings(raw))
+    }
+    return raw
+}
+
+function compactNumbers(value: number): string[] {
+    // shortest text that reads back as the same number, exponent without sign
+    const text = String(value).replace('e+', 'e')
+    const candidates = [text]
+
+    // 0.5 as .5, 0.0001 as 1e-4
+    const fraction = /^0\.(0*)(\d+)$/.exec(text)
+    if (fraction !== null) {
+        candidates.push(text.substring(1), `${fraction[2]}e-${fraction[1].length + fraction[2].length}`)
+    }
+
+    // 1000 as 1e3
+    const zeros = /^(\d+?)(0+)$/.exec(text)
+    if (zeros !== null) {
+        candidates.push(`${zeros[1]}e${zeros[2].length}`)
+    }
+
+    if (Number.isSafeInteger(value)) {
+        candidates.push('0x' + value.toString(16))
+    }
+    return candidates
+}
+
+/**
+ * The string literal with either quote, built from its source text as `value` does not keep quotes and escapes
+ * 
+ * Escapes are kept as they are, only the quote that delimits the literal is escaped and the other one is not.
+ * @param raw 
+ */
+function compactStrings(raw: string): string[] {
+    const body = raw.substring(1, raw.length - 1)
+    return ['"', "'"].map(quote => quote + body.replace(/\\[\s\S]|["']/g, m => {
+        if (m.length === 1) {
+            return m === quote ? '\\' + m : m
+        }
+        return (m[1] === '"' || m[1] === "'") && m[1] !== quote ? m[1] : m
+    }) + quote)
+}
+
+function shortest(text: string, candidates: string[]): string {
+    for (const candidate of candidates) {
+        if (candidate.length < text.length) {
+            text = candidate
+        }
+    }
+    return text
+}
@@ -0,0 +1,278 @@
+// character codes of the Base64 digits
+const BASE64 = Uint8Array.from("ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/", c => c.charCodeAt(0))
+const SEMICOLON = 0x3B
+const COMMA = 0x2C
+
+/**
+ * Mappings and line breaks of a map as plain arrays, for moving them between threads
+ */
+export type SourceMapSegments = {
+    generatedOffsets: Int32Array,
+    originalLines: Int32Array,
+    originalColumns: Int32Array,
+    // index into names, -1 when the mapping has no name
+    nameIndexes: Int32Array,
+    names: string[],
+    breaks: Int32Array,
+}
+
+export type SourceMapV3 = {
+    version: number,
+    file: string,
+    sources: string[],
+    sourcesContent?: string[],
+    names: string[],
+    mappings: string,
+}
+
+/**
+ * Source map collected while generating code
+ *
+ * Mappings are kept in typed arrays as character offsets into the generated code, in the order they are added,
+ * which has to be increasing offset order. Line breaks of the generated code are recorded from the text passed
+ * to `text`. Offsets are only turned into lines and columns and encoded to Base64 VLQ when `toJSON` is called.
+ * Original lines are 0 based, columns are 0 based UTF-16 offsets.
+ *
+ * Usage
+ * ```
+ *  ASTParser.locations(true)
+ *  const map = new SourceMap("input.js", code)
+ *  const output = new SourceGenerator().toSource(ASTParser.parse({ type: "code", value: code }), map)
+ *  fs.writeFileSync("output.js.map", JSON.stringify(map.toJSON("output.js")))
+ * ```
+ */
+export default class SourceMap {
+    readonly source: string
+    readonly sourceContent: string | null
+
+    private count = 0
+    private generatedOffsets: Int32Array
+    private originalLines: Int32Array
+    private originalColumns: Int32Array
+    // index into names, -1 when the mapping has no name
+    private nameIndexes: Int32Array
+    private names: string[] = []
+    private nameIds: Map<string, number> = new Map()
+
+    // offsets of the line breaks in the generated code
+    private breakCount = 0
+    private breaks: Int32Array
+
+    constructor(source: string, sourceContent: string | null = null, capacity = 256) {
+        this.source = source
+        this.sourceContent = sourceContent
+        this.generatedOffsets = new Int32Array(capacity)
+        this.originalLines = new Int32Array(capacity)
+        this.originalColumns = new Int32Array(capacity)
+        this.nameIndexes = new Int32Array(capacity)
+        this.breaks = new Int32Array(capacity)
+    }
+
+    /**
+     * Number of mappings
+     */
+    get size(): number {
+        return this.count
+    }
+
+    /**
+     * Map generated offset to original position, a mapping at the same offset as the last one replaces it
+     *
+     * @param generatedOffset
+     * @param originalLine
+     * @param originalColumn
+     * @param name
+     */
+    add(generatedOffset: number, originalLine: number, originalColumn: number, name: string | null = null): void {
+        let index = this.count
+        if (index > 0 && this.generatedOffsets[index - 1] === generatedOffset) {
+            --index
+        } else {
+            if (index === this.generatedOffsets.length) {
+                const size = index * 2
+                this.generatedOffsets = grow(this.generatedOffsets, size)
+                this.originalLines = grow(this.originalLines, size)
+                this.originalColumns = grow(this.originalColumns, size)
+                this.nameIndexes = grow(this.nameIndexes, size)
+            }
+            this.count++
+        }
+
+        let nameIndex = -1
+        if (name !== null) {
+            const id = this.nameIds.get(name)
+            if (id === undefined) {
+                nameIndex = this.names.length
+                this.names.push(name)
+                this.nameIds.set(name, nameIndex)
+            } else {
+                nameIndex = id
+            }
+        }
+
+        this.generatedOffsets[index] = generatedOffset
+        this.originalLines[index] = originalLine
+        this.originalColumns[index] = originalColumn
+        this.nameIndexes[index] = nameIndex
+    }
+
+    /**
+     * Record the line breaks of generated text, text has to be passed in order
+     *
+     * @param text
+     * @param offset offset of the text in the generated code
+     */
+    text(text: string, offset: number): void {
+        for (let i = text.indexOf("\n"); i !== -1; i = text.indexOf("\n", i + 1)) {
+            this.addBreak(offset + i)
+        }
+    }
+
+    /**
+     * Copy of the mappings and line breaks
+     */
+    segments(): SourceMapSegments {
+        return {
+            generatedOffsets: this.generatedOffsets.slice(0, this.count),
+            originalLines: this.originalLines.slice(0, this.count),
+            originalColumns: this.originalColumns.slice(0, this.count),
+            nameIndexes: this.nameIndexes.slice(0, this.count),
+            names: [...this.names],
+            breaks: this.breaks.slice(0, this.breakCount),
+        }
+    }
+
+    /**
+     * Add the mappings and line breaks of code generated separately and placed at `offset` in the generated code,
+     * it has to follow everything added so far
+     * 
+     * @param segments
+     * @param offset
+     */
+    append(segments: SourceMapSegments, offset: number): void {
+        for (let i = 0; i < segments.generatedOffsets.length; ++i) {
+            const nameIndex = segments.nameIndexes[i]
+            this.add(segments.generatedOffsets[i] + offset, segments.originalLines[i], segments.originalColumns[i],
+                nameIndex === -1 ? null : segments.names[nameIndex])
+        }
+
+        for (let i = 0; i < segments.breaks.length; ++i) {
+            this.addBreak(segments.breaks[i] + offset)
+        }
+    }
+
+    /**
+     * Encode the mappings as a version 3 source map
+     * @param file name of the generated file
+     */
+    toJSON(file = ""): SourceMapV3 {
+        const map: SourceMapV3 = {
+            version: 3,
+            file,
+            sources: [this.source],
+            names: [...this.names],
+            mappings: this.encode(),
+        }
+
+        if (this.sourceContent !== null) {
+            map.sourcesContent = [this.sourceContent]
+        }
+        return map
+    }
+
+    private addBreak(offset: number): void {
+        if (this.breakCount === this.breaks.length) {
+            this.breaks = grow(this.breaks, this.breakCount * 2)
+        }
+        this.breaks[this.breakCount++] = offset
+    }
+
+    private encode(): string {
+        // at most 7 characters per value, 5 values and a separator per mapping
+        let out = new Uint8Array(64 + this.count * 8)
+        let length = 0
+        // offset of the first character of the current line
+        let lineStart = 0
+        let nextBreak = 0
+        let column = 0
+        let originalLine = 0
+        let originalColumn = 0
+        let name = 0
+        let first = true
+
+        for (let i = 0; i < this.count; ++i) {
+            const offset = this.generatedOffsets[i]
+            let lines = 0
+            while (nextBreak < this.breakCount && this.breaks[nextBreak] < offset) {
+                lineStart = this.breaks[nextBreak++] + 1
+                lines++
+            }
+
+            if (length + lines + 48 > out.length) {
+                const resized = new Uint8Array((length + lines + 48) * 2)
+                resized.set(out.subarray(0, length))
+                out = resized
+            }
+
+            if (lines > 0) {
+                // a loop, `fill` costs more than the few separators it writes
+                for (let j = 0; j < lines; ++j) {
+                    out[length++] = SEMICOLON
+                }
+                column = 0
+                first = true
+            }
+
+            if (!first) {
+                out[length++] = COMMA
+            }
+            first = false
+
+            length = vlq(out, length, offset - lineStart - column)
+            column = offset - lineStart
+            // single source, its index is 0 for every segment
+            out[length++] = BASE64[0]
+            length = vlq(out, length, this.originalLines[i] - originalLine)
+            originalLine = this.originalLines[i]
+            length = vlq(out, length, this.originalColumns[i] - originalColumn)
+            originalColumn = this.originalColumns[i]
+
+            if (this.nameIndexes[i] !== -1) {
+                length = vlq(out, length, this.nameIndexes[i] - name)
+                name = this.nameIndexes[i]
+            }
+        }
+        return Buffer.from(out.buffer, out.byteOffset, length).toString("latin1")
+    }
+}
+
+/**
+ * Write Base64 VLQ of a signed value, returns the position after it
+ *
+ * @param out
+ * @param position
+ * @param value
+ */
+function vlq(out: Uint8Array, position: number, value: number): number {
+    let v = value < 0 ? ((-value) << 1) | 1 : value << 1
+    if (v < 0x20) {
+        out[position] = BASE64[v]
+        return position + 1
+    }
+
+    do {
+        let digit = v & 0x1F
+        v >>>= 5
+        if (v > 0) {
+            digit |= 0x20
+        }
+        out[position++] = BASE64[digit]
+    } while (v > 0)
+    return position
+}
+
+function grow(array: Int32Array, size: number): Int32Array {
+    const resized = new Int32Array(size)
+    resized.set(array)
+    return resized
+}
@@ -0,0 +1,154 @@
+/* eslint-disable @typescript-eslint/no-explicit-any */
+
+const FNV_OFFSET = 0x811C9DC5 | 0
+const FNV_PRIME = 0x01000193
+
+/**
+ * Interned strings for identifiers and string literals
+ *
+ * Names are looked up straight from a character interval of the input, the hash and comparison read the
+ * characters in place so a string is only created the first time a name is seen.
+ * Open addressing with linear probing, the table is kept at most half full.
+ *
+ * Can be used for a single parse or shared across a batch of parses.
+ */
+export default class SymbolTable {
+    private keys: (string | undefined)[]
+    private hashes: Int32Array
+    private mask: number
+    private count = 0
+
+    constructor(capacity = 1024) {
+        let size = 16
+        while (size < capacity * 2) {
+            size *= 2
+        }
+        this.keys = new Array(size)
+        this.hashes = new Int32Array(size)
+        this.mask = size - 1
+    }
+
+    /**
+     * Number of interned strings
+     */
+    get size(): number {
+        return this.count
+    }
+
+    /**
+     * Interned text of the characters from `start` to `stop` inclusive
+     *
+     * @param input `InputStream` or `Utf8CharStream`
+     * @param start
+     * @param stop
+     */
+    intern(input: any, start: number, stop: number): string {
+        const data = input.data
+        let hash = FNV_OFFSET
+        if (data !== undefined) {
+            for (let i = start; i <= stop; ++i) {
+                hash = Math.imul(hash ^ data[i], FNV_PRIME)
+            }
+        } else {
+            for (let i = start; i <= stop; ++i) {
+                hash = Math.imul(hash ^ input.codeUnitAt(i), FNV_PRIME)
+            }
+        }
+
+        const length = stop - start + 1
+        let slot = hash & this.mask
+        for (; ;) {
+            const key = this.keys[slot]
+            if (key === undefined) {
+                break
+            }
+            if (this.hashes[slot] === hash && key.length === length && this.matches(key, input, data, start)) {
+                return key
+            }
+            slot = (slot + 1) & this.mask
+        }
+
+        const text = input.getText(start, stop)
+        this.insert(slot, hash, text)
+        return text
+    }
+
+    /**
+     * Interned copy of the string
+     * @param text
+     */
+    internString(text: string): string {
+        let hash = FNV_OFFSET
+        for (let i = 0; i < text.length; ++i) {
+            hash = Math.imul(hash ^ text.charCodeAt(i), FNV_PRIME)
+        }
+
+        let slot = hash & this.mask
+        for (; ;) {
+            const key = this.keys[slot]
+            if (key === undefined) {
+                break
+            }
+            if (this.hashes[slot] === hash && key === text) {
+                return key
+            }
+            slot = (slot + 1) & this.mask
+        }
+
+        this.insert(slot, hash, text)
+        return text
+    }
+
+    clear(): void {
+        this.keys = new Array(this.keys.length)
+        this.hashes.fill(0)
+        this.count = 0
+    }
+
+    private matches(key: string, input: any, data: any, start: number): boolean {
+        if (data !== undefined) {
+            for (let i = 0; i < key.length; ++i) {
+                if (key.charCodeAt(i) !== data[start + i]) {
+                    return false
+                }
+            }
+        } else {
+            for (let i = 0; i < key.length; ++i) {
+                if (key.charCodeAt(i) !== input.codeUnitAt(start + i)) {
+                    return false
+                }
+            }
+        }
+        return true
+    }
+
+    private insert(slot: number, hash: number, text: string): void {
+        this.keys[slot] = text
+        this.hashes[slot] = hash
+        if (++this.count * 2 > this.keys.length) {
+            this.rehash()
+        }
+    }
+
+    private rehash(): void {
+        const keys = this.keys
+        const hashes = this.hashes
+        const size = keys.length * 2
+        this.keys = new Array(size)
+        this.hashes = new Int32Array(size)
+        this.mask = size - 1
+
+        for (let i = 0; i < keys.length; ++i) {
+            const key = keys[i]
+            if (key === undefined) {
+                continue
+            }
+            let slot = hashes[i] & this.mask
+            while (this.keys[slot] !== undefined) {
+                slot = (slot + 1) & this.mask
+            }
+            this.keys[slot] = key
+            this.hashes[slot] = hashes[i]
+        }
+    }
+}
@@ -0,0 +1,273 @@
+import { Token } from "antlr4"
+import * as fs from "fs"
+
+// distance in code units between two checkpoints of the unit to byte index
+const CHECKPOINT = 64
+
+/**
+ * Character stream over UTF-8 encoded bytes, drop in replacement for `antlr4.InputStream`
+ *
+ * The input is kept as the raw bytes, no decoded copy of the text is created.
+ * When the input is pure ASCII, characters are read directly from the bytes. Otherwise characters are decoded
+ * on access, a checkpoint every 64 code units maps character positions back to byte offsets.
+ *
+ * Indexes are UTF-16 code units like `InputStream`, so token positions and text are the same as when
+ * the file is read into a string. Malformed sequences are decoded as U+FFFD one byte at a time.
+ *
+ * Usage
+ * ```
+ *  const lexer = new DelvenLexer(Utf8CharStream.fromPath('./bundle.js'))
+ * ```
+ */
+export default class Utf8CharStream {
+    name: string
+    readonly ascii: boolean
+
+    private buffer: Buffer
+    private _index = 0
+    private _size: number
+    private checkpointBytes: Int32Array
+    private checkpointUnits: Int32Array
+    // code point last found by `locate`
+    private lastUnit = 0
+    private lastByte = 0
+    // length in bytes of the last decoded code point
+    private width = 1
+
+    constructor(buffer: Buffer, name = "<empty>") {
+        this.buffer = buffer
+        this.name = name
+        this.ascii = true
+        for (let i = 0; i < buffer.length; ++i) {
+            if (buffer[i] >= 0x80) {
+                this.ascii = false
+                break
+            }
+        }
+
+        if (this.ascii) {
+            this._size = buffer.length
+            this.checkpointBytes = new Int32Array(0)
+            this.checkpointUnits = new Int32Array(0)
+        } else {
+            this.checkpointBytes = new Int32Array(Math.floor(buffer.length / CHECKPOINT) + 2)
+            this.checkpointUnits = new Int32Array(Math.floor(buffer.length / CHECKPOINT) + 2)
+            this._size = this.index_()
+        }
+    }
+
+    static fromPath(path: string): Utf8CharStream {
+        return new Utf8CharStream(fs.readFileSync(path), path)
+    }
+
+    get index(): number {
+        return this._index
+    }
+
+    get size(): number {
+        return this._size
+    }
+
+    get sourceName(): string {
+        return this.name
+    }
+
+    reset(): void {
+        this._index = 0
+    }
+
+    consume(): void {
+        if (this._index >= this._size) {
+            throw new Error("cannot consume EOF")
+        }
+        this._index += 1
+    }
+
+    LA(offset: number): number {
+        if (offset === 0) {
+            return 0
+        }
+
+        if (offset < 0) {
+            offset += 1
+        }
+
+        const pos = this._index + offset - 1
+        if (pos < 0 || pos >= this._size) {
+            return Token.EOF
+        }
+        return this.ascii ? this.buffer[pos] : this.codeUnitAt(pos)
+    }
+
+    LT(offset: number): number {
+        return this.LA(offset)
+    }
+
+    mark(): number {
+        return -1
+    }
+
+    release(): void {
+        // no resources to release
+    }
+
+    seek(index: number): void {
+        if (index <= this._index) {
+            this._index = index
+            return
+        }
+        this._index = Math.min(index, this._size)
+    }
+
+    /**
+     * UTF-16 code unit at given index
+     * @param index
+     */
+    codeUnitAt(index: number): number {
+        if (this.ascii) {
+            return this.buffer[index]
+        }
+
+        const cp = this.decode(this.locate(index))
+        if (cp <= 0xFFFF) {
+            return cp
+        }
+
+        const v = cp - 0x10000
+        return index === this.lastUnit ? 0xD800 + (v >> 10) : 0xDC00 + (v & 0x3FF)
+    }
+
+    getText(start: number, stop: number): string {
+        if (stop >= this._size) {
+            stop = this._size - 1
+        }
+
+        if (start >= this._size || start > stop) {
+            return ""
+        }
+
+        if (this.ascii) {
+            return this.buffer.toString("latin1", start, stop + 1)
+        }
+
+        const startByte = this.locate(start)
+        const startUnit = this.lastUnit
+        const cp = this.decode(this.locate(stop))
+        const stopByte = this.lastByte + this.width
+        const stopUnit = this.lastUnit + (cp > 0xFFFF ? 2 : 1)
+
+        let text = this.buffer.toString("utf8", startByte, stopByte)
+        if (text.length !== stopUnit - startUnit) {
+            text = this.decodeRange(startByte, stopByte)
+        }
+
+        if (start === startUnit && stop + 1 === stopUnit) {
+            return text
+        }
+        return text.substring(start - startUnit, stop + 1 - startUnit)
+    }
+
+    toString(): string {
+        return this.getText(0, this._size - 1)
+    }
+
+    /**
+     * Build the checkpoint index, returns the number of code units in the input
+     */
+    private index_(): number {
+        const length = this.buffer.length
+        let byte = 0
+        let unit = 0
+        let next = 0
+        while (byte < length) {
+            const units = this.decode(byte) > 0xFFFF ? 2 : 1
+            while (next * CHECKPOINT < unit + units) {
+                this.checkpointBytes[next] = byte
+                this.checkpointUnits[next] = unit
+                ++next
+            }
+            unit += units
+            byte += this.width
+        }
+        return unit
+    }
+
+    /**
+     * Find the code point containing given code unit, returns its byte offset
+     * @param unit
+     */
+    private locate(unit: number): number {
+        let byte: number
+        let current: number
+        if (unit >= this.lastUnit && unit - this.lastUnit < CHECKPOINT) {
+            byte = this.lastByte
+            current = this.lastUnit
+        } else {
+            const checkpoint = Math.floor(unit / CHECKPOINT)
+            byte = this.checkpointBytes[checkpoint]
+            current = this.checkpointUnits[checkpoint]
+        }
+
+        for (; ;) {
+            const units = this.decode(byte) > 0xFFFF ? 2 : 1
+            if (current + units > unit) {
+                break
+            }
+            current += units
+            byte += this.width
+        }
+
+        this.lastUnit = current
+        this.lastByte = byte
+        return byte
+    }
+
+    /**
+     * Decode code point at given byte offset, sets `width` to its length in bytes
+     * @param byte
+     */
+    private decode(byte: number): number {
+        const buffer = this.buffer
+        const c = buffer[byte]
+        if (c < 0x80) {
+            this.width = 1
+            return c
+        }
+
+        const continuation = (offset: number) => (buffer[byte + offset] & 0xC0) === 0x80
+        if (c >= 0xC2 && c < 0xE0 && continuation(1)) {
+            this.width = 2
+            return ((c & 0x1F) << 6) | (buffer[byte + 1] & 0x3F)
+        }
+
+        if (c >= 0xE0 && c < 0xF0 && continuation(1) && continuation(2)) {
+            const cp = ((c & 0x0F) << 12) | ((buffer[byte + 1] & 0x3F) << 6) | (buffer[byte + 2] & 0x3F)
+            if (cp >= 0x800 && (cp < 0xD800 || cp > 0xDFFF)) {
+                this.width = 3
+                return cp
+            }
+        }
+
+        if (c >= 0xF0 && c < 0xF5 && continuation(1) && continuation(2) && continuation(3)) {
+            const cp = ((c & 0x07) << 18) | ((buffer[byte + 1] & 0x3F) << 12) | ((buffer[byte + 2] & 0x3F) << 6) | (buffer[byte + 3] & 0x3F)
+            if (cp >= 0x10000 && cp <= 0x10FFFF) {
+                this.width = 4
+                return cp
+            }
+        }
+
+        this.width = 1
+        return 0xFFFD
+    }
+
+    /**
+     * Decode bytes with the same rules as `decode`, only used for malformed input
+     */
+    private decodeRange(start: number, stop: number): string {
+        let text = ""
+        for (let byte = start; byte < stop; byte += this.width) {
+            text += String.fromCodePoint(this.decode(byte))
+        }
+        return text
+    }
+}
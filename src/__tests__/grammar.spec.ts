@@ -1,9 +1,26 @@
-import ASTParser from "../ASTParser"
+import ASTParser, { ErrorNode } from "../ASTParser"
 import ASTNode from "../ASTNode"
 import SourceGenerator from "../SourceGenerator";
+import ParseCache from "../ParseCache"
+import JsonWriter from "../JsonWriter"
+import DFACache from "../DFACache"
+import CompactTokenStream from "../CompactTokenStream"
+import Utf8CharStream from "../Utf8CharStream"
+import SymbolTable from "../SymbolTable"
+import CompactAST from "../CompactAST"
+import BinaryAST from "../BinaryAST"
+import SourceMap from "../SourceMap"
+import { Writable } from "stream"
+import * as antlr4 from "antlr4"
+import { BailErrorStrategy } from "antlr4/error/ErrorStrategy"
+import { ParseTreeListener } from "antlr4/tree/Tree"
+import { ECMAScriptParser } from "../parser/ECMAScriptParser"
+import { ECMAScriptLexer } from "../parser/ECMAScriptLexer"
+import { ParseCancellationException } from "antlr4/error/Errors"
 import glob from 'glob'
 import * as fs from 'fs'
 import * as path from 'path'
+import * as os from 'os'
 // import { diffString, diff } from 'json-diff'
 import * as jsondiffpatch from 'jsondiffpatch'
 
@@ -150,4 +167,746 @@ describe('Source Generator Test', () => {
 
         expect(delta).toBeUndefined();
     })
-})
\ No newline at end of file
+
+    it('restores the indentation after a class expression', () => {
+        const generator = new SourceGenerator()
+        const generate = (code: string) => generator.toSource(ASTParser.parse({ type: "code", value: code }))
+        const alone = generate("function f() {\n    return A\n}\n")
+        const after = generate("const A = class {}\nfunction f() {\n    return A\n}\n")
+
+        // without the header the function is generated the same as on its own, before it was one level deeper
+        const expected = alone.substring(alone.indexOf('\n') + 1)
+        expect(after.substring(after.length - expected.length)).toEqual(expected)
+    })
+})
+
+describe('Minified Strings Test', () => {
+    beforeAll(() => {
+        ASTParser.trace(false)
+    });
+
+    // string values read from the source text of the literals, `value` of the tree does not keep quotes
+    function strings(node: any, values: string[]): string[] {
+        if (node === null || typeof node !== "object") {
+            return values
+        }
+        if (node.type === "Literal" && typeof node.value === "string") {
+            values.push(new Function(`return ${node.raw}`)())
+        }
+        for (const key of Object.keys(node)) {
+            strings(node[key], values)
+        }
+        return values
+    }
+
+    it('keeps escapes and quotes of string literals', () => {
+        const code = `a = "it's \\"q\\""\nb = 'x\\'y'\nc = "\\x41\\u0041\\\\"\nd = "line\\\ncont"\n`
+        const ast = ASTParser.parse({ type: "code", value: code })
+        const script = new SourceGenerator({ minify: true }).toSource(ast)
+        const ast2 = ASTParser.parse({ type: "code", value: script })
+
+        expect(strings(ast2, [])).toEqual(strings(ast, []))
+        expect(strings(ast, [])).toEqual(["it's \"q\"", "x'y", "AA\\", "linecont"])
+        expect(script).toContain(`'it\\'s "q"'`)
+        expect(script).toContain(`"x'y"`)
+    })
+})
+
+describe('Source Locations Test', () => {
+    beforeAll(() => {
+        ASTParser.trace(false)
+        ASTParser.locations(true)
+    });
+
+    afterAll(() => {
+        ASTParser.locations(false)
+    });
+
+    // paths of all nodes below `node` that have no location
+    function unlocated(node: any, at: string, missing: string[]): string[] {
+        if (node === null || typeof node !== "object") {
+            return missing
+        }
+        if (Array.isArray(node)) {
+            node.forEach((element, i) => unlocated(element, `${at}[${i}]`, missing))
+            return missing
+        }
+        if (typeof node.type === "string" && (node.loc === undefined || node.range === undefined)) {
+            missing.push(`${at} : ${node.type}`)
+        }
+        for (const key of Object.keys(node)) {
+            if (key !== "loc" && key !== "range") {
+                unlocated(node[key], `${at}.${key}`, missing)
+            }
+        }
+        return missing
+    }
+
+    const cases: TestCase[] = discover("tree")
+    const mapped = cases.map(_case => [_case.name, _case])
+    it.each(mapped)(`%# Locations : %s`, (label, _case) => {
+        const deck = _case as TestCase
+        const ast = ASTParser.parse({ type: "code", value: deck.code })
+
+        expect(unlocated(ast, "Program", [])).toEqual([])
+    })
+
+    it('locates expressions of template literals in the source', () => {
+        const code = "const a = `x${ b + c }y`"
+        const ast: any = ASTParser.parse({ type: "code", value: code })
+        const template = ast.body[0].declarations[0].init
+        const expression = template.expressions[0]
+
+        expect(code.substring(template.start, template.end)).toEqual("`x${ b + c }y`")
+        expect(code.substring(expression.start, expression.end)).toEqual("b + c")
+        expect(code.substring(expression.right.start, expression.right.end)).toEqual("c")
+        expect(template.quasis.map((quasi: any) => code.substring(quasi.start, quasi.end))).toEqual(["x", "y"])
+    })
+
+    it('maps declared names by node and only statements by statement', () => {
+        const code = "function f(a) {\n    return a\n}\nlet b = f(1)"
+        const ast: any = ASTParser.parse({ type: "code", value: code })
+
+        const nodes = new SourceMap("input.js")
+        new SourceGenerator({ mappings: "node" }).toSource(ast, nodes)
+        expect(nodes.toJSON().names).toEqual(["f", "a", "b"])
+
+        // statements are the default
+        const statements = new SourceMap("input.js")
+        new SourceGenerator().toSource(ast, statements)
+        expect(statements.toJSON().names).toEqual([])
+        expect(statements.size).toEqual(3)
+        expect(statements.size).toBeLessThan(nodes.size)
+    })
+})
+
+describe('Lazy Function Bodies Test', () => {
+    beforeAll(() => {
+        ASTParser.trace(false)
+    });
+
+    afterEach(() => {
+        ASTParser.lazyFunctions(false)
+    });
+
+    it('reads lazy bodies while statements are streamed', () => {
+        const code = "function a() { return 1 }\nlet b = [1, 2]\nfunction c(x) { return { x } }\nlet d = c(b)\n"
+        const eager = ASTParser.parse({ type: "code", value: code }) as any
+
+        ASTParser.lazyFunctions(true)
+        const streamed: any[] = []
+        for (const statement of ASTParser.statements({ type: "code", value: code })) {
+            // reading the body parses it from the stream the following statements are read from
+            JSON.stringify(statement)
+            streamed.push(statement)
+        }
+
+        expect(JSON.parse(JSON.stringify(streamed))).toEqual(JSON.parse(JSON.stringify(eager.body)))
+    })
+
+    it('does not cache trees with lazy bodies', () => {
+        const cache = new ParseCache()
+        ASTParser.cache(cache)
+        ASTParser.lazyFunctions(true)
+        try {
+            const ast = ASTParser.parse({ type: "code", value: "function a() { return 1 }" }) as any
+            const body = Object.getOwnPropertyDescriptor(ast.body[0].body, "body")
+
+            expect(body?.get).toBeDefined()
+            expect(cache.stats().entries).toEqual(0)
+        } finally {
+            ASTParser.cache(null)
+        }
+    })
+
+    it('lets lazy bodies be replaced like eager ones', () => {
+        ASTParser.lazyFunctions(true)
+        const ast = ASTParser.parse({ type: "code", value: "function a() { return 1 }\nfunction b() { return 2 }" }) as any
+
+        const unread = ast.body[0].body
+        unread.body = []
+        expect(unread.body).toEqual([])
+
+        const read = ast.body[1].body
+        expect(read.body.length).toEqual(1)
+        read.body = []
+        expect(read.body).toEqual([])
+        expect(Object.getOwnPropertyDescriptor(read, "body")).toMatchObject({ writable: true, configurable: true })
+    })
+
+    it('lexes lazy bodies in the strict mode of their scope', () => {
+        const code = "'use strict'\nfunction a() { var interface = 1 }"
+        expect(ASTParser.parse({ type: "code", value: code })).toBeInstanceOf(ErrorNode)
+
+        ASTParser.lazyFunctions(true)
+        const ast = ASTParser.parse({ type: "code", value: code }) as any
+        expect(() => ast.body[1].body.body).toThrow()
+    })
+})
+
+describe('Incremental Parsing Test', () => {
+    beforeAll(() => {
+        ASTParser.trace(false)
+        ASTParser.locations(true)
+    });
+
+    afterAll(() => {
+        ASTParser.locations(false)
+    });
+
+    it('keeps locations of the previous tree when statements are shifted', () => {
+        const previous = ASTParser.parseIncremental("let a = 1\nlet b = { c }\nlet d = 3\n")
+        const before = JSON.stringify(previous.ast)
+
+        const next = ASTParser.reparse(previous, { start: 8, end: 9, text: "100" })
+        const last = (next.ast as any).body[2]
+
+        expect(JSON.stringify(previous.ast)).toEqual(before)
+        expect(next.code.substring(last.start, last.end)).toEqual("let d = 3")
+        expect(last.loc.start).toEqual({ line: 3, column: 0 })
+    })
+
+    it('reports errors at the line and column of the document', () => {
+        const code = "let a = 1\nlet b = 2\n    let c = 3; let d = 4; let e = 5\n"
+        const previous = ASTParser.parseIncremental(code)
+        const edit = { start: code.indexOf("5"), end: code.indexOf("5") + 1, text: "5 +* 1" }
+
+        const next = ASTParser.reparse(previous, edit)
+        const full = ASTParser.parse({ type: "code", value: next.code }) as ErrorNode
+
+        // restarts at `let d` in the middle of the third line
+        expect(next.ast).toBeInstanceOf(ErrorNode)
+        expect(full).toBeInstanceOf(ErrorNode)
+        expect((next.ast as ErrorNode).error.line).toEqual(3)
+        expect((next.ast as ErrorNode).error.line).toEqual(full.error.line)
+        expect((next.ast as ErrorNode).error.column).toEqual(full.error.column)
+    })
+
+    it('restarts in the strict mode of the restart statement', () => {
+        const code = "'use strict'\nlet a = 1\nlet b = 2\nlet c = 3\n"
+        const edit = { start: code.indexOf("let c"), end: code.indexOf("let c") + 5, text: "var interface" }
+
+        const strict = ASTParser.reparse(ASTParser.parseIncremental(code), edit)
+        expect(strict.ast).toBeInstanceOf(ErrorNode)
+        expect(ASTParser.parse({ type: "code", value: strict.code })).toBeInstanceOf(ErrorNode)
+
+        const sloppy = ASTParser.reparse(ASTParser.parseIncremental(code.substring(code.indexOf("\n"))), { ...edit, start: edit.start - 12, end: edit.end - 12 })
+        expect(sloppy.ast).not.toBeInstanceOf(ErrorNode)
+        expect(sloppy.parsed).toBeLessThan(4)
+    })
+})
+
+describe('JSON Writer Test', () => {
+    it('waits for a slow stream to drain', async () => {
+        const value = Array.from({ length: 30000 }, (_, i) => ({ type: "Identifier", name: `n${i}`, loc: { line: i, column: [i, true] } }))
+        const expected = JSON.stringify(value, null, 4)
+
+        let written = ""
+        let buffered = 0
+        const slow = new Writable({
+            highWaterMark: 16 * 1024,
+            write(chunk, encoding, callback) {
+                written += chunk
+                buffered = Math.max(buffered, slow.writableLength)
+                setImmediate(callback)
+            }
+        })
+
+        await JsonWriter.toStream(slow, value)
+
+        expect(written).toEqual(expected)
+        // one chunk at a time instead of the whole document
+        expect(buffered).toBeLessThan(expected.length / 4)
+    })
+})
+
+describe('Two-Stage Parsing Test', () => {
+    beforeAll(() => {
+        ASTParser.trace(false)
+    });
+
+    afterEach(() => {
+        ASTParser.twoStage(false)
+        jest.restoreAllMocks()
+    });
+
+    const cases: TestCase[] = discover("tree")
+    const mapped = cases.map(_case => [_case.name, _case])
+    it.each(mapped)(`%# Two-Stage : %s`, (label, _case) => {
+        const deck = _case as TestCase
+        const expected = ASTParser.parse({ type: "code", value: deck.code })
+
+        ASTParser.twoStage(true)
+        const ast = ASTParser.parse({ type: "code", value: deck.code })
+        const { same, delta } = assertSame(expected, ast)
+
+        expect(delta).toBeUndefined();
+    })
+
+    it('falls back to LL when SLL bails out and builds the same tree', () => {
+        const code = "let a = 1\nfunction f(x) {\n    return x * 2\n}\nf(a)\n"
+        const expected = ASTParser.parse({ type: "code", value: code })
+
+        // bail out once tokens were consumed, so the token stream has to be rewound for LL
+        jest.spyOn(BailErrorStrategy.prototype, "sync").mockImplementation((recognizer: any) => {
+            if (recognizer.getCurrentToken().tokenIndex > 4) {
+                throw new ParseCancellationException(new Error("SLL bail out"))
+            }
+        })
+        ASTParser.twoStage(true)
+        ASTParser.resetStatistics()
+        const ast = ASTParser.parse({ type: "code", value: code })
+        const { same, delta } = assertSame(expected, ast)
+
+        expect(ASTParser.statistics()).toEqual({ sll: 0, ll: 1 })
+        expect(delta).toBeUndefined();
+    })
+
+    it('reports syntax errors from the LL stage', () => {
+        ASTParser.twoStage(true)
+        ASTParser.resetStatistics()
+        const ast = ASTParser.parse({ type: "code", value: "let a = (1\nlet b = 2" })
+
+        // SLL bails out without a listener, the error is reported by the LL parse and no stage counts as completed
+        expect(ast).toBeInstanceOf(ErrorNode)
+        expect((ast as ErrorNode).error.line).toEqual(2)
+        expect(ASTParser.statistics()).toEqual({ sll: 0, ll: 0 })
+    })
+})
+
+describe('DFA Cache Test', () => {
+    beforeAll(() => {
+        ASTParser.trace(false)
+    });
+
+    const codes = [
+        "let a = [1, 2, 3].map(x => x * 2)\n",
+        "class A extends B {\n    constructor() {\n        super()\n        this.a = a ?? b\n    }\n}\n",
+        "for (const [k, v] of Object.entries(o)) {\n    if (k in v) continue\n}\n",
+        ...discover("tree").map(_case => _case.code)
+    ]
+
+    it('parses the same trees with a saved DFA', () => {
+        const file = path.join(os.tmpdir(), `delven-dfa-${process.pid}.cache.json`)
+        codes.forEach(code => DFACache.parse(code))
+        DFACache.save(file)
+        const expected = codes.map(code => toJson(ASTParser.parse({ type: "code", value: code })))
+
+        try {
+            // fresh modules start with an empty DFA, the saved one is loaded into it
+            jest.isolateModules(() => {
+                // eslint-disable-next-line @typescript-eslint/no-var-requires
+                const Cache = require("../DFACache").default
+                // eslint-disable-next-line @typescript-eslint/no-var-requires
+                const Parser = require("../ASTParser").default
+                Parser.trace(false)
+
+                expect(Cache.load(file)).toBe(true)
+                expect(codes.map(code => toJson(Parser.parse({ type: "code", value: code })))).toEqual(expected)
+            })
+        } finally {
+            fs.unlinkSync(file)
+        }
+    })
+
+    it('ignores a DFA saved for a different grammar', () => {
+        const saved = DFACache.serialize()
+
+        expect(saved.atn).toEqual(DFACache.signature())
+        expect(DFACache.deserialize({ ...saved, atn: "0:0" })).toBe(false)
+        expect(DFACache.deserialize({ ...saved, version: saved.version + 1 })).toBe(false)
+    })
+})
+
+describe('Fast Expressions Test', () => {
+    beforeAll(() => {
+        ASTParser.trace(false)
+    });
+
+    afterEach(() => {
+        ASTParser.fastExpressions(false)
+    });
+
+    // rule, invoking state and tokens of every context, the fast path hard codes the ATN states of the generated rule
+    function shape(node: any): any {
+        if (node.symbol !== undefined) {
+            return node.symbol.text
+        }
+        return [node.ruleIndex, node.invokingState, ...(node.children || []).map(shape)]
+    }
+
+    // parse tree and the rule events a parse listener gets
+    function parseTree(code: string, fast: boolean): { tree: any, events: string[] } {
+        const lexer = new ECMAScriptLexer(new antlr4.InputStream(code))
+        lexer.removeErrorListeners()
+        const parser = new ECMAScriptParser(new antlr4.CommonTokenStream(lexer))
+        parser.removeErrorListeners()
+        parser.setFastExpressions(fast)
+
+        const events: string[] = []
+        const listener = new ParseTreeListener()
+        listener.enterEveryRule = (ctx: any) => events.push(`enter ${ctx.ruleIndex} ${ctx.invokingState}`)
+        listener.exitEveryRule = (ctx: any) => events.push(`exit ${ctx.ruleIndex} ${ctx.invokingState}`)
+        parser.addParseListener(listener)
+
+        return { tree: shape(parser.program()), events }
+    }
+
+    const operators = [
+        "a = b ** c * d / e % f + g - h << i >> j >>> k < l > m <= n >= o instanceof p == q != r === s !== t & u ^ v | w && x || y ? 1 : 2\n",
+        "a = b ?? c\n",
+        "a += this; b -= 'x'; c *= 1; d /= e; f %= g; h <<= i; j >>= k; l >>>= m; n &= o; p ^= q; r |= s; t **= u\n",
+        "a = b ? c = d : e = f\n",
+    ]
+
+    const cases: TestCase[] = discover("tree")
+    const mapped = [...operators.map(code => [code, { name: code, code }]), ...cases.map(_case => [_case.name, _case])]
+    it.each(mapped)(`%# Fast Expressions : %s`, (label, _case) => {
+        const deck = _case as TestCase
+        const expected = ASTParser.parse({ type: "code", value: deck.code })
+        ASTParser.fastExpressions(true)
+        const ast = ASTParser.parse({ type: "code", value: deck.code })
+        const { same, delta } = assertSame(expected, ast)
+
+        expect(delta).toBeUndefined();
+        expect(parseTree(deck.code, true)).toEqual(parseTree(deck.code, false))
+    })
+})
+
+describe('Compact Token Stream Test', () => {
+    const code = "let a = 1 // one\n/* two */ function f(x) {\n    return x + a\n}\n"
+
+    function lexer(): any {
+        const lexer = new ECMAScriptLexer(new antlr4.InputStream(code))
+        lexer.removeErrorListeners()
+        return lexer
+    }
+
+    // type, text, channel, position and index of the token
+    function fields(token: any): any[] {
+        return token === null ? [] : [token.type, token.text, token.channel, token.line, token.column, token.tokenIndex]
+    }
+
+    it('hands out the same tokens as CommonTokenStream', () => {
+        const compact = new CompactTokenStream(lexer(), 4)
+        const common = new antlr4.CommonTokenStream(lexer())
+        compact.fill()
+        common.fill()
+
+        expect(compact.size).toEqual(common.tokens.length)
+        for (let i = 0; i < compact.size; ++i) {
+            expect(fields(compact.get(i))).toEqual(fields(common.get(i)))
+        }
+
+        compact.seek(0)
+        common.seek(0)
+        while (common.LA(1) !== antlr4.Token.EOF) {
+            expect(compact.LA(1)).toEqual(common.LA(1))
+            expect(fields(compact.LT(1))).toEqual(fields(common.LT(1)))
+            expect(fields(compact.LT(2))).toEqual(fields(common.LT(2)))
+            expect(fields(compact.LT(-1))).toEqual(fields(common.LT(-1)))
+            compact.consume()
+            common.consume()
+        }
+        expect(compact.getText()).toEqual(common.getText())
+    })
+
+    it('keeps tokens after the discarded ones', () => {
+        const compact = new CompactTokenStream(lexer(), 4)
+        compact.fill()
+        const tokens = Array.from({ length: compact.size }, (_, i) => fields(compact.get(i)))
+        const early = compact.get(1)
+
+        compact.seek(6)
+        compact.discard(5)
+
+        expect(() => compact.get(4)).toThrow(RangeError)
+        expect(() => compact.getText(new antlr4.Interval(0, 6))).toThrow(RangeError)
+        for (let i = 5; i < tokens.length; ++i) {
+            expect(fields(compact.get(i))).toEqual(tokens[i])
+        }
+        expect(fields(compact.LT(1))).toEqual(tokens[6])
+        // tokens handed out before stay valid
+        expect(fields(early)).toEqual(tokens[1])
+
+        // never drops tokens that were not consumed yet
+        compact.discard(tokens.length)
+        expect(fields(compact.LT(1))).toEqual(tokens[6])
+    })
+
+    it('keeps the previous token on the channel when discarding consumed tokens', () => {
+        const compact = new CompactTokenStream(lexer(), 4)
+        const common = new antlr4.CommonTokenStream(lexer())
+        compact.LT(1)
+        common.LT(1)
+
+        while (common.LA(1) !== antlr4.Token.EOF) {
+            compact.consume()
+            common.consume()
+            compact.discardConsumed()
+
+            expect(fields(compact.LT(-1))).toEqual(fields(common.LT(-1)))
+            expect(fields(compact.LT(1))).toEqual(fields(common.LT(1)))
+            expect(fields(compact.get(common.index))).toEqual(fields(common.get(common.index)))
+            // hidden tokens between the previous token and the current one are kept as well
+            const previous = common.LT(-1).tokenIndex
+            expect(compact.getText(new antlr4.Interval(previous, common.index))).toEqual(common.getText(new antlr4.Interval(previous, common.index)))
+        }
+    })
+})
+
+describe('UTF-8 Char Stream Test', () => {
+    // a surrogate pair straddles the first checkpoint at 64 code units, 3-byte and 2-byte characters follow
+    const text = "x".repeat(63) + "\u{1F600}" + "let s = '€ and é' // \u{1F680}\n".repeat(8) + "π"
+
+    function streams(): [Utf8CharStream, any] {
+        return [new Utf8CharStream(Buffer.from(text, "utf8")), new antlr4.InputStream(text)]
+    }
+
+    it('reads the same code units as InputStream', () => {
+        const [utf8, input] = streams()
+        expect(utf8.ascii).toBe(false)
+        expect(utf8.size).toEqual(input.size)
+        expect(utf8.toString()).toEqual(text)
+
+        for (; ;) {
+            expect(utf8.index).toEqual(input.index)
+            expect(utf8.LA(1)).toEqual(input.LA(1))
+            expect(utf8.LA(2)).toEqual(input.LA(2))
+            expect(utf8.LA(-1)).toEqual(input.LA(-1))
+            if (input.LA(1) === antlr4.Token.EOF) {
+                break
+            }
+            utf8.consume()
+            input.consume()
+        }
+    })
+
+    it('returns the same text for any range', () => {
+        const [utf8, input] = streams()
+        for (let start = 0; start < text.length; start += 7) {
+            for (const length of [1, 2, 3, 65, 130]) {
+                expect(utf8.getText(start, start + length - 1)).toEqual(input.getText(start, start + length - 1))
+            }
+        }
+    })
+
+    it('seeks backwards across checkpoints', () => {
+        const [utf8, input] = streams()
+        const positions = [text.length - 1, 200, 64, 63, 130, 0, 129, 65, text.length]
+        for (const position of positions) {
+            utf8.seek(position)
+            input.seek(position)
+            expect(utf8.index).toEqual(input.index)
+            expect(utf8.LA(1)).toEqual(input.LA(1))
+            expect(utf8.LA(-1)).toEqual(input.LA(-1))
+            expect(utf8.getText(Math.max(0, position - 70), position)).toEqual(input.getText(Math.max(0, position - 70), position))
+        }
+    })
+})
+
+describe('Symbol Interning Test', () => {
+    const code = "const o = { \"name\": name, key: 'name' }\nf(\"name\", \"it's\", '')"
+
+    afterEach(() => {
+        ASTParser.intern(false)
+    })
+
+    it('builds the same tree', () => {
+        const plain = ASTParser.parse({ type: "code", value: code })
+        ASTParser.intern(true)
+        const interned = ASTParser.parse({ type: "code", value: code })
+        expect(interned).toEqual(plain)
+    })
+
+    it('interns names and string values once, without the raw text', () => {
+        const symbols = new SymbolTable()
+        ASTParser.intern(true, symbols)
+        ASTParser.parse({ type: "code", value: code })
+        const size = symbols.size
+
+        // parsing again finds every name in the table
+        ASTParser.parse({ type: "code", value: code })
+        expect(symbols.size).toEqual(size)
+
+        for (const name of ["o", "name", "f", "its", ""]) {
+            symbols.internString(name)
+        }
+        expect(symbols.size).toEqual(size)
+
+        symbols.internString('"name"')
+        expect(symbols.size).toEqual(size + 1)
+    })
+})
+
+describe('Compact AST Test', () => {
+    const code = "class A extends B { static m(x = /a+/g) { return `t${x}` } }\nconst f = async (a, ...b) => ({ a, [b]: a || b })\n"
+    const codes = [...discover("tree").map(_case => _case.code), code]
+
+    it.each(codes.map(value => [value]))(`%# restores node classes : %s`, (value) => {
+        const ast = ASTParser.parse({ type: "code", value: value as string })
+        const restored = CompactAST.from(ast).toObject()
+
+        expect(restored).toStrictEqual(ast)
+        expect(restored).toBeInstanceOf(ast.constructor)
+        const generator = new SourceGenerator()
+        expect(generator.toSource(restored)).toEqual(generator.toSource(ast))
+    })
+})
+
+describe('Binary AST Test', () => {
+    beforeAll(() => {
+        ASTParser.locations(true)
+    });
+
+    afterAll(() => {
+        ASTParser.locations(false)
+    });
+
+    const code = "const r = /a(b)+/giu\nclass A extends B { m(x = 1.5) { return [r, `t${x}`, null, -1] } }\n"
+    const codes = [...discover("tree").map(_case => _case.code), code]
+
+    // all `loc` objects below the node
+    function locations(node: any, found: any[]): any[] {
+        if (node === null || typeof node !== "object") {
+            return found
+        }
+        if (node.loc !== undefined) {
+            found.push(node.loc)
+        }
+        for (const key of Object.keys(node)) {
+            if (key !== "loc") {
+                locations(node[key], found)
+            }
+        }
+        return found
+    }
+
+    it.each(codes.map(value => [value]))(`%# decodes the same tree : %s`, (value) => {
+        const ast = ASTParser.parse({ type: "code", value: value as string })
+        const decoded = BinaryAST.decode(BinaryAST.encode(ast))
+
+        // strict equality also compares the node classes
+        expect(decoded).toStrictEqual(ast)
+        const generator = new SourceGenerator()
+        expect(generator.toSource(decoded)).toEqual(generator.toSource(ast))
+    })
+
+    it('keeps RegExp values and gives every node its own location', () => {
+        const ast: any = ASTParser.parse({ type: "code", value: code })
+        const decoded: any = BinaryAST.decode(BinaryAST.encode(ast))
+
+        const regex = decoded.body[0].declarations[0].init
+        expect(regex.value).toBeInstanceOf(RegExp)
+        expect(regex.value.source).toEqual("a(b)+")
+        expect(regex.value.flags).toEqual("giu")
+
+        // locations are not shared between nodes, same as in the parsed tree
+        const before = locations(ast, [])
+        const after = locations(decoded, [])
+        expect(after).toEqual(before)
+        expect(new Set(after).size).toEqual(new Set(before).size)
+    })
+
+    it('rejects other versions', () => {
+        const bytes = BinaryAST.encode(ASTParser.parse({ type: "code", value: code }))
+        const other = Buffer.from(bytes)
+        // version is a single byte varint after the magic
+        other[4] += 1
+        expect(() => BinaryAST.decode(other)).toThrow(/Unsupported binary AST version/)
+
+        const garbage = Buffer.from(bytes)
+        garbage.writeUInt32LE(0, 0)
+        expect(() => BinaryAST.decode(garbage)).toThrow("Not a binary AST")
+    })
+})
+
+describe('Streaming Output Test', () => {
+    beforeAll(() => {
+        ASTParser.locations(true)
+    });
+
+    afterAll(() => {
+        ASTParser.locations(false)
+    });
+
+    // fixtures repeated until the output spans several chunks
+    const unit = [...discover("tree").map(_case => _case.code), "function f(a, b = 'x') {\n    return { a, [b]: `t${a}` }\n}\n"].join("\n;\n")
+    const code = unit.repeat(Math.ceil(160 * 1024 / unit.length))
+
+    it.each([[false], [true]])(`writes the same source and map in chunks, minify : %s`, (minify) => {
+        const ast = ASTParser.parse({ type: "code", value: code }) as any
+        const generator = new SourceGenerator({ minify: minify as boolean })
+
+        const expectedMap = new SourceMap("input.js")
+        const expected = generator.toSource(ast, expectedMap)
+        const chunks: string[] = []
+        const map = new SourceMap("input.js")
+        generator.write(ast, chunk => chunks.push(chunk), map)
+
+        expect(expected.length).toBeGreaterThan(64 * 1024)
+        expect(chunks.length).toBeGreaterThan(1)
+        expect(chunks.join("")).toEqual(expected)
+        expect(map.toJSON()).toEqual(expectedMap.toJSON())
+    })
+
+    it('writes the same source to a file', () => {
+        const ast = ASTParser.parse({ type: "code", value: code }) as any
+        const generator = new SourceGenerator()
+        const file = path.join(os.tmpdir(), `delven-output-${process.pid}.js`)
+        try {
+            generator.toFile(ast, file)
+            expect(fs.readFileSync(file, "utf8")).toEqual(generator.toSource(ast))
+        } finally {
+            fs.unlinkSync(file)
+        }
+    })
+})
+
+describe('Source Fragments Test', () => {
+    beforeAll(() => {
+        ASTParser.locations(true)
+    });
+
+    afterAll(() => {
+        ASTParser.locations(false)
+    });
+
+    const code = "var a = 1\nvar b = a\nlet c = [1, 2].map(x => x * 2)\nclass C { m() { return /re/g } }\n"
+        + "function f() { return a }\n;(function () {})()\nif (a) { b } else c\nfor (const k in b) f(k)\n"
+    const codes = [...discover("tree").map(_case => _case.code), code]
+
+    // runs of `size` statements, as the parallel generator splits the module
+    function runs(body: any[], size: number): any[][] {
+        const split: any[][] = []
+        for (let i = 0; i < body.length; i += size) {
+            split.push(body.slice(i, i + size))
+        }
+        return split
+    }
+
+    const cases: [string, boolean, boolean][] = []
+    for (const value of codes) {
+        for (const minify of [false, true]) {
+            for (const mapped of [false, true]) {
+                cases.push([value, minify, mapped])
+            }
+        }
+    }
+
+    it.each(cases)(`%# joins to the same source : %s, minify : %s, map : %s`, (value, minify, mapped) => {
+        const ast = ASTParser.parse({ type: "code", value }) as any
+        const generator = new SourceGenerator({ minify })
+        const expectedMap = mapped ? new SourceMap("input.js") : null
+        const expected = generator.toSource(ast, expectedMap)
+
+        for (const size of [1, 2, 3, Math.max(1, ast.body.length)]) {
+            const map = mapped ? new SourceMap("input.js") : null
+            const fragments = runs(ast.body, size).map(statements => generator.fragment(statements, mapped))
+            expect(generator.join(fragments, map)).toEqual(expected)
+            if (mapped) {
+                expect(map?.toJSON()).toEqual(expectedMap?.toJSON())
+            }
+        }
+    })
+})
@@ -1,13 +1,68 @@
 const antlr4 = require("antlr4/index");
 const ECMAScriptLexer = require("./ECMAScriptLexer");
 
+// Char codes of the `use strict` directive body, compared in place against the input
+const USE_STRICT = Array.from("use strict", c => c.charCodeAt(0));
+
+// Flags of a default channel token in `tokenFlags`
+const LINE_TERMINATOR_BEFORE = 1;
+const STRICT_MODE = 2;
+
+/**
+ * Stack of booleans packed into 32 bit words, used to track strict mode per brace scope
+ * without boxing every entry.
+ */
+function BitStack() {
+    this.words = new Uint32Array(4);
+    this.length = 0;
+}
+
+BitStack.prototype.push = function(value) {
+    const word = this.length >>> 5;
+    if (word >= this.words.length) {
+        const words = new Uint32Array(this.words.length * 2);
+        words.set(this.words);
+        this.words = words;
+    }
+
+    const mask = 1 << (this.length & 31);
+    if (value) {
+        this.words[word] |= mask;
+    } else {
+        this.words[word] &= ~mask;
+    }
+    this.length++;
+};
+
+BitStack.prototype.peek = function() {
+    const index = this.length - 1;
+    return (this.words[index >>> 5] & (1 << (index & 31))) !== 0;
+};
+
+BitStack.prototype.pop = function() {
+    const value = this.peek();
+    this.length--;
+    return value;
+};
+
+BitStack.prototype.clear = function() {
+    this.length = 0;
+};
+
 function ECMAScriptLexerBase(input) {
     antlr4.Lexer.call(this, input);
 
-    this.scopeStrictModes = new Array();
+    this.scopeStrictModes = new BitStack();
     this.lastToken = null;
     this.useStrictDefault = true;
     this.useStrictCurrent = true;
+
+    // One entry per emitted token, indexed the same way as `Token.tokenIndex` in the
+    // CommonTokenStream, with LINE_TERMINATOR_BEFORE set when a line terminator was seen since the previous
+    // default channel token and STRICT_MODE set when the token was lexed in strict mode
+    this.tokenFlags = new Uint8Array(1024);
+    this.tokenCount = 0;
+    this.pendingLineTerminator = false;
 }
 
 ECMAScriptLexerBase.prototype = Object.create(antlr4.Lexer.prototype);
@@ -31,16 +86,87 @@ ECMAScriptLexerBase.prototype.getCurrentToken = function() {
 
 ECMAScriptLexerBase.prototype.nextToken = function() {
     var next = antlr4.Lexer.prototype.nextToken.call(this);
+    var index = this.tokenCount++;
 
     if (next.channel === antlr4.Token.DEFAULT_CHANNEL) {
+        if (index >= this.tokenFlags.length) {
+            var size = this.tokenFlags.length * 2;
+            while (size <= index) {
+                size *= 2;
+            }
+            var flags = new Uint8Array(size);
+            flags.set(this.tokenFlags);
+            this.tokenFlags = flags;
+        }
+        this.tokenFlags[index] = (this.pendingLineTerminator ? LINE_TERMINATOR_BEFORE : 0)
+            | (this.useStrictCurrent ? STRICT_MODE : 0);
+        this.pendingLineTerminator = false;
         this.lastToken = next;
+    } else if (!this.pendingLineTerminator) {
+        this.pendingLineTerminator = this.isLineTerminatorToken(next);
     }
     return next;
 };
 
+ECMAScriptLexerBase.prototype.reset = function() {
+    antlr4.Lexer.prototype.reset.call(this);
+    this.lastToken = null;
+    this.scopeStrictModes.clear();
+    this.useStrictCurrent = this.useStrictDefault;
+    this.tokenCount = 0;
+    this.pendingLineTerminator = false;
+};
+
+/**
+ * Hidden token that counts as a line terminator for ASI, this is either a `LineTerminator`
+ * or a `MultiLineComment` spanning multiple lines. Comment is scanned in place so no text is created.
+ */
+ECMAScriptLexerBase.prototype.isLineTerminatorToken = function(token) {
+    // GB : footnote > circular require, constants are only available on the module export
+    var lexer = ECMAScriptLexer.ECMAScriptLexer;
+    if (token.type === lexer.LineTerminator) {
+        return true;
+    }
+
+    if (token.type !== lexer.MultiLineComment) {
+        return false;
+    }
+
+    var input = this._input;
+    var data = input.data;
+    for (var i = token.start; i <= token.stop; ++i) {
+        var c = data !== undefined ? data[i] : input.codeUnitAt(i);
+        if (c === 0x0A || c === 0x0D || c === 0x2028 || c === 0x2029) {
+            return true;
+        }
+    }
+    return false;
+};
+
+/**
+ * Check if the token at given index of the token stream is preceded by a line terminator.
+ * Only valid for tokens on the default channel.
+ *
+ * @param tokenIndex index of the token in the token stream
+ */
+ECMAScriptLexerBase.prototype.hasLineTerminatorBefore = function(tokenIndex) {
+    return tokenIndex < this.tokenCount && (this.tokenFlags[tokenIndex] & LINE_TERMINATOR_BEFORE) !== 0;
+};
+
+/**
+ * Check if the token at given index of the token stream was lexed in strict mode, the state after
+ * the token was matched, so a `'use strict'` directive and an open brace in strict code are themselves strict.
+ * Only valid for tokens on the default channel.
+ *
+ * @param tokenIndex index of the token in the token stream
+ */
+ECMAScriptLexerBase.prototype.isStrictModeAt = function(tokenIndex) {
+    return tokenIndex < this.tokenCount && (this.tokenFlags[tokenIndex] & STRICT_MODE) !== 0;
+};
+
 ECMAScriptLexerBase.prototype.ProcessOpenBrace = function() {
     this.useStrictCurrent =
-        this.scopeStrictModes.length > 0 && this.scopeStrictModes[0]
+        this.scopeStrictModes.length > 0 && this.scopeStrictModes.peek()
             ? true
             : this.useStrictDefault;
     this.scopeStrictModes.push(this.useStrictCurrent);
@@ -57,10 +183,9 @@ ECMAScriptLexerBase.prototype.ProcessStringLiteral = function() {
     if (
         this.lastToken !== undefined &&
         (this.lastToken === null ||
-            this.lastToken.type === ECMAScriptLexer.OpenBrace)
+            this.lastToken.type === ECMAScriptLexer.ECMAScriptLexer.OpenBrace)
     ) {
-        const text = this._input.strdata.slice(0, "use strict".length);
-        if (text === '"use strict"' || text === "'use strict'") {
+        if (this.isUseStrictDirective()) {
             if (this.scopeStrictModes.length > 0) {
                 this.scopeStrictModes.pop();
             }
@@ -70,6 +195,34 @@ ECMAScriptLexerBase.prototype.ProcessStringLiteral = function() {
     }
 };
 
+/**
+ * Check if the string literal just matched is `"use strict"` or `'use strict'`.
+ * Characters are compared directly against the input stream so no substring is created.
+ */
+ECMAScriptLexerBase.prototype.isUseStrictDirective = function() {
+    const start = this._tokenStartCharIndex;
+    const stop = this._input.index;
+    if (stop - start !== USE_STRICT.length + 2) {
+        return false;
+    }
+
+    const input = this._input;
+    const data = input.data;
+    // Utf8CharStream has no decoded data array
+    const charAt = data !== undefined ? i => data[i] : i => input.codeUnitAt(i);
+    const quote = charAt(start);
+    if ((quote !== 0x22 && quote !== 0x27) || charAt(stop - 1) !== quote) {
+        return false;
+    }
+
+    for (let i = 0; i < USE_STRICT.length; ++i) {
+        if (charAt(start + 1 + i) !== USE_STRICT[i]) {
+            return false;
+        }
+    }
+    return true;
+};
+
 ECMAScriptLexerBase.prototype.IsRegexPossible = function() {
     if (this.lastToken === null) {
         return true;
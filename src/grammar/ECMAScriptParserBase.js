@@ -2,6 +2,7 @@ const antlr4 = require("antlr4/index");
 // const ECMAScriptParser = require("./ECMAScriptParser");
 const parent = require('./ECMAScriptParser');
 let ECMAScriptParser;
+let operatorTable = null;
 
 function ECMAScriptParserBase(input) {
     // GB : footnote > the property chain in not inheriting from the parent properly
@@ -11,6 +12,300 @@ function ECMAScriptParserBase(input) {
 
 ECMAScriptParserBase.prototype = Object.create(antlr4.Parser.prototype);
 
+/**
+ * The generated parser deserializes its ATN right after it requires this module, the serialized ATN is kept
+ * as `ECMAScriptParserBase.serializedATN`. It identifies the grammar exactly, for caches of prediction state.
+ */
+ECMAScriptParserBase.serializedATN = null;
+(function () {
+    const deserializer = antlr4.atn.ATNDeserializer.prototype;
+    const deserialize = deserializer.deserialize;
+    deserializer.deserialize = function (data) {
+        deserializer.deserialize = deserialize;
+        ECMAScriptParserBase.serializedATN = data;
+        return deserialize.call(this, data);
+    };
+})();
+
+/**
+ * Lookup tables for the precedence climbing fast path, indexed by token type.
+ *
+ * Precedence levels and right operand precedence mirror the `precpred` checks generated for
+ * the binary alternatives of `singleExpression`, so the fast path builds the same contexts.
+ * ATN states are the ones the generated rule sets before the operator, the right operand is the state after it,
+ * so contexts get the same `invokingState`. They have to be updated when the grammar is regenerated.
+ * `In` is left out as it is ambiguous with `for (x in y)`.
+ */
+function OperatorTable(parser) {
+    const P = ECMAScriptParser;
+    const size = parser.symbolicNames.length + 1;
+
+    this.level = new Uint8Array(size);
+    this.right = new Uint8Array(size);
+    this.context = new Array(size);
+    this.state = new Uint16Array(size);
+    this.operand = new Uint8Array(size);
+    this.terminator = new Uint8Array(size);
+    this.statementStart = new Uint8Array(size);
+
+    const binary = (types, context, level, right, state) => {
+        for (const type of types) {
+            this.level[type] = level;
+            this.right[type] = right;
+            this.context[type] = context;
+            this.state[type] = state;
+        }
+    };
+
+    binary([P.Power], P.PowerExpressionContext, 28, 28, 844);
+    binary([P.Multiply, P.Divide, P.Modulus], P.MultiplicativeExpressionContext, 27, 28, 847);
+    binary([P.Plus, P.Minus], P.AdditiveExpressionContext, 26, 27, 850);
+    binary([P.NullCoalesce], P.CoalesceExpressionContext, 25, 26, 853);
+    binary([P.LeftShiftArithmetic, P.RightShiftArithmetic, P.RightShiftLogical], P.BitShiftExpressionContext, 24, 25, 856);
+    binary([P.LessThan, P.MoreThan, P.LessThanEquals, P.GreaterThanEquals], P.RelationalExpressionContext, 23, 24, 859);
+    binary([P.Instanceof], P.InstanceofExpressionContext, 22, 23, 862);
+    binary([P.Equals_, P.NotEquals, P.IdentityEquals, P.IdentityNotEquals], P.EqualityExpressionContext, 20, 21, 868);
+    binary([P.BitAnd], P.BitAndExpressionContext, 19, 20, 871);
+    binary([P.BitXOr], P.BitXOrExpressionContext, 18, 19, 874);
+    binary([P.BitOr], P.BitOrExpressionContext, 17, 18, 877);
+    binary([P.And], P.LogicalAndExpressionContext, 16, 17, 880);
+    binary([P.Or], P.LogicalOrExpressionContext, 15, 16, 883);
+    // `?` is at 886, the consequent at 887, `:` at 888 and the alternate at 889
+    binary([P.QuestionMark], P.TernaryExpressionContext, 14, 15, 886);
+    binary([P.Assign], P.AssignmentExpressionContext, 13, 13, 892);
+    binary([P.MultiplyAssign, P.DivideAssign, P.ModulusAssign, P.PlusAssign, P.MinusAssign,
+        P.LeftShiftArithmeticAssign, P.RightShiftArithmeticAssign, P.RightShiftLogicalAssign,
+        P.BitAndAssign, P.BitXorAssign, P.BitOrAssign, P.PowerAssign], P.AssignmentOperatorExpressionContext, 12, 12, 895);
+
+    // states of the identifier, `this` and literal alternatives
+    this.identifierState = 831;
+    this.thisState = 822;
+    this.literalState = 833;
+
+    const literals = [P.NullLiteral, P.BooleanLiteral, P.StringLiteral, P.DecimalLiteral, P.HexIntegerLiteral,
+        P.OctalIntegerLiteral, P.OctalIntegerLiteral2, P.BinaryIntegerLiteral, P.BigHexIntegerLiteral,
+        P.BigOctalIntegerLiteral, P.BigBinaryIntegerLiteral, P.BigDecimalIntegerLiteral];
+
+    for (const type of [P.Identifier, P.This, ...literals]) {
+        this.operand[type] = 1;
+    }
+
+    for (const type of [P.SemiColon, P.CloseParen, P.CloseBracket, P.CloseBrace, P.Comma, P.Colon]) {
+        this.terminator[type] = 1;
+    }
+
+    // tokens that end the expression through ASI when they follow a line terminator
+    for (const type of [P.Identifier, P.This, P.Var, P.Const, P.StrictLet, P.If, P.For, P.While, P.Do,
+        P.Return, P.Function, P.Class, P.Throw, P.Try, P.Switch, P.Break, P.Continue, P.Debugger, ...literals]) {
+        this.statementStart[type] = 1;
+    }
+
+    // SingleExpressionContext itself is not exported by the generated parser
+    this.singleExpressionContext = Object.getPrototypeOf(P.AdditiveExpressionContext.prototype).constructor;
+    this.startState = parser.atn.ruleToStartState[P.RULE_singleExpression].stateNumber;
+}
+
+/**
+ * Enable precedence climbing for `singleExpression`.
+ *
+ * Expressions made only of identifiers, `this`, literals and binary, logical, ternary or assignment
+ * operators are parsed without adaptive prediction at every operator. Everything else goes through
+ * the generated rule. Parse listeners get the same events as from the generated rule. Not used when parse trees
+ * are not built.
+ */
+ECMAScriptParserBase.prototype.setFastExpressions = function (enabled) {
+    if (enabled) {
+        if (operatorTable === null) {
+            operatorTable = new OperatorTable(this);
+        }
+        this.singleExpression = fastSingleExpression;
+    } else {
+        delete this.singleExpression;
+    }
+};
+
+function fastSingleExpression(_p) {
+    if ((_p === undefined || _p === 0) && this.buildParseTrees && this.isSimpleExpression()) {
+        return this.climbExpression(0);
+    }
+    return ECMAScriptParser.prototype.singleExpression.call(this, _p);
+}
+
+/**
+ * Scan ahead to check that the expression starting at the current token only uses
+ * operands and operators supported by `climbExpression` and ends with a token that can follow it.
+ */
+ECMAScriptParserBase.prototype.isSimpleExpression = function () {
+    const table = operatorTable;
+    const stream = this._input;
+    const lexer = stream.tokenSource;
+    let expectOperand = true;
+    let depth = 0;
+
+    for (let i = stream.index; ; ++i) {
+        stream.sync(i);
+        const token = stream.get(i);
+        if (token.channel !== antlr4.Token.DEFAULT_CHANNEL) {
+            continue;
+        }
+
+        const type = token.type;
+        if (type === antlr4.Token.EOF) {
+            return !expectOperand && depth === 0;
+        }
+
+        if (expectOperand) {
+            if (table.operand[type] === 0) {
+                return false;
+            }
+            expectOperand = false;
+        } else if (table.level[type] !== 0) {
+            if (type === ECMAScriptParser.QuestionMark) {
+                depth++;
+            }
+            expectOperand = true;
+        } else if (type === ECMAScriptParser.Colon && depth > 0) {
+            depth--;
+            expectOperand = true;
+        } else if (depth > 0) {
+            return false;
+        } else {
+            return table.terminator[type] === 1 ||
+                (table.statementStart[type] === 1 &&
+                    lexer.hasLineTerminatorBefore !== undefined &&
+                    lexer.hasLineTerminatorBefore(token.tokenIndex));
+        }
+    }
+};
+
+/**
+ * Precedence climbing over an expression accepted by `isSimpleExpression`.
+ * Follows the generated `singleExpression` rule, but selects alternatives from the operator table
+ * instead of running adaptive prediction.
+ *
+ * @param _p minimum precedence of the operators to consume
+ */
+ECMAScriptParserBase.prototype.climbExpression = function (_p) {
+    const P = ECMAScriptParser;
+    const table = operatorTable;
+    const _parentctx = this._ctx;
+    const _parentState = this.state;
+    let localctx = new table.singleExpressionContext(this, this._ctx, _parentState);
+    this.enterRecursionRule(localctx, table.startState, P.RULE_singleExpression, _p);
+    try {
+        this.enterOuterAlt(localctx, 1);
+        const type = this._input.LA(1);
+        if (type === P.Identifier) {
+            localctx = new P.IdentifierExpressionContext(this, localctx);
+            this._ctx = localctx;
+            this.state = table.identifierState;
+            this.identifier();
+        } else if (type === P.This) {
+            localctx = new P.ThisExpressionContext(this, localctx);
+            this._ctx = localctx;
+            this.state = table.thisState;
+            this.match(P.This);
+        } else {
+            localctx = new P.LiteralExpressionContext(this, localctx);
+            this._ctx = localctx;
+            this.state = table.literalState;
+            this.literal();
+        }
+        this._ctx.stop = this._input.LT(-1);
+
+        for (;;) {
+            const operator = this._input.LA(1);
+            const level = operator > 0 ? table.level[operator] : 0;
+            if (level === 0 || level < _p) {
+                break;
+            }
+
+            // the generated loop exits the previous context before every operator
+            if (this._parseListeners !== null) {
+                this.triggerExitRuleEvent();
+            }
+            const state = table.state[operator];
+            localctx = new table.context[operator](this, new table.singleExpressionContext(this, _parentctx, _parentState));
+            this.pushNewRecursionContext(localctx, table.startState, P.RULE_singleExpression);
+            this.state = state;
+            if (operator === P.QuestionMark) {
+                this.match(P.QuestionMark);
+                this.state = state + 1;
+                this.climbExpression(0);
+                this.state = state + 2;
+                this.match(P.Colon);
+                this.state = state + 3;
+                this.climbExpression(table.right[operator]);
+            } else if (table.context[operator] === P.AssignmentOperatorExpressionContext) {
+                this.assignmentOperator();
+                this.state = state + 1;
+                this.climbExpression(table.right[operator]);
+            } else {
+                this._errHandler.reportMatch(this);
+                this.consume();
+                this.state = state + 1;
+                this.climbExpression(table.right[operator]);
+            }
+        }
+    } finally {
+        this.unrollRecursionContexts(_parentctx);
+    }
+    return localctx;
+};
+
+/**
+ * Enable lazy function bodies.
+ *
+ * Bodies of function declarations, anonymous function expressions and class methods are only brace matched
+ * over the token stream. The returned `FunctionBodyContext` has no children, `lazy` holds the index of the first
+ * token of the body and of the closing brace so the body can be parsed when it is needed.
+ */
+ECMAScriptParserBase.prototype.setLazyFunctionBodies = function (enabled) {
+    if (enabled) {
+        this.functionBody = lazyFunctionBody;
+    } else {
+        delete this.functionBody;
+    }
+};
+
+function lazyFunctionBody() {
+    const parent = this._ctx;
+    if (!this.buildParseTrees || !(parent instanceof ECMAScriptParser.FunctionDeclarationContext
+        || parent instanceof ECMAScriptParser.AnoymousFunctionDeclContext
+        || parent instanceof ECMAScriptParser.MethodDefinitionContext)) {
+        return ECMAScriptParser.prototype.functionBody.call(this);
+    }
+
+    const localctx = new ECMAScriptParser.FunctionBodyContext(this, this._ctx, this.state);
+    this.enterRule(localctx, 94, ECMAScriptParser.RULE_functionBody);
+    try {
+        this.enterOuterAlt(localctx, 1);
+        // open brace was matched by the caller, stop in front of the matching close brace
+        const stream = this._input;
+        const start = stream.index;
+        let depth = 0;
+        for (; ;) {
+            const type = stream.LA(1);
+            if (type === antlr4.Token.EOF) {
+                break;
+            }
+            if (type === ECMAScriptParser.OpenBrace) {
+                ++depth;
+            } else if (type === ECMAScriptParser.CloseBrace) {
+                if (depth === 0) {
+                    break;
+                }
+                --depth;
+            }
+            stream.consume();
+        }
+        localctx.lazy = { start: start, stop: stream.index };
+    } finally {
+        this.exitRule();
+    }
+    return localctx;
+}
+
 /**
  * Check if the the token matches a string
  * Todo : create pull request
@@ -20,10 +315,8 @@ ECMAScriptParserBase.prototype.n = function (str) {
 };
 
 ECMAScriptParserBase.prototype.next = function (str) {
-    const source = this._input.LT(1).source[1].strdata;
-    const start = this._input.LT(1).start;
-    const stop = this._input.LT(1).stop;
-    const next = source.slice(start, stop + 1);
+    const token = this._input.LT(1);
+    const next = token.getInputStream().getText(token.start, token.stop);
     return next === str;
 };
 
@@ -32,15 +325,13 @@ ECMAScriptParserBase.prototype.p = function (str) {
 };
 
 ECMAScriptParserBase.prototype.prev = function (str) {
-    const source = this._input.LT(-1).source[1].strdata;
-    const start = this._input.LT(-1).start;
-    const stop = this._input.LT(-1).stop;
-    const prev = source.slice(start, stop + 1);
+    const token = this._input.LT(-1);
+    const prev = token.getInputStream().getText(token.start, token.stop);
     return prev === str;
 };
 
 ECMAScriptParserBase.prototype.notLineTerminator = function () {
-    return !this.here(ECMAScriptParser.LineTerminator)
+    return !this.lineTerminatorBefore()
 };
 
 ECMAScriptParserBase.prototype.notOpenBraceAndNotFunction = function () {
@@ -83,7 +374,26 @@ ECMAScriptParserBase.prototype.here = function (type) {
     return ahead.type === type;
 };
 
-ECMAScriptParserBase.prototype.lineTerminatorAhead = function (){
+/**
+ * Returns {@code true} iff there is a line terminator between the current token
+ * and the previous token on the default channel.
+ *
+ * The lexer records this per token while lexing, so this is a single lookup. Falls back to
+ * scanning hidden tokens when the token source does not provide the flags.
+ */
+ECMAScriptParserBase.prototype.lineTerminatorBefore = function () {
+    const lexer = this._input.tokenSource;
+    if (lexer.hasLineTerminatorBefore === undefined) {
+        return this.scanLineTerminatorAhead();
+    }
+    return lexer.hasLineTerminatorBefore(this.getCurrentToken().tokenIndex);
+};
+
+ECMAScriptParserBase.prototype.lineTerminatorAhead = function () {
+    return this.lineTerminatorBefore();
+};
+
+ECMAScriptParserBase.prototype.scanLineTerminatorAhead = function (){
     let possibleIndexEosToken = this.getCurrentToken().tokenIndex - 1;
     let ahead = this._input.get(possibleIndexEosToken);
     if (ahead.channel !== antlr4.Lexer.HIDDEN) {
@@ -0,0 +1,62 @@
+import ParallelParser from "./ParallelParser"
+import DFACache from "./DFACache"
+import { SourceCode } from "./ASTParser"
+import glob from 'glob'
+import * as fs from "fs"
+import * as os from "os"
+import * as path from "path"
+
+/**
+ * Parse throughput scaling benchmark, parses the fixture corpus with 1 to N worker threads
+ *
+ * ```
+ * node ./dist/parallel-bench [threads] [rounds]
+ * ```
+ */
+async function main() {
+    const maxThreads = parseInt(process.argv[2] || `${os.cpus().length}`)
+    const rounds = parseInt(process.argv[3] || "5")
+
+    const files = glob.sync("./test/fixtures/**/*.js")
+    const bytes = files.reduce((total, file) => total + fs.statSync(file).size, 0)
+    const sources: SourceCode[] = []
+    for (let i = 0; i < rounds; ++i) {
+        files.forEach(file => sources.push({ type: "filename", value: file }))
+    }
+
+    // all runs start from the same warm DFA
+    const dfaCache = path.join(os.tmpdir(), "delven-dfa.cache.json")
+    DFACache.warmup("./test/fixtures")
+    DFACache.save(dfaCache)
+
+    console.info(`files : ${files.length}, rounds : ${rounds}, bytes : ${bytes}`)
+    console.info("threads\tfiles/s\tKB/s\tspeedup")
+
+    let baseline = 0
+    for (let threads = 1; threads <= maxThreads; ++threads) {
+        const pool = new ParallelParser({ threads, dfaCache, returnAst: false })
+        // one round to let workers load the cache
+        await pool.parseAll(files.map(file => ({ type: "filename", value: file } as SourceCode)))
+
+        const start = process.hrtime.bigint()
+        await pool.parseAll(sources)
+        const seconds = Number(process.hrtime.bigint() - start) / 1e9
+        await pool.close()
+
+        const filesPerSecond = sources.length / seconds
+        if (threads == 1) {
+            baseline = filesPerSecond
+        }
+        const kbPerSecond = (bytes * rounds) / 1024 / seconds
+        console.info(`${threads}\t${filesPerSecond.toFixed(1)}\t${kbPerSecond.toFixed(1)}\t${(filesPerSecond / baseline).toFixed(2)}x`)
+    }
+}
+
+(async () => {
+    await main()
+})().catch(err => {
+    console.error("error in main", err)
+})
+
+// Trick to prevent  > All files must be modules when the '--isolatedModules' flag is provided.ts(1208)
+export { }
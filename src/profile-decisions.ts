@@ -0,0 +1,42 @@
+import ASTParser from "./ASTParser"
+import DecisionProfiler, { DecisionOrder } from "./DecisionProfiler"
+import glob from 'glob'
+
+/**
+ * Rank parser decisions by prediction cost over a corpus
+ *
+ * ```
+ * node ./dist/profile-decisions [directory] [limit] [time|invocations|fullContext|maxLookahead|ambiguities]
+ * ```
+ */
+async function main() {
+    const dir = process.argv[2] || "./test/fixtures"
+    const limit = parseInt(process.argv[3] || "25")
+    const order = (process.argv[4] || "time") as DecisionOrder
+
+    const profiler = new DecisionProfiler()
+    ASTParser.trace(false)
+    ASTParser.profile(profiler)
+
+    const files = glob.sync(`${dir}/**/*.js`)
+    let failed = 0
+    for (const file of files) {
+        try {
+            ASTParser.parse({ type: "filename", value: file })
+        } catch (e) {
+            failed++
+        }
+    }
+
+    console.info(`files : ${files.length}, failed : ${failed}`)
+    console.info(profiler.format(limit, order))
+}
+
+(async () => {
+    await main()
+})().catch(err => {
+    console.error("error in main", err)
+})
+
+// Trick to prevent  > All files must be modules when the '--isolatedModules' flag is provided.ts(1208)
+export { }
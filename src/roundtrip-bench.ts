@@ -0,0 +1,286 @@
+/* eslint-disable @typescript-eslint/no-explicit-any */
+import { Worker, isMainThread, parentPort, workerData } from "worker_threads"
+import ASTParser, { ErrorNode } from "./ASTParser"
+import SourceGenerator from "./SourceGenerator"
+import DFACache from "./DFACache"
+import glob from 'glob'
+import * as fs from "fs"
+import * as os from "os"
+import * as path from "path"
+
+type Phase = "parse" | "generate" | "reparse" | "compare"
+
+const PHASES: Phase[] = ["parse", "generate", "reparse", "compare"]
+
+type RoundTripResult = {
+    file: string,
+    sourceBytes: number,
+    generatedBytes: number,
+    // milliseconds spent in each phase that ran
+    elapsed: { [phase in Phase]?: number },
+    // phase that failed and why, `null` when the round trip conforms
+    failure: { phase: Phase, message: string } | null,
+}
+
+// keys that differ between a tree and the tree of its generated source without the source being wrong
+const IGNORED = new Set(["loc", "range", "start", "end", "raw"])
+
+// keys of string literals that are compared by the string the literal reads as instead
+const STRING_IGNORED = new Set([...IGNORED, "value"])
+
+const WORKER_TAG = "delven-roundtrip"
+
+/**
+ * Round trip conformance and throughput harness over the fixture corpus
+ *
+ * Every fixture is parsed, generated back into source, the source is parsed again and the two trees are compared,
+ * on a pool of worker threads. Failures are listed with the phase they happened in, and files/s and KB/s are reported
+ * for each phase, per thread and for all threads, next to the wall clock throughput of the whole run.
+ * Exits with 1 when any file does not round trip.
+ *
+ * ```
+ * node ./dist/roundtrip-bench [threads] [--minify]
+ * ```
+ */
+async function main() {
+    const args = process.argv.slice(2)
+    const minify = args.includes("--minify")
+    const threads = parseInt(args.find(arg => !arg.startsWith("--")) || `${os.cpus().length}`)
+
+    // the fixtures with an expected tree, the same cases as the generator test suite
+    const files: string[] = glob.sync("./test/fixtures/**/*.js").filter((file: string) => {
+        const label = path.basename(file).split('.')[0]
+        return fs.existsSync(path.join(path.dirname(file), `${label}.tree.json`))
+    })
+    const bytes = files.reduce((total, file) => total + fs.statSync(file).size, 0)
+
+    // all workers start from the same warm DFA, so the first files are not slower than the rest
+    const dfaCache = path.join(os.tmpdir(), "delven-dfa.cache.json")
+    DFACache.warmup("./test/fixtures")
+    DFACache.save(dfaCache)
+
+    console.info(`files : ${files.length}, bytes : ${bytes}, threads : ${threads}, minify : ${minify}`)
+
+    const start = process.hrtime.bigint()
+    const results = await run(files, threads, dfaCache, minify)
+    const seconds = Number(process.hrtime.bigint() - start) / 1e9
+
+    const failures = results.filter(result => result.failure !== null)
+    for (const result of failures) {
+        const failure = result.failure as { phase: Phase, message: string }
+        console.info(`FAIL ${result.file} [${failure.phase}] ${failure.message}`)
+    }
+
+    console.info("phase\tfiles\tfiles/s\tKB/s\tfiles/s (all threads)\tKB/s (all threads)")
+    for (const phase of PHASES) {
+        let count = 0
+        let phaseBytes = 0
+        let elapsed = 0
+        for (const result of results) {
+            const ms = result.elapsed[phase]
+            if (ms === undefined) {
+                continue
+            }
+            count++
+            elapsed += ms
+            // parse reads the fixture, the later phases produce or read the generated source
+            phaseBytes += phase === "parse" ? result.sourceBytes : result.generatedBytes
+        }
+
+        const perThread = elapsed / 1000
+        const filesPerSecond = perThread > 0 ? count / perThread : 0
+        const kbPerSecond = perThread > 0 ? phaseBytes / 1024 / perThread : 0
+        console.info(`${phase}\t${count}\t${filesPerSecond.toFixed(1)}\t${kbPerSecond.toFixed(1)}\t`
+            + `${(filesPerSecond * threads).toFixed(1)}\t${(kbPerSecond * threads).toFixed(1)}`)
+    }
+
+    console.info(`total\t${files.length}\t${(files.length / seconds).toFixed(1)}\t${(bytes / 1024 / seconds).toFixed(1)}\t(wall clock)`)
+    console.info(`conforming : ${results.length - failures.length}/${results.length}`)
+
+    if (failures.length > 0) {
+        process.exitCode = 1
+    }
+}
+
+/**
+ * Round trip all files on the worker pool, results are in the same order as the files
+ */
+function run(files: string[], threads: number, dfaCache: string, minify: boolean): Promise<RoundTripResult[]> {
+    return new Promise((resolve, reject) => {
+        const results: RoundTripResult[] = new Array(files.length)
+        const workers: Worker[] = []
+        let next = 0
+        let done = 0
+
+        const dispatch = (worker: Worker) => {
+            if (next < files.length) {
+                worker.postMessage({ index: next, file: files[next] })
+                next++
+            }
+        }
+
+        const finish = () => {
+            Promise.all(workers.map(worker => worker.terminate())).then(() => resolve(results))
+        }
+
+        if (files.length === 0) {
+            resolve(results)
+            return
+        }
+
+        for (let i = 0; i < Math.min(threads, files.length); ++i) {
+            const worker = new Worker(__filename, { workerData: { tag: WORKER_TAG, dfaCache, minify } })
+            worker.on("message", (message: { index: number, result: RoundTripResult }) => {
+                results[message.index] = message.result
+                if (++done === files.length) {
+                    finish()
+                } else {
+                    dispatch(worker)
+                }
+            })
+            worker.on("error", err => {
+                workers.forEach(w => w.terminate())
+                reject(err)
+            })
+            workers.push(worker)
+            dispatch(worker)
+        }
+    })
+}
+
+/**
+ * Path and values of the first difference between two trees, `null` when they are the same
+ */
+function difference(a: any, b: any, at: string): string | null {
+    if (a === b) {
+        return null
+    }
+
+    if (a === null || b === null || typeof a !== "object" || typeof b !== "object") {
+        return `${at} : ${JSON.stringify(a)} != ${JSON.stringify(b)}`
+    }
+
+    if (a instanceof RegExp || b instanceof RegExp) {
+        return String(a) === String(b) ? null : `${at} : ${a} != ${b}`
+    }
+
+    if (Array.isArray(a) !== Array.isArray(b)) {
+        return `${at} : array != object`
+    }
+
+    if (Array.isArray(a)) {
+        if (a.length !== b.length) {
+            return `${at}.length : ${a.length} != ${b.length}`
+        }
+        for (let i = 0; i < a.length; ++i) {
+            const diff = difference(a[i], b[i], `${at}[${i}]`)
+            if (diff !== null) {
+                return diff
+            }
+        }
+        return null
+    }
+
+    if (a.type !== b.type) {
+        return `${at}.type : ${a.type} != ${b.type}`
+    }
+
+    // `value` of a string literal is its source text without any quotes, escaped quotes are lost with them
+    let ignored = IGNORED
+    if (a.type === "Literal" && typeof a.value === "string" && typeof b.value === "string") {
+        if (decode(a.raw) !== decode(b.raw)) {
+            return `${at}.raw : ${a.raw} != ${b.raw}`
+        }
+        ignored = STRING_IGNORED
+    }
+
+    const keys = new Set([...Object.keys(a), ...Object.keys(b)])
+    for (const key of keys) {
+        if (ignored.has(key)) {
+            continue
+        }
+        const diff = difference(a[key], b[key], `${at}.${key}`)
+        if (diff !== null) {
+            return diff
+        }
+    }
+    return null
+}
+
+/**
+ * String a string literal reads as, the raw text is a single string literal token so evaluating it runs no code
+ */
+function decode(raw: string): string {
+    return new Function(`return ${raw}`)()
+}
+
+function roundTrip(file: string, generator: SourceGenerator): RoundTripResult {
+    const code = fs.readFileSync(file, "utf8")
+    const result: RoundTripResult = {
+        file,
+        sourceBytes: Buffer.byteLength(code, "utf8"),
+        generatedBytes: 0,
+        elapsed: {},
+        failure: null
+    }
+
+    let phase: Phase = "parse"
+    const time = <T>(fn: () => T): T => {
+        const start = process.hrtime.bigint()
+        try {
+            return fn()
+        } finally {
+            result.elapsed[phase] = Number(process.hrtime.bigint() - start) / 1e6
+        }
+    }
+
+    try {
+        const ast = time(() => ASTParser.parse({ type: "code", value: code }))
+        if (ast instanceof ErrorNode) {
+            throw new Error("Fixture does not parse")
+        }
+
+        phase = "generate"
+        const script = time(() => generator.toSource(ast))
+        result.generatedBytes = Buffer.byteLength(script, "utf8")
+
+        phase = "reparse"
+        const reparsed = time(() => ASTParser.parse({ type: "code", value: script }))
+        if (reparsed instanceof ErrorNode) {
+            throw new Error("Generated source does not parse")
+        }
+
+        phase = "compare"
+        const diff = time(() => difference(ast, reparsed, "Program"))
+        if (diff !== null) {
+            throw new Error(diff)
+        }
+    } catch (e) {
+        result.failure = { phase, message: e.message }
+    }
+    return result
+}
+
+function work() {
+    ASTParser.trace(false)
+    DFACache.load(workerData.dfaCache)
+    const generator = new SourceGenerator({ minify: workerData.minify })
+
+    parentPort?.on("message", (task: { index: number, file: string }) => {
+        parentPort?.postMessage({ index: task.index, result: roundTrip(task.file, generator) })
+    })
+}
+
+if (isMainThread) {
+    (async () => {
+        await main()
+    })().catch(err => {
+        console.error("error in main", err)
+        process.exitCode = 1
+    })
+} else if (workerData && workerData.tag === WORKER_TAG) {
+    work()
+}
+
+// Trick to prevent  > All files must be modules when the '--isolatedModules' flag is provided.ts(1208)
+export { }
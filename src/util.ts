@@ -1,4 +1,6 @@
 import * as fs from 'fs'
+import BinaryAST from './BinaryAST'
+import JsonWriter from './JsonWriter'
 export default class Utils {
 
     static toJson = (obj: unknown): string => JSON.stringify(obj, function replacer(key, value) { return value }, 4);
@@ -21,7 +23,7 @@ export default class Utils {
         return true
     }
 
-    static async _write(outputFilename: string, value: string): Promise<void> {
+    static async _write(outputFilename: string, value: string | Buffer): Promise<void> {
         await this.createDirs(outputFilename)
 
         fs.writeFile(outputFilename, value, function (err) {
@@ -33,12 +35,32 @@ export default class Utils {
         });
     }
     /**
-     * Write json file
+     * Write json file, the JSON is streamed to the file instead of being built as one string first
      * @param outputFilename 
      * @param obj 
      */
     static writeJson(outputFilename: string, obj: unknown): void {
-        Utils._write(outputFilename, this.toJson(obj))
+        Utils._writeJson(outputFilename, obj)
+    }
+
+    static async _writeJson(outputFilename: string, obj: unknown): Promise<void> {
+        await this.createDirs(outputFilename)
+
+        try {
+            JsonWriter.toFile(outputFilename, obj)
+            console.log(`Saved to :${outputFilename}`);
+        } catch (err) {
+            console.log(err);
+        }
+    }
+
+    /**
+     * Write AST in the binary AST format, read back with `BinaryAST.decode`
+     * @param outputFilename 
+     * @param ast 
+     */
+    static writeBinary(outputFilename: string, ast: unknown): void {
+        Utils._write(outputFilename, BinaryAST.encode(ast))
     }
 
     /**
@@ -51,7 +73,7 @@ export default class Utils {
         if (typeof value === 'string') {
             Utils._write(outputFilename, value)
         } else {
-            Utils._write(outputFilename, this.toJson(value))
+            Utils._writeJson(outputFilename, value)
         }
     }
 }